@@ -0,0 +1,102 @@
+/**
+ * @author Anh Do
+ *
+ * Implementation of a feedback driven backoff protocol: the window grows by a factor when the fraction
+ * of devices that collided in the previous window is above a target, and shrinks by the same factor
+ * otherwise. With k devices in a window of n slots about 1 - e^(-k/n) of them collide, so the default
+ * target of 1 - 1/e keeps the window close to the number of devices, where throughput is highest.
+ */
+public class AdaptiveBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
+    final static double DEFAULT_GROWTH = 2;
+    final static double DEFAULT_TARGET_COLLISION_FRACTION = 1 - Math.exp(-1);
+
+    private final double growth;
+    private final double targetCollisionFraction;
+    private final int initialWindowSize;
+
+    public AdaptiveBackoff() {
+        this(DEFAULT_GROWTH, DEFAULT_TARGET_COLLISION_FRACTION, INITIAL_WINDOW_SIZE);
+    }
+
+    /**
+     * @param growth factor the window grows or shrinks by, more than 1
+     * @param targetCollisionFraction fraction of colliding devices above which the window grows
+     * @param initialWindowSize size of the first window
+     */
+    public AdaptiveBackoff(double growth, double targetCollisionFraction, int initialWindowSize) {
+        if (growth <= 1 || targetCollisionFraction < 0 || targetCollisionFraction >= 1 || initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid adaptive backoff: growth=" + growth + " target=" + targetCollisionFraction
+                    + " initial=" + initialWindowSize);
+        }
+        this.growth = growth;
+        this.targetCollisionFraction = targetCollisionFraction;
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    @Override
+    public String getName() {
+        return "adaptive";
+    }
+
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Without feedback, a device only knows it collided: the window grows
+     */
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(numSlots * growth));
+    }
+
+    /**
+     * The window follows the collisions of all the devices in it
+     */
+    @Override
+    public boolean dependsOnSizeOnly() {
+        return false;
+    }
+
+    @Override
+    public int nextWindowSize(Window w) {
+        if (w.getCollisionFraction() > targetCollisionFraction) {
+            return nextWindowSize(w.getNumSlots());
+        }
+        return Math.max(1, (int) (w.getNumSlots() / growth));
+    }
+
+    public double getGrowth() {
+        return growth;
+    }
+
+    public double getTargetCollisionFraction() {
+        return targetCollisionFraction;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(growth=" + growth + ", target=" + String.format("%.3f", targetCollisionFraction)
+                + ", initial=" + initialWindowSize + ")";
+    }
+
+    public static void main(String[] args) {
+        Window w = new Window(16);
+        AdaptiveBackoff ab = new AdaptiveBackoff();
+        // Crowded window: most devices collide, the window grows
+        for (int device = 0; device < 100; device++) {
+            w.takeRandomSlotWithinWindow();
+        }
+        System.out.println("Collision fraction " + w.getCollisionFraction() + " in " + w.getNumSlots() + " slots");
+        Window nextW = ab.nextWindow(w);
+        assert nextW.getNumSlots() == 32;
+        System.out.println("Next window size = " + nextW.getNumSlots());
+        // Sparse window: few devices collide, the window shrinks
+        nextW.takeRandomSlotWithinWindow();
+        nextW = ab.nextWindow(nextW);
+        assert nextW.getNumSlots() == 16;
+        System.out.println("Next window size = " + nextW.getNumSlots());
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ *
+ * Micro benchmarks of the simulator hot path: {@link Window} operations, {@link IBackoffProtocol}
+ * window growth and whole {@link myBackoff#simulateTrial} trials, parameterised by window size and
+ * device count. Each benchmark is calibrated to run about {@link #ITERATION_NANOS} per iteration,
+ * warmed up for {@link #WARMUP_ITERATIONS} iterations and then measured for {@link #MEASUREMENT_ITERATIONS}.
+ *
+ * Results are written as tab separated lines (benchmark, parameters, ns/op, error) and can be compared
+ * against a previous run, e.g. the committed benchmark-baseline.txt, to spot regressions. The error is
+ * the standard deviation of the measurement iterations, pooled over all forks.
+ */
+public class BackoffBenchmark {
+    final static int WARMUP_ITERATIONS = 3;
+    final static int MEASUREMENT_ITERATIONS = 5;
+    final static long ITERATION_NANOS = 100000000L;
+    // JVMs the benchmarks run in: the JIT compiles each one differently, by far the largest source of noise
+    final static int DEFAULT_FORKS = 3;
+    // A benchmark is reported as a regression when even the low end of its error interval is slower
+    // than the high end of the baseline's by more than this fraction
+    final static double REGRESSION_THRESHOLD = 0.20;
+
+    final static int[] WINDOW_SIZES = { 16, 1024, 65536 };
+    final static int[] DEVICE_COUNTS = { 100, 1000, 6000 };
+
+    /**
+     * A benchmarked operation. The returned value is consumed so the JIT can't remove the work.
+     */
+    interface Operation {
+        long run();
+    }
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> parameters = new ArrayList<String>();
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private long sink;
+
+    public BackoffBenchmark() {
+        final myBackoff simulator = new myBackoff();
+        final Random rnd = new Random(ParallelSweep.DEFAULT_SEED);
+        IBackoffProtocol[] protocols = {
+                new LinearBackoff(),
+                new BinaryExponentialBackoff(),
+                new TrinaryExponentialBackoff(),
+                new LogLogBackoff() };
+
+        for (final int windowSize : WINDOW_SIZES) {
+            for (final int devices : DEVICE_COUNTS) {
+                String params = "windowSize=" + windowSize + ",devices=" + devices;
+                final Window window = new Window(windowSize, rnd);
+                add("Window.takeRandomSlotWithinWindow", params, new Operation() {
+                    public long run() {
+                        window.reset(windowSize);
+                        for (int device = 0; device < devices; device++) {
+                            window.takeRandomSlotWithinWindow();
+                        }
+                        return window.getLargestTakenSlot();
+                    }
+                });
+                final Window filled = new Window(windowSize, rnd);
+                for (int device = 0; device < devices; device++) {
+                    filled.takeRandomSlotWithinWindow();
+                }
+                add("Window.getEligibleSlots", params, new Operation() {
+                    public long run() {
+                        return filled.getEligibleSlots();
+                    }
+                });
+                add("Window.sampleOccupancy", params, new Operation() {
+                    public long run() {
+                        window.reset(windowSize);
+                        window.sampleOccupancy(devices);
+                        return window.getEligibleSlots() + window.getLargestTakenSlot();
+                    }
+                });
+            }
+        }
+
+        for (final IBackoffProtocol bp : protocols) {
+            String protocol = bp.getClass().getSimpleName();
+            for (final int windowSize : WINDOW_SIZES) {
+                String params = "windowSize=" + windowSize;
+                add(protocol + ".nextWindowSize", params, new Operation() {
+                    public long run() {
+                        return bp.nextWindowSize(windowSize);
+                    }
+                });
+                final Window window = new Window(windowSize, rnd);
+                add(protocol + ".nextWindow", params, new Operation() {
+                    public long run() {
+                        return bp.nextWindow(window).getNumSlots();
+                    }
+                });
+            }
+            final int initialWindowSize = bp.getInitialWindowSize();
+            final Window window = new Window(initialWindowSize, rnd);
+            for (final int devices : DEVICE_COUNTS) {
+                add(protocol + ".trial", "devices=" + devices, new Operation() {
+                    public long run() {
+                        return simulator.simulateTrial(bp, initialWindowSize, devices, window);
+                    }
+                });
+            }
+        }
+    }
+
+    private void add(String name, String params, Operation operation) {
+        names.add(name);
+        parameters.add(params);
+        operations.add(operation);
+    }
+
+    /**
+     * Run all benchmarks whose name contains the filter
+     * @param filter substring of benchmark names, empty for all
+     * @param writer destination of the results
+     * @return measured ns/op and error keyed by benchmark name and parameters
+     */
+    public Map<String, double[]> run(String filter, PrintWriter writer) {
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        writeHeader(writer, 1);
+        for (int i = 0; i < operations.size(); i++) {
+            if (!names.get(i).contains(filter)) {
+                continue;
+            }
+            Operation operation = operations.get(i);
+            long opsPerIteration = calibrate(operation);
+            for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++) {
+                measure(operation, opsPerIteration);
+            }
+            double sum = 0, squaredSum = 0;
+            for (int iteration = 0; iteration < MEASUREMENT_ITERATIONS; iteration++) {
+                double nanosPerOp = measure(operation, opsPerIteration);
+                sum += nanosPerOp;
+                squaredSum += nanosPerOp * nanosPerOp;
+            }
+            double mean = sum / MEASUREMENT_ITERATIONS;
+            double error = Math.sqrt(Math.max(0, squaredSum / MEASUREMENT_ITERATIONS - mean * mean));
+            results.put(names.get(i) + "\t" + parameters.get(i), new double[] { mean, error });
+            writer.printf("%s\t%s\t%.3f\t%.3f%n", names.get(i), parameters.get(i), mean, error);
+            writer.flush();
+        }
+        // Keep the sink alive
+        if (sink == 42) {
+            System.out.println();
+        }
+        return results;
+    }
+
+    /**
+     * Run the benchmarks whose name contains the filter in separate JVMs, one after the other, and
+     * pool their measurement iterations
+     * @param filter substring of benchmark names, empty for all
+     * @param forks number of JVMs
+     * @param writer destination of the pooled results
+     * @return pooled ns/op and error keyed by benchmark name and parameters
+     * @throws IOException if a fork fails
+     */
+    public static Map<String, double[]> runForks(String filter, int forks, PrintWriter writer)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // Sums of the means and of the mean squares of the forks
+        Map<String, double[]> sums = new LinkedHashMap<String, double[]>();
+        for (int fork = 0; fork < forks; fork++) {
+            File output = File.createTempFile("benchmark", ".txt");
+            try {
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(BackoffBenchmark.class.getName());
+                command.add("--forks");
+                command.add("1");
+                command.add("--filter");
+                command.add(filter);
+                command.add("--output");
+                command.add(output.getPath());
+                int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (status != 0) {
+                    throw new IOException("Benchmark fork " + fork + " exited with status " + status);
+                }
+                for (Map.Entry<String, double[]> result : readResults(output.getPath()).entrySet()) {
+                    double[] sum = sums.get(result.getKey());
+                    if (sum == null) {
+                        sum = new double[2];
+                        sums.put(result.getKey(), sum);
+                    }
+                    double mean = result.getValue()[0];
+                    double error = result.getValue()[1];
+                    sum[0] += mean;
+                    sum[1] += error * error + mean * mean;
+                }
+            } finally {
+                output.delete();
+            }
+        }
+
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        writeHeader(writer, forks);
+        for (Map.Entry<String, double[]> sum : sums.entrySet()) {
+            double mean = sum.getValue()[0] / forks;
+            double error = Math.sqrt(Math.max(0, sum.getValue()[1] / forks - mean * mean));
+            results.put(sum.getKey(), new double[] { mean, error });
+            writer.printf("%s\t%.3f\t%.3f%n", sum.getKey(), mean, error);
+        }
+        writer.flush();
+        return results;
+    }
+
+    private static void writeHeader(PrintWriter writer, int forks) {
+        writer.println("# benchmark\tparameters\tns/op\terror");
+        writer.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors()
+                + " processors, " + forks + " fork(s) of " + WARMUP_ITERATIONS + " warmup and " + MEASUREMENT_ITERATIONS
+                + " measurement iterations");
+    }
+
+    /**
+     * @return number of operations that take about one iteration
+     */
+    private long calibrate(Operation operation) {
+        long ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (long i = 0; i < ops; i++) {
+                sink += operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ITERATION_NANOS / 10) {
+                return Math.max(1, ops * ITERATION_NANOS / Math.max(1, elapsed));
+            }
+            ops *= 2;
+        }
+    }
+
+    private double measure(Operation operation, long ops) {
+        long start = System.nanoTime();
+        for (long i = 0; i < ops; i++) {
+            sink += operation.run();
+        }
+        return (double) (System.nanoTime() - start) / ops;
+    }
+
+    /**
+     * Read a results file written by {@link #run(String, PrintWriter)}
+     * @param path results file
+     * @return ns/op and error keyed by benchmark name and parameters
+     * @throws IOException
+     */
+    public static Map<String, double[]> readResults(String path) throws IOException {
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+            String[] columns = line.split("\t");
+            results.put(columns[0] + "\t" + columns[1], new double[] { Double.parseDouble(columns[2]), Double.parseDouble(columns[3]) });
+        }
+        reader.close();
+        return results;
+    }
+
+    /**
+     * Usage: java BackoffBenchmark [--filter name] [--forks n] [--output file] [--compare baseline-file]
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String filter = "";
+        int forks = DEFAULT_FORKS;
+        String output = null;
+        String baseline = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--filter")) {
+                filter = args[i + 1];
+            } else if (args[i].equals("--forks")) {
+                forks = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--output")) {
+                output = args[i + 1];
+            } else if (args[i].equals("--compare")) {
+                baseline = args[i + 1];
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        PrintWriter writer = output != null ? new PrintWriter(new FileWriter(output, false)) : new PrintWriter(System.out, true);
+        Map<String, double[]> results = forks > 1 ? runForks(filter, forks, writer) : new BackoffBenchmark().run(filter, writer);
+        if (output != null) {
+            writer.close();
+        }
+        if (baseline == null) {
+            return;
+        }
+
+        Map<String, double[]> baselineResults = readResults(baseline);
+        int regressions = 0;
+        for (Map.Entry<String, double[]> result : results.entrySet()) {
+            double[] expected = baselineResults.get(result.getKey());
+            if (expected == null) {
+                continue;
+            }
+            double[] measured = result.getValue();
+            // Differences within the noise of either run are not regressions
+            double change = (measured[0] - measured[1]) / (expected[0] + expected[1]) - 1;
+            if (change > REGRESSION_THRESHOLD) {
+                regressions++;
+                System.out.printf("REGRESSION %s: %.3f +- %.3f ns/op vs %.3f +- %.3f ns/op baseline (+%.0f%% beyond the errors)%n",
+                        result.getKey().replace('\t', ' '), measured[0], measured[1], expected[0], expected[1], change * 100);
+            }
+        }
+        System.out.println(regressions + " regression(s) against " + baseline);
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+}
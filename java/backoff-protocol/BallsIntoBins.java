@@ -0,0 +1,251 @@
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ *
+ * Samplers for throwing balls (devices) uniformly into bins (slots) without throwing them one by one.
+ *
+ * The occupied bins of a window are visited from the top down. For r balls in j bins the largest
+ * occupied bin L satisfies P(L <= k) = (k/j)^r, the number of balls in it is a binomial Bin(r, 1/L)
+ * conditioned on being positive, and the remaining balls are uniform over the L - 1 bins below. This
+ * is exact and costs one step per occupied bin instead of one per ball plus one per bin.
+ *
+ * When the window is crowded enough that the number of singleton bins has a large variance, even one
+ * step per occupied bin is too slow for millions of devices. The singleton count is then drawn from a
+ * normal distribution with its exact mean and variance, which makes a window O(1).
+ */
+public class BallsIntoBins {
+    // Below this mean a binomial is sampled by inversion from 0, above it by searching outwards from the mode
+    private static final double INVERSION_MEAN_LIMIT = 10;
+    // Singleton counts with at least this variance are drawn from the normal approximation
+    static final double NORMAL_SINGLETONS_MIN_VARIANCE = 100;
+    private static final int LOG_FACTORIAL_TABLE_SIZE = 256;
+    private static final double[] LOG_FACTORIAL = new double[LOG_FACTORIAL_TABLE_SIZE];
+
+    static {
+        for (int i = 1; i < LOG_FACTORIAL_TABLE_SIZE; i++) {
+            LOG_FACTORIAL[i] = LOG_FACTORIAL[i - 1] + Math.log(i);
+        }
+    }
+
+    /**
+     * Variance of the number of bins holding exactly one ball. With S the number of singletons,
+     * E[S] = n(1 - 1/m)^(n-1) and E[S(S-1)] = n(n-1)(1 - 1/m)(1 - 2/m)^(n-2).
+     * @param balls number of balls
+     * @param bins number of bins, at least 2
+     * @return variance of the singleton count
+     */
+    public static double singletonVariance(int balls, int bins) {
+        double n = balls, m = bins;
+        double mean = singletonMean(balls, bins);
+        double pairs = n * (n - 1) * (1 - 1 / m) * Math.exp((n - 2) * Math.log1p(-2 / m));
+        return Math.max(0, mean + pairs - mean * mean);
+    }
+
+    /**
+     * @param balls number of balls
+     * @param bins number of bins
+     * @return expected number of bins holding exactly one ball
+     */
+    public static double singletonMean(int balls, int bins) {
+        return balls * Math.exp((balls - 1) * Math.log1p(-1.0 / bins));
+    }
+
+    /**
+     * Number of bins holding exactly one ball, drawn from the normal approximation. Only accurate
+     * when {@link #singletonVariance(int, int)} is at least {@link #NORMAL_SINGLETONS_MIN_VARIANCE}.
+     * @param rnd random stream
+     * @param balls number of balls
+     * @param bins number of bins, at least 2
+     * @return number of singleton bins
+     */
+    public static int normalSingletons(Random rnd, int balls, int bins) {
+        double mean = singletonMean(balls, bins);
+        double sd = Math.sqrt(singletonVariance(balls, bins));
+        long singletons = Math.round(mean + sd * rnd.nextGaussian());
+        singletons = Math.max(0, Math.min(singletons, Math.min(balls, bins)));
+        if (balls - singletons == 1) {
+            singletons--; // A lone ball left over would be another singleton
+        }
+        return (int) singletons;
+    }
+
+    /**
+     * Largest occupied bin after throwing balls into bins.
+     * @param rnd random stream
+     * @param balls number of balls, at least 1
+     * @param bins number of bins, at least 1
+     * @return largest occupied bin, between 1 and bins
+     */
+    public static int largestOccupiedBin(Random rnd, int balls, int bins) {
+        assert balls > 0 && bins > 0;
+        double u = 1.0 - rnd.nextDouble(); // (0, 1]
+        int largest = (int) Math.ceil(bins * Math.pow(u, 1.0 / balls));
+        return Math.max(1, Math.min(bins, largest));
+    }
+
+    /**
+     * Sample Bin(n, p) conditioned on being at least 1.
+     * @param rnd random stream
+     * @param n number of trials, at least 1
+     * @param p success probability in (0, 1)
+     * @return number of successes, between 1 and n
+     */
+    public static int positiveBinomial(Random rnd, int n, double p) {
+        assert n > 0 && p > 0 && p < 1;
+        if (n * p >= INVERSION_MEAN_LIMIT) {
+            // P(0) < e^-10, rejection almost never happens
+            int k;
+            do {
+                k = binomial(rnd, n, p);
+            } while (k == 0);
+            return k;
+        }
+        double logQ = Math.log1p(-p);
+        double u = rnd.nextDouble() * -Math.expm1(n * logQ); // scaled by P(k >= 1)
+        double f = n * p * Math.exp((n - 1) * logQ); // P(k = 1)
+        double ratio = p / (1 - p);
+        int k = 1;
+        while (u > f && k < n) {
+            u -= f;
+            f *= (double) (n - k) / (k + 1) * ratio;
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Sample Bin(n, p) by inversion. For large means the search starts at the mode and
+     * alternates outwards, so it takes O(sqrt(np)) steps instead of O(np).
+     * @param rnd random stream
+     * @param n number of trials
+     * @param p success probability in (0, 1)
+     * @return number of successes
+     */
+    public static int binomial(Random rnd, int n, double p) {
+        assert n >= 0 && p > 0 && p < 1;
+        double q = 1 - p;
+        double u = rnd.nextDouble();
+        if (n * p < INVERSION_MEAN_LIMIT) {
+            double f = Math.exp(n * Math.log1p(-p));
+            int k = 0;
+            while (u > f && k < n) {
+                u -= f;
+                f *= (double) (n - k) / (k + 1) * p / q;
+                k++;
+            }
+            return k;
+        }
+
+        int mode = (int) ((n + 1) * p);
+        if (mode > n) {
+            mode = n;
+        }
+        double fMode = Math.exp(logFactorial(n) - logFactorial(mode) - logFactorial(n - mode)
+                + mode * Math.log(p) + (n - mode) * Math.log1p(-p));
+        if (u <= fMode) {
+            return mode;
+        }
+        u -= fMode;
+        int lo = mode, hi = mode;
+        double fLo = fMode, fHi = fMode;
+        while (lo > 0 || hi < n) {
+            if (hi < n) {
+                fHi *= (double) (n - hi) / (hi + 1) * p / q;
+                hi++;
+                if (u <= fHi) {
+                    return hi;
+                }
+                u -= fHi;
+            }
+            if (lo > 0) {
+                fLo *= (double) lo / (n - lo + 1) * q / p;
+                lo--;
+                if (u <= fLo) {
+                    return lo;
+                }
+                u -= fLo;
+            }
+            if (fHi < fMode * 1e-17 && fLo < fMode * 1e-17) {
+                break; // Only rounding error is left in u
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * @param k non negative integer
+     * @return ln(k!)
+     */
+    public static double logFactorial(int k) {
+        if (k < LOG_FACTORIAL_TABLE_SIZE) {
+            return LOG_FACTORIAL[k];
+        }
+        // Stirling series, the error is far below double precision for k >= 256
+        double x = k;
+        return (x + 0.5) * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI) + 1 / (12 * x) - 1 / (360 * x * x * x);
+    }
+
+    /**
+     * Cross-validate {@link Window#sampleOccupancy(int)} against the per-device path: compares the mean
+     * of eligible slots and largest taken slot per window, and the mean latency of whole trials.
+     * @param args
+     */
+    public static void main(String[] args) {
+        final int windows = 20000;
+        int[][] configs = { { 5, 100 }, { 100, 100 }, { 100, 10 }, { 1000, 3 }, { 3000, 2000 }, { 10, 100000 },
+                { 20000, 20000 }, { 5000, 1000000 } };
+        Random rnd = new Random(42);
+        Window exact = new Window(1, rnd);
+        Window sampled = new Window(1, rnd);
+        System.out.println("devices\tslots\texact eligible\tsampled eligible\texact largest\tsampled largest");
+        for (int[] config : configs) {
+            int devices = config[0], slots = config[1];
+            double[] eligible = new double[4], largest = new double[4]; // sum/sum of squares for exact then sampled
+            for (int i = 0; i < windows; i++) {
+                exact.reset(slots);
+                for (int device = 0; device < devices; device++) {
+                    exact.takeRandomSlotWithinWindow();
+                }
+                sampled.reset(slots);
+                sampled.sampleOccupancy(devices);
+                accumulate(eligible, 0, exact.getEligibleSlots());
+                accumulate(eligible, 2, sampled.getEligibleSlots());
+                accumulate(largest, 0, exact.getLargestTakenSlot());
+                accumulate(largest, 2, sampled.getLargestTakenSlot());
+            }
+            System.out.printf("%d\t%d\t%.3f\t%.3f\t%.3f\t%.3f%n", devices, slots,
+                    eligible[0] / windows, eligible[2] / windows, largest[0] / windows, largest[2] / windows);
+            assert Math.abs(zScore(eligible, windows, windows)) < 5 : "eligible slots differ";
+            assert Math.abs(zScore(largest, windows, windows)) < 5 : "largest taken slot differs";
+        }
+
+        final int trials = 300;
+        IBackoffProtocol[] protocols = { new LinearBackoff(), new BinaryExponentialBackoff(), new LogLogBackoff() };
+        myBackoff exactSimulator = new myBackoff(1000);
+        myBackoff sampledSimulator = new myBackoff(1000, true);
+        for (IBackoffProtocol bp : protocols) {
+            double[] latency = new double[4];
+            int initialWindowSize = bp.getInitialWindowSize();
+            for (int i = 0; i < trials; i++) {
+                accumulate(latency, 0, exactSimulator.simulateTrial(bp, initialWindowSize, 1000, exact));
+                accumulate(latency, 2, sampledSimulator.simulateTrial(bp, initialWindowSize, 1000, sampled));
+            }
+            System.out.printf("%s: exact latency %.1f, sampled latency %.1f%n", bp.getClass().getSimpleName(),
+                    latency[0] / trials, latency[2] / trials);
+            assert Math.abs(zScore(latency, trials, trials)) < 5 : "trial latency differs";
+        }
+    }
+
+    private static void accumulate(double[] sums, int offset, double value) {
+        sums[offset] += value;
+        sums[offset + 1] += value * value;
+    }
+
+    private static double zScore(double[] sums, int n1, int n2) {
+        double mean1 = sums[0] / n1, mean2 = sums[2] / n2;
+        double var1 = sums[1] / n1 - mean1 * mean1, var2 = sums[3] / n2 - mean2 * mean2;
+        double se = Math.sqrt(var1 / n1 + var2 / n2);
+        return se == 0 ? 0 : (mean1 - mean2) / se;
+    }
+}
@@ -8,12 +8,26 @@
  * Implementation of binary exponential backoff protocol
  */
 public class BinaryExponentialBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
     
     @Override
-    public Window nextWindow(Window w) {
-        assert w != null;
-        int nextWindowSize = w.getNumSlots()*2;
-        return new Window(nextWindowSize);
+    public String getName() {
+        return "binary";
+    }
+    
+    @Override
+    public int getInitialWindowSize() {
+        return INITIAL_WINDOW_SIZE;
+    }
+    
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return numSlots*2;
+    }
+    
+    @Override
+    public String toString() {
+        return getName() + "(initial=" + getInitialWindowSize() + ")";
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,32 @@
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ * 
+ * Bursty arrivals: bursts arrive as a Poisson process and every device of a burst arrives at
+ * the same instant. Burst sizes are geometric, so the long run arrival rate is burstRate * meanBurstSize.
+ */
+public class BurstyArrival implements IArrivalProcess {
+    private final double burstRate; // Expected bursts per slot
+    private final double meanBurstSize;
+    private int remainingInBurst;
+    
+    public BurstyArrival(double rate, double meanBurstSize) {
+        assert rate > 0 && meanBurstSize >= 1;
+        this.burstRate = rate / meanBurstSize;
+        this.meanBurstSize = meanBurstSize;
+    }
+    
+    @Override
+    public double nextArrival(double now, Random rnd) {
+        if (remainingInBurst > 0) {
+            remainingInBurst--;
+            return now;
+        }
+        // Geometric burst size on {1, 2, ...} with the requested mean
+        double p = 1.0 / meanBurstSize;
+        int burstSize = p >= 1 ? 1 : 1 + (int) (Math.log(1.0 - rnd.nextDouble()) / Math.log1p(-p));
+        remainingInBurst = burstSize - 1;
+        return now - Math.log(1.0 - rnd.nextDouble()) / burstRate;
+    }
+}
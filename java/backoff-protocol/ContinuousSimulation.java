@@ -0,0 +1,253 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ *
+ * Discrete-event simulation of a slotted channel with devices arriving continuously, as opposed to
+ * {@link myBackoff#transmit(IBackoffProtocol, java.io.PrintWriter)} where all devices start together.
+ *
+ * Every device runs its own instance of the backoff: on arrival it picks a random slot within its
+ * initial window, starting at the next slot. A slot with exactly one transmission delivers that device.
+ * On a collision every device involved asks the protocol for its next window and picks a slot in it,
+ * starting after the collided slot. Idle slots are skipped by jumping to the next event.
+ *
+ * Device state lives in pooled primitive arrays indexed by device id and ids are recycled, so memory
+ * is bounded by the largest backlog rather than by the length of the horizon.
+ */
+public class ContinuousSimulation {
+    // Windows are capped so that exponential protocols can't overflow int during a long horizon
+    final static int MAXIMUM_WINDOW_SIZE = 1 << 24;
+    final static int DEFAULT_MAXIMUM_BACKLOG = 1 << 20;
+
+    private final IBackoffProtocol bp;
+    private final int initialWindowSize;
+    private final IArrivalProcess arrivals;
+    private final Random slotGenerator;
+    private final int maximumBacklog;
+
+    private final EventQueue transmissions = new EventQueue();
+    // Per device state, indexed by device id
+    private int[] windowSizes = new int[64];
+    private long[] arrivalSlots = new long[64];
+    private int[] freeIds = new int[64];
+    private int numFreeIds;
+    private int numIds;
+    // Devices transmitting in the slot being resolved
+    private int[] contenders = new int[16];
+
+    // Statistics
+    private long slots;
+    private long arrived;
+    private long dropped;
+    private long delivered;
+    private long busySlots;
+    private long collisionSlots;
+    private long totalLatency;
+    private double totalSquaredLatency;
+    private long maximumLatency;
+
+    public ContinuousSimulation(IBackoffProtocol bp, int initialWindowSize, IArrivalProcess arrivals, Random slotGenerator) {
+        this(bp, initialWindowSize, arrivals, slotGenerator, DEFAULT_MAXIMUM_BACKLOG);
+    }
+
+    /**
+     * @param bp backoff protocol run by every device
+     * @param initialWindowSize window a device starts with when it arrives
+     * @param arrivals arrival process of new devices
+     * @param slotGenerator random stream for arrivals and slot choices
+     * @param maximumBacklog devices arriving while this many are backlogged are dropped
+     * @throws IllegalArgumentException if the protocol needs more than its window size, see
+     * {@link IBackoffProtocol#dependsOnSizeOnly()}
+     */
+    public ContinuousSimulation(IBackoffProtocol bp, int initialWindowSize, IArrivalProcess arrivals, Random slotGenerator,
+            int maximumBacklog) {
+        if (!bp.dependsOnSizeOnly()) {
+            // Each device backs off on its own, there is no shared window to take the round or the collisions from
+            throw new IllegalArgumentException("Protocol " + bp.getName() + " needs windows shared by all devices"
+                    + " and can't run in a continuous simulation");
+        }
+        this.bp = bp;
+        this.initialWindowSize = initialWindowSize;
+        this.arrivals = arrivals;
+        this.slotGenerator = slotGenerator;
+        this.maximumBacklog = maximumBacklog;
+    }
+
+    /**
+     * Simulate slots [1, horizon]. Devices still backlogged at the horizon are not delivered.
+     * @param horizon number of slots to simulate
+     */
+    public void run(long horizon) {
+        double nextArrival = arrivals.nextArrival(0, slotGenerator);
+        while (true) {
+            long nextSlot = transmissions.isEmpty() ? Long.MAX_VALUE : transmissions.peekKey();
+            // A device arriving at time t transmits at slot floor(t) + 1 at the earliest,
+            // so it has to be scheduled before any slot later than t is resolved
+            if (nextArrival < nextSlot && nextArrival < horizon) {
+                arrive((long) nextArrival);
+                nextArrival = arrivals.nextArrival(nextArrival, slotGenerator);
+                continue;
+            }
+            if (nextSlot > horizon) {
+                break;
+            }
+            resolveSlot(nextSlot);
+        }
+        slots = horizon;
+    }
+
+    private void arrive(long slot) {
+        arrived++;
+        if (transmissions.size() >= maximumBacklog) {
+            dropped++;
+            return;
+        }
+        int device = allocateDevice();
+        windowSizes[device] = initialWindowSize;
+        arrivalSlots[device] = slot;
+        schedule(device, slot);
+    }
+
+    private void resolveSlot(long slot) {
+        int numContenders = 0;
+        while (!transmissions.isEmpty() && transmissions.peekKey() == slot) {
+            if (numContenders == contenders.length) {
+                contenders = Arrays.copyOf(contenders, numContenders * 2);
+            }
+            contenders[numContenders++] = transmissions.poll();
+        }
+        busySlots++;
+        if (numContenders == 1) {
+            int device = contenders[0];
+            long latency = slot - arrivalSlots[device];
+            delivered++;
+            totalLatency += latency;
+            totalSquaredLatency += (double) latency * latency;
+            if (latency > maximumLatency) {
+                maximumLatency = latency;
+            }
+            freeIds[numFreeIds++] = device;
+            return;
+        }
+        collisionSlots++;
+        for (int i = 0; i < numContenders; i++) {
+            int device = contenders[i];
+            int nextWindowSize = bp.nextWindowSize(windowSizes[device]);
+            windowSizes[device] = nextWindowSize > 0 && nextWindowSize < MAXIMUM_WINDOW_SIZE ? nextWindowSize : MAXIMUM_WINDOW_SIZE;
+            schedule(device, slot);
+        }
+    }
+
+    /**
+     * Pick a slot within the device's window, starting right after the given slot
+     */
+    private void schedule(int device, long afterSlot) {
+        transmissions.add(afterSlot + 1 + slotGenerator.nextInt(windowSizes[device]), device);
+    }
+
+    private int allocateDevice() {
+        if (numFreeIds > 0) {
+            return freeIds[--numFreeIds];
+        }
+        if (numIds == windowSizes.length) {
+            int capacity = numIds * 2;
+            windowSizes = Arrays.copyOf(windowSizes, capacity);
+            arrivalSlots = Arrays.copyOf(arrivalSlots, capacity);
+            freeIds = Arrays.copyOf(freeIds, capacity);
+        }
+        return numIds++;
+    }
+
+    public long getSlots() {
+        return slots;
+    }
+
+    public long getArrived() {
+        return arrived;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public int getBacklog() {
+        return transmissions.size();
+    }
+
+    /**
+     * @return delivered devices per slot
+     */
+    public double getThroughput() {
+        return slots == 0 ? 0 : (double) delivered / slots;
+    }
+
+    /**
+     * @return fraction of slots in which at least one device transmitted
+     */
+    public double getUtilisation() {
+        return slots == 0 ? 0 : (double) busySlots / slots;
+    }
+
+    /**
+     * @return fraction of slots wasted by collisions
+     */
+    public double getCollisionRate() {
+        return slots == 0 ? 0 : (double) collisionSlots / slots;
+    }
+
+    /**
+     * @return mean number of slots from arrival to delivery
+     */
+    public double getMeanLatency() {
+        return delivered == 0 ? 0 : (double) totalLatency / delivered;
+    }
+
+    public double getLatencyStandardDeviation() {
+        if (delivered == 0) {
+            return 0;
+        }
+        double mean = getMeanLatency();
+        return Math.sqrt(Math.max(0, totalSquaredLatency / delivered - mean * mean));
+    }
+
+    public long getMaximumLatency() {
+        return maximumLatency;
+    }
+
+    /**
+     * Usage: java ContinuousSimulation <protocol> <arrival-rate> <horizon> [mean-burst-size] [seed]
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java ContinuousSimulation <protocol> <arrival-rate> <horizon> [mean-burst-size] [seed]");
+            return;
+        }
+        IBackoffProtocol bp = ProtocolRegistry.getDefault().get(args[0]);
+        double rate = Double.parseDouble(args[1]);
+        long horizon = Long.parseLong(args[2]);
+        double meanBurstSize = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : ParallelSweep.DEFAULT_SEED;
+
+        IArrivalProcess arrivals = meanBurstSize > 1 ? new BurstyArrival(rate, meanBurstSize) : new PoissonArrival(rate);
+        int initialWindowSize = bp.getInitialWindowSize();
+        ContinuousSimulation simulation = new ContinuousSimulation(bp, initialWindowSize, arrivals, new Random(seed));
+        long start = System.nanoTime();
+        simulation.run(horizon);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Slots simulated     : " + simulation.getSlots());
+        System.out.println("Devices arrived     : " + simulation.getArrived() + " (" + simulation.getDropped() + " dropped)");
+        System.out.println("Devices delivered   : " + simulation.getDelivered() + " (" + simulation.getBacklog() + " backlogged)");
+        System.out.printf("Throughput          : %.4f devices/slot%n", simulation.getThroughput());
+        System.out.printf("Channel utilisation : %.4f (%.4f collisions)%n", simulation.getUtilisation(), simulation.getCollisionRate());
+        System.out.printf("Latency             : mean %.2f, sd %.2f, max %d slots%n", simulation.getMeanLatency(),
+                simulation.getLatencyStandardDeviation(), simulation.getMaximumLatency());
+        System.out.printf("Wall clock          : %.2f s%n", seconds);
+    }
+}
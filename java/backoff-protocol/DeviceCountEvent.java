@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author Anh Do
+ *
+ * JFR event spanning the trials of one device count of a protocol in
+ * {@link myBackoff#transmit(IBackoffProtocol, java.io.PrintWriter, LatencyResultFile)}
+ */
+@Name("backoff.DeviceCount")
+@Label("Device Count")
+@Category("Backoff Simulator")
+@Description("Trials of one device count of a protocol sweep")
+@StackTrace(false)
+public class DeviceCountEvent extends jdk.jfr.Event {
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Device Count")
+    int devices;
+
+    @Label("Trials")
+    long trials;
+
+    @Label("Mean Latency")
+    double meanLatency;
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+
+/**
+ * @author Anh Do
+ *
+ * Priority queue of events keyed by time. Keys and payloads are kept in parallel primitive arrays
+ * forming a binary min-heap, so adding and polling events never allocates once the queue has grown
+ * to the largest backlog of the simulation.
+ */
+public class EventQueue {
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public EventQueue() {
+        this(64);
+    }
+
+    public EventQueue(int initialCapacity) {
+        keys = new long[Math.max(1, initialCapacity)];
+        values = new int[keys.length];
+    }
+
+    /**
+     * Schedule an event
+     * @param key time of the event
+     * @param value payload, e.g. a device id
+     */
+    public void add(long key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int i = size++;
+        // Sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[i] = keys[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * @return time of the earliest event
+     */
+    public long peekKey() {
+        assert size > 0;
+        return keys[0];
+    }
+
+    /**
+     * Remove the earliest event
+     * @return payload of the earliest event
+     */
+    public int poll() {
+        assert size > 0;
+        int result = values[0];
+        size--;
+        long key = keys[size];
+        int value = values[size];
+        // Sift down the last element from the root
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            values[i] = values[child];
+            i = child;
+        }
+        keys[i] = key;
+        values[i] = value;
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public static void main(String[] args) {
+        EventQueue queue = new EventQueue(1);
+        long[] times = { 5, 3, 9, 1, 3, 7 };
+        for (int i = 0; i < times.length; i++) {
+            queue.add(times[i], i);
+        }
+        long previous = Long.MIN_VALUE;
+        while (!queue.isEmpty()) {
+            long time = queue.peekKey();
+            int event = queue.poll();
+            assert time >= previous && times[event] == time;
+            previous = time;
+            System.out.println("Event " + event + " at " + time);
+        }
+    }
+}
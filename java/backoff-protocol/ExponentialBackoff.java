@@ -0,0 +1,57 @@
+/**
+ * @author Anh Do
+ *
+ * Implementation of exponential backoff protocol with any growth factor, e.g. 2 for
+ * {@link BinaryExponentialBackoff} and 3 for {@link TrinaryExponentialBackoff}. Not registered
+ * as those two are; used to search growth factors, see {@link ParameterSearch}.
+ */
+public class ExponentialBackoff implements IBackoffProtocol {
+    private final double growth;
+    private final int initialWindowSize;
+
+    /**
+     * @param growth ratio between consecutive windows, more than 1
+     * @param initialWindowSize size of the first window
+     */
+    public ExponentialBackoff(double growth, int initialWindowSize) {
+        if (growth <= 1 || initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid exponential backoff: growth=" + growth + " initial=" + initialWindowSize);
+        }
+        this.growth = growth;
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    @Override
+    public String getName() {
+        return "exponential";
+    }
+
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(numSlots + 1L, (long) Math.ceil(numSlots * growth)));
+    }
+
+    public double getGrowth() {
+        return growth;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(growth=" + growth + ", initial=" + initialWindowSize + ")";
+    }
+
+    public static void main(String[] args) {
+        Window w = new Window(4);
+        System.out.println("Current window size = " + w.getNumSlots());
+        ExponentialBackoff eb = new ExponentialBackoff(1.5, 4);
+        Window nextW = eb.nextWindow(w);
+        assert nextW.getNumSlots() == 6;
+        assert new ExponentialBackoff(2, 2).nextWindowSize(8) == new BinaryExponentialBackoff().nextWindowSize(8);
+        System.out.println("Next window size = " + nextW.getNumSlots());
+    }
+}
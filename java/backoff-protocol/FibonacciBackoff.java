@@ -0,0 +1,67 @@
+/**
+ * @author Anh Do
+ *
+ * Implementation of Fibonacci backoff protocol: each window is the sum of the two previous ones,
+ * i.e. windows grow by the golden ratio, more slowly than binary exponential backoff.
+ */
+public class FibonacciBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
+    final static double GOLDEN_RATIO = (1 + Math.sqrt(5)) / 2;
+
+    private final int initialWindowSize;
+
+    public FibonacciBackoff() {
+        this(INITIAL_WINDOW_SIZE);
+    }
+
+    /**
+     * @param initialWindowSize size of the first window
+     */
+    public FibonacciBackoff(int initialWindowSize) {
+        if (initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid Fibonacci backoff: initial=" + initialWindowSize);
+        }
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    @Override
+    public String getName() {
+        return "fibonacci";
+    }
+
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Rounding the window times the golden ratio gives the next Fibonacci number exactly, so the
+     * previous window doesn't have to be kept
+     */
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(numSlots + 1L, Math.round(numSlots * GOLDEN_RATIO)));
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(initial=" + initialWindowSize + ")";
+    }
+
+    public static void main(String[] args) {
+        Window w = new Window(2);
+        System.out.println("Current window size = " + w.getNumSlots());
+        FibonacciBackoff fb = new FibonacciBackoff();
+        Window nextW = fb.nextWindow(w);
+        assert nextW.getNumSlots() == 3;
+        int previous = 2;
+        int current = 3;
+        for (int i = 0; i < 40; i++) {
+            int next = fb.nextWindowSize(current);
+            assert next == previous + current;
+            previous = current;
+            current = next;
+        }
+        System.out.println("Next window size = " + nextW.getNumSlots());
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.Random;
+
+/**
+ * 
+ * @author Anh Do
+ *
+ */
+public interface IArrivalProcess {
+    /**
+     * Get time of the next device arrival. Time is measured in slots and may be fractional.
+     * @param now time of the previous arrival
+     * @param rnd random stream of the simulation
+     * @return time of the next arrival, not earlier than now
+     */
+    public double nextArrival(double now, Random rnd);
+}
@@ -4,10 +4,54 @@
  *
  */
 public interface IBackoffProtocol {
+    /**
+     * Get name of the protocol, used to look it up in {@link ProtocolRegistry} and to label results
+     * @return short unique name, e.g. "binary"
+     */
+    public String getName();
+    
+    /**
+     * Get size of the first window of a trial
+     * @return initial window size
+     */
+    public int getInitialWindowSize();
+    
+    /**
+     * Get size of the next window. Must not allocate, it is called once per window in the
+     * simulation loop.
+     * @param numSlots size of current window
+     * @return size of next window
+     */
+    public int nextWindowSize(int numSlots);
+    
+    /**
+     * Get size of the next window from the current window once its devices have contended, for
+     * protocols that depend on more than its size, e.g. its round or its collisions. Must not allocate.
+     * @param w current window
+     * @return size of next window
+     */
+    public default int nextWindowSize(Window w) {
+        return nextWindowSize(w.getNumSlots());
+    }
+    
+    /**
+     * Whether the next window only depends on the size of the current one, so that
+     * {@link #nextWindowSize(int)} gives the same windows as {@link #nextWindowSize(Window)}.
+     * Protocols that need the round or the collisions of a shared window can't run per device,
+     * e.g. in {@link ContinuousSimulation}.
+     * @return true if the window size is enough
+     */
+    public default boolean dependsOnSizeOnly() {
+        return true;
+    }
+    
     /**
      * Get next window
      * @param w current window
      * @return next window
      */
-    public Window nextWindow(Window w);
+    public default Window nextWindow(Window w) {
+        assert w != null;
+        return new Window(nextWindowSize(w), w.getSlotGenerator(), w.getRound() + 1);
+    }
 }
@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Anh Do
+ *
+ * Compact binary file of sweep results, one fixed size record per (protocol, device count) written
+ * through a 64 KiB buffer. Protocol names are declared once and records refer to them by index.
+ *
+ * Layout: magic, version, then a sequence of
+ * 'P' index name                                                                   (protocol declaration)
+ * 'R' index devices count mean variance min max p50 p99 p999                       (result)
+ */
+public class LatencyResultFile {
+    final static int MAGIC = 0x424B4F46; // "BKOF"
+    final static int VERSION = 1;
+    private static final byte PROTOCOL_RECORD = 'P';
+    private static final byte RESULT_RECORD = 'R';
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> protocolIndexes = new HashMap<String, Integer>();
+
+    public LatencyResultFile(String path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * @param path results file
+     * @param append add records to an existing file instead of starting a new one
+     * @throws IOException
+     */
+    public LatencyResultFile(String path, boolean append) throws IOException {
+        if (append) {
+            // Protocol declarations are not repeated across files, so reload them
+            for (Result result : read(path)) {
+                protocolIndexes.put(result.protocol, result.protocolIndex);
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, append), BUFFER_SIZE));
+        if (!append) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+    }
+
+    /**
+     * Append the statistics of one sweep point
+     * @param protocol protocol name
+     * @param devices number of devices
+     * @param stats latency statistics of the point
+     * @throws IOException
+     */
+    public void write(String protocol, int devices, LatencyStatistics stats) throws IOException {
+        Integer index = protocolIndexes.get(protocol);
+        if (index == null) {
+            index = protocolIndexes.size();
+            protocolIndexes.put(protocol, index);
+            out.writeByte(PROTOCOL_RECORD);
+            out.writeShort(index);
+            out.writeUTF(protocol);
+        }
+        out.writeByte(RESULT_RECORD);
+        out.writeShort(index);
+        out.writeInt(devices);
+        out.writeLong(stats.getCount());
+        out.writeDouble(stats.getMean());
+        out.writeDouble(stats.getVariance());
+        out.writeLong(stats.getMin());
+        out.writeLong(stats.getMax());
+        out.writeLong(stats.getPercentile(0.5));
+        out.writeLong(stats.getPercentile(0.99));
+        out.writeLong(stats.getPercentile(0.999));
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * One record of a results file
+     */
+    public static class Result {
+        public String protocol;
+        int protocolIndex;
+        public int devices;
+        public long count;
+        public double mean;
+        public double variance;
+        public long min;
+        public long max;
+        public long p50;
+        public long p99;
+        public long p999;
+
+        @Override
+        public String toString() {
+            return protocol + "," + devices + "," + count + "," + mean + "," + variance + "," + min + "," + max + ","
+                    + p50 + "," + p99 + "," + p999;
+        }
+    }
+
+    /**
+     * Load every result of a file
+     * @param path results file
+     * @return results in the order they were written
+     * @throws IOException
+     */
+    public static List<Result> read(String path) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        List<String> protocols = new ArrayList<String>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a latency results file: " + path);
+            }
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == PROTOCOL_RECORD) {
+                    int index = in.readShort();
+                    while (protocols.size() <= index) {
+                        protocols.add(null);
+                    }
+                    protocols.set(index, in.readUTF());
+                } else if (type == RESULT_RECORD) {
+                    Result result = new Result();
+                    result.protocolIndex = in.readShort();
+                    result.protocol = protocols.get(result.protocolIndex);
+                    result.devices = in.readInt();
+                    result.count = in.readLong();
+                    result.mean = in.readDouble();
+                    result.variance = in.readDouble();
+                    result.min = in.readLong();
+                    result.max = in.readLong();
+                    result.p50 = in.readLong();
+                    result.p99 = in.readLong();
+                    result.p999 = in.readLong();
+                    results.add(result);
+                } else {
+                    throw new IOException("Corrupted latency results file: " + path);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    /**
+     * Usage: java LatencyResultFile <results-file>
+     * Print a results file as CSV.
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java LatencyResultFile <results-file>");
+            return;
+        }
+        System.out.println("protocol,devices,count,mean,variance,min,max,p50,p99,p999");
+        for (Result result : read(args[0])) {
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ *
+ * Streaming statistics of latencies: count, mean and variance (Welford's algorithm), min, max and
+ * percentiles. Percentiles come from a log-linear histogram: values below 128 have their own bucket,
+ * larger values share a bucket with values of the same 7 leading bits, so a percentile is within 1/64
+ * of the true value. The histogram only covers the largest value seen, at most 3712 buckets, so memory
+ * stays constant however many trials are added.
+ */
+public class LatencyStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final double[] SMALL_STUDENT_T95 = { 12.706, 4.303, 3.182, 2.776 };
+
+    private long count;
+    private long total; // Exact sum, the running Welford mean is only used for the variance
+    private double mean;
+    private double squaredDeviations; // Sum of squared deviations from the mean
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private long[] buckets = new long[2 * SUB_BUCKETS];
+
+    /**
+     * Add a latency
+     * @param value non negative latency
+     */
+    public void add(long value) {
+        assert value >= 0;
+        count++;
+        total += value;
+        double delta = value - mean;
+        mean += delta / count;
+        squaredDeviations += delta * (value - mean);
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        int index = bucketIndex(value);
+        if (index >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, index + 1);
+        }
+        buckets[index]++;
+    }
+
+    /**
+     * Add all latencies of another accumulator, e.g. one computed on another thread or process
+     * @param other statistics to merge into this one
+     */
+    public void merge(LatencyStatistics other) {
+        if (other.count == 0) {
+            return;
+        }
+        long combined = count + other.count;
+        double delta = other.mean - mean;
+        squaredDeviations += other.squaredDeviations + delta * delta * ((double) count * other.count / combined);
+        mean += delta * other.count / combined;
+        count = combined;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.buckets.length > buckets.length) {
+            buckets = Arrays.copyOf(buckets, other.buckets.length);
+        }
+        for (int i = 0; i < other.buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+    }
+
+    public void clear() {
+        count = 0;
+        total = 0;
+        mean = 0;
+        squaredDeviations = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        Arrays.fill(buckets, 0);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) total / count : 0;
+    }
+
+    /**
+     * @return sample variance, 0 with less than two latencies
+     */
+    public double getVariance() {
+        return count > 1 ? squaredDeviations / (count - 1) : 0;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return half width of the 95% confidence interval of the mean, infinite with less than two latencies
+     */
+    public double getConfidenceHalfWidth() {
+        return confidenceHalfWidth(getVariance(), count);
+    }
+
+    static double confidenceHalfWidth(double variance, long count) {
+        return count > 1 ? studentT95(count - 1) * Math.sqrt(variance / count) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Two sided 95% quantile of Student's t distribution, from the Cornish-Fisher expansion around the
+     * normal quantile, within 1% from 5 degrees of freedom. Exact below.
+     * @param degreesOfFreedom at least 1
+     */
+    static double studentT95(long degreesOfFreedom) {
+        if (degreesOfFreedom < 5) {
+            return SMALL_STUDENT_T95[(int) degreesOfFreedom - 1];
+        }
+        double z = 1.959964;
+        double z3 = z * z * z;
+        double n = degreesOfFreedom;
+        return z + (z3 + z) / (4 * n) + (5 * z3 * z * z + 16 * z3 + 3 * z) / (96 * n * n);
+    }
+
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    public long getMax() {
+        return count > 0 ? max : 0;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return latency below or at which the given fraction of latencies fall, within 1/64
+     */
+    public long getPercentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                long value = bucketMidpoint(i);
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long bucketMidpoint(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    public static void main(String[] args) {
+        Random rnd = new Random(1);
+        LatencyStatistics all = new LatencyStatistics();
+        LatencyStatistics first = new LatencyStatistics();
+        LatencyStatistics second = new LatencyStatistics();
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (1000 * Math.exp(rnd.nextGaussian()));
+            all.add(values[i]);
+            (i % 2 == 0 ? first : second).add(values[i]);
+        }
+        first.merge(second);
+        Arrays.sort(values);
+        double[] quantiles = { 0.5, 0.99, 0.999 };
+        for (double quantile : quantiles) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long estimate = all.getPercentile(quantile);
+            System.out.println("p" + quantile + ": exact " + exact + ", histogram " + estimate);
+            assert Math.abs(estimate - exact) <= exact / SUB_BUCKETS + 1;
+            assert first.getPercentile(quantile) == estimate;
+        }
+        System.out.println("mean " + all.getMean() + ", sd " + all.getStandardDeviation() + ", min " + all.getMin() + ", max " + all.getMax());
+        assert Math.abs(first.getMean() - all.getMean()) < 1e-6 && Math.abs(first.getVariance() / all.getVariance() - 1) < 1e-9;
+    }
+}
@@ -4,13 +4,42 @@
  * Implementation of linear backoff protocol
  */
 public class LinearBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
+    
+    private final int initialWindowSize;
+    
+    public LinearBackoff() {
+        this(INITIAL_WINDOW_SIZE);
+    }
+    
+    /**
+     * @param initialWindowSize size of the first window
+     */
+    public LinearBackoff(int initialWindowSize) {
+        if (initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid linear backoff: initial=" + initialWindowSize);
+        }
+        this.initialWindowSize = initialWindowSize;
+    }
+    
+    @Override
+    public String getName() {
+        return "linear";
+    }
+    
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+    
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return numSlots + 1;
+    }
     
     @Override
-    public Window nextWindow(Window w) {
-        assert w != null;
-        int nextWindowSize = w.getNumSlots() + 1;
-        w = null;
-        return new Window(nextWindowSize);
+    public String toString() {
+        return getName() + "(initial=" + initialWindowSize + ")";
     }
     
     public static void main(String[] args) {
@@ -4,18 +4,48 @@
  * Implementation of log log backoff protocol
  */
 public class LogLogBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 3;
+    
+    private final int initialWindowSize;
+    
+    public LogLogBackoff() {
+        this(INITIAL_WINDOW_SIZE);
+    }
+    
+    /**
+     * @param initialWindowSize size of the first window, at least 3 so that log log of it is positive
+     */
+    public LogLogBackoff(int initialWindowSize) {
+        if (initialWindowSize < 3) {
+            throw new IllegalArgumentException("Invalid log log backoff: initial=" + initialWindowSize);
+        }
+        this.initialWindowSize = initialWindowSize;
+    }
+    
+    @Override
+    public String getName() {
+        return "loglog";
+    }
+    
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
     
     @Override
-    public Window nextWindow(Window w) {
-        assert w != null;
-        int nextWindowSize = (int) ((1 + 1.0/logBaseTwo(logBaseTwo(w.getNumSlots()))) * w.getNumSlots());
-        return new Window(nextWindowSize);
+    public int nextWindowSize(int numSlots) {
+        return (int) ((1 + 1.0/logBaseTwo(logBaseTwo(numSlots))) * numSlots);
     }
     
     public static double logBaseTwo(double a) {
         return Math.log(a)/Math.log(2);
     }
     
+    @Override
+    public String toString() {
+        return getName() + "(initial=" + initialWindowSize + ")";
+    }
+    
     public static void main(String[] args) {
         Window w = new Window(4);
         System.out.println("Current window size = " + w.getNumSlots());
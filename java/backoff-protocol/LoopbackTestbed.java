@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Anh Do
+ *
+ * Contention over real sockets, to check the latencies of {@link myBackoff} against real I/O and
+ * scheduling noise. Every device is a task, a virtual thread when the JVM has them, that picks a slot of
+ * its window, sleeps until that slot and sends a datagram to an arbiter on the loopback interface. The
+ * arbiter assigns each datagram to the slot it was sent in, so a device woken late may land in another
+ * slot than it picked, detects collisions and sends every device its feedback: success, or the start
+ * and size of its next window. Windows are sized by the protocol from the arbiter's view of the channel, a
+ * {@link Window} holding the observed slots, as in the simulator.
+ */
+public class LoopbackTestbed {
+    final static int DEFAULT_SLOT_MICROS = 500;
+    final static int DEFAULT_FROM_DEVICES = 100;
+    final static int DEFAULT_TO_DEVICES = 1000;
+    final static int DEFAULT_STEP = 300;
+    final static int DEFAULT_REPETITIONS = 3;
+    // Trials of the simulator at each device count, to compare with
+    final static int SIMULATED_REPETITIONS = 100;
+    // Time between the feedback of a round and the start of the next one, so every device has it in
+    // time: a few slots plus the time to send the feedback and wake each device
+    final static int FEEDBACK_SLOTS = 4;
+    final static long FEEDBACK_NANOS_PER_DEVICE = 20000;
+    // Time the arbiter waits past the end of a window for datagrams, lost ones count as late
+    final static int GRACE_SLOTS = 20;
+    final static long LOSS_TIMEOUT_NANOS = 100000000;
+    // Stack of a device thread when there are no virtual threads
+    final static long DEVICE_STACK_BYTES = 256 << 10;
+    final static int SOCKET_BUFFER_BYTES = 4 << 20;
+    private final static int TRANSMISSION_BYTES = 20;
+    private final static int FEEDBACK_BYTES = 17;
+
+    /**
+     * Feedback of the arbiter to a device at the end of a round
+     */
+    private static class Feedback {
+        final boolean success;
+        final long nextRoundStart; // System.nanoTime() of the start of the next window
+        final int nextWindowSize;
+
+        Feedback(boolean success, long nextRoundStart, int nextWindowSize) {
+            this.success = success;
+            this.nextRoundStart = nextRoundStart;
+            this.nextWindowSize = nextWindowSize;
+        }
+    }
+
+    /**
+     * Outcome of a trial on the testbed
+     */
+    public static class TrialResult {
+        private final long channelLatency;
+        private final long wallNanos;
+        private final int rounds;
+        private final int driftedTransmissions;
+        private final int lateTransmissions;
+
+        TrialResult(long channelLatency, long wallNanos, int rounds, int driftedTransmissions, int lateTransmissions) {
+            this.channelLatency = channelLatency;
+            this.wallNanos = wallNanos;
+            this.rounds = rounds;
+            this.driftedTransmissions = driftedTransmissions;
+            this.lateTransmissions = lateTransmissions;
+        }
+
+        /**
+         * @return largest observed slot summed over the rounds, the latency {@link myBackoff} simulates
+         */
+        public long getChannelLatency() {
+            return channelLatency;
+        }
+
+        /**
+         * @return time from the start of the trial to the end of the slot of the last success
+         */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+
+        /**
+         * @return transmissions sent in another slot of the window than the device picked
+         */
+        public int getDriftedTransmissions() {
+            return driftedTransmissions;
+        }
+
+        /**
+         * @return transmissions sent after their window or lost, they count as collisions
+         */
+        public int getLateTransmissions() {
+            return lateTransmissions;
+        }
+    }
+
+    private final IBackoffProtocol bp;
+    private final long slotNanos;
+    private final ExecutorService devices;
+    private final DatagramSocket arbiterSocket;
+    private final DatagramSocket deviceSocket;
+    private final Thread receiver;
+    // Feedback of each device of the current trial, filled by the receiver
+    private volatile List<BlockingQueue<Feedback>> mailboxes;
+
+    /**
+     * @param bp protocol of the devices
+     * @param slotMicros length of a slot
+     * @throws IOException
+     */
+    public LoopbackTestbed(IBackoffProtocol bp, int slotMicros) throws IOException {
+        this.bp = bp;
+        this.slotNanos = slotMicros * 1000L;
+        devices = newDeviceExecutor();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        arbiterSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        arbiterSocket.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+        deviceSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        deviceSocket.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+        // Devices share a socket, feedback is handed to them by device id
+        receiver = new Thread("feedback-receiver") {
+            @Override
+            public void run() {
+                byte[] buf = new byte[FEEDBACK_BYTES];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        deviceSocket.receive(packet);
+                        ByteBuffer in = ByteBuffer.wrap(buf);
+                        int id = in.getInt();
+                        Feedback feedback = new Feedback(in.get() != 0, in.getLong(), in.getInt());
+                        mailboxes.get(id).offer(feedback);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return whether the JVM has virtual threads, from Java 21
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return an executor running every task on a virtual thread when the JVM has them, on a small
+     * platform thread otherwise. Looked up by reflection so the testbed still builds on older JDKs.
+     */
+    static ExecutorService newDeviceExecutor() {
+        if (hasVirtualThreads()) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(null, r, "device", DEVICE_STACK_BYTES);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run a trial: every device transmits until it succeeds
+     * @param testingDevices number of devices
+     * @param trialSeed seed of the devices' slot draws
+     * @return latency and timing of the trial
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public TrialResult runTrial(int testingDevices, long trialSeed) throws IOException, InterruptedException {
+        List<BlockingQueue<Feedback>> boxes = new ArrayList<BlockingQueue<Feedback>>();
+        for (int id = 0; id < testingDevices; id++) {
+            boxes.add(new ArrayBlockingQueue<Feedback>(1));
+        }
+        mailboxes = boxes;
+        final CountDownLatch ready = new CountDownLatch(1);
+        final long[] start = new long[1];
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        for (int id = 0; id < testingDevices; id++) {
+            final int device = id;
+            final long deviceSeed = ParallelSweep.mix(trialSeed + id);
+            tasks.add(devices.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    ready.await();
+                    runDevice(device, deviceSeed, start[0]);
+                    return null;
+                }
+            }));
+        }
+        // Devices are started before the first window so that starting them isn't part of the trial
+        start[0] = System.nanoTime() + FEEDBACK_SLOTS * slotNanos + FEEDBACK_NANOS_PER_DEVICE * testingDevices;
+        ready.countDown();
+        TrialResult result = arbitrate(testingDevices, start[0]);
+        for (Future<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Device failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private void runDevice(int id, long deviceSeed, long start) throws IOException, InterruptedException {
+        Random slotGenerator = new Random(deviceSeed);
+        BlockingQueue<Feedback> mailbox = mailboxes.get(id);
+        byte[] buf = new byte[TRANSMISSION_BYTES];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length, arbiterSocket.getLocalSocketAddress());
+        int windowSize = bp.getInitialWindowSize();
+        long roundStart = start;
+        for (int round = 0;; round++) {
+            int slot = 1 + Window.randomSlot(slotGenerator, windowSize);
+            // Aim at the middle of the slot, so that up to half a slot of jitter lands in it
+            parkUntil(roundStart + (slot - 1) * slotNanos + slotNanos / 2);
+            // Same clock as the arbiter's, the slot is the time the device transmitted rather than the
+            // time the arbiter got to read the datagram
+            ByteBuffer.wrap(buf).putInt(id).putInt(round).putInt(slot).putLong(System.nanoTime());
+            deviceSocket.send(packet);
+            long timeout = (windowSize + GRACE_SLOTS + FEEDBACK_SLOTS) * slotNanos + FEEDBACK_NANOS_PER_DEVICE * mailboxes.size()
+                    + TimeUnit.SECONDS.toNanos(1);
+            Feedback feedback = mailbox.poll(timeout, TimeUnit.NANOSECONDS);
+            if (feedback == null) {
+                throw new IOException("No feedback for device " + id + " in round " + round);
+            }
+            if (feedback.success) {
+                return;
+            }
+            roundStart = feedback.nextRoundStart;
+            windowSize = feedback.nextWindowSize;
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        for (long wait = deadline - System.nanoTime(); wait > 0; wait = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Collect the transmissions of every round and send the feedback, until all devices succeeded
+     */
+    private TrialResult arbitrate(int testingDevices, long start) throws IOException {
+        Window channel = new Window(bp.getInitialWindowSize(), new Random(0));
+        boolean[] done = new boolean[testingDevices];
+        int[] observedSlots = new int[testingDevices]; // 0 if not received, -1 if late
+        int[] slotDevices = new int[0]; // Devices observed in each slot of the round
+        byte[] in = new byte[TRANSMISSION_BYTES];
+        DatagramPacket transmission = new DatagramPacket(in, in.length);
+        byte[] out = new byte[FEEDBACK_BYTES];
+        DatagramPacket feedback = new DatagramPacket(out, out.length, deviceSocket.getLocalSocketAddress());
+        int remaining = testingDevices;
+        long roundStart = start;
+        long channelLatency = 0;
+        long lastSuccessEnd = start;
+        int drifted = 0;
+        int late = 0;
+        int round = 0;
+        for (; remaining > 0; round++) {
+            int windowSize = channel.getNumSlots();
+            Arrays.fill(observedSlots, 0);
+            if (slotDevices.length < windowSize + 1) {
+                slotDevices = new int[windowSize + 1];
+            } else {
+                Arrays.fill(slotDevices, 0, windowSize + 1, 0);
+            }
+            long deadline = roundStart + (windowSize + GRACE_SLOTS) * slotNanos + LOSS_TIMEOUT_NANOS;
+            int received = 0;
+            while (received < remaining) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    break;
+                }
+                arbiterSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                try {
+                    arbiterSocket.receive(transmission);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(in);
+                int id = buf.getInt();
+                if (buf.getInt() != round || id < 0 || id >= testingDevices || done[id] || observedSlots[id] != 0) {
+                    continue;
+                }
+                received++;
+                int picked = buf.getInt();
+                long slot = Math.max(1, 1 + (buf.getLong() - roundStart) / slotNanos);
+                if (slot > windowSize) {
+                    observedSlots[id] = -1;
+                    continue;
+                }
+                if (slot != picked) {
+                    drifted++;
+                }
+                observedSlots[id] = (int) slot;
+                slotDevices[(int) slot]++;
+                channel.takeSlot((int) slot);
+            }
+            late += remaining - received;
+            channelLatency += Math.max(0, channel.getLargestTakenSlot());
+            int nextWindowSize = bp.nextWindowSize(channel);
+            long nextRoundStart = System.nanoTime() + FEEDBACK_SLOTS * slotNanos + FEEDBACK_NANOS_PER_DEVICE * remaining;
+            for (int id = 0; id < testingDevices; id++) {
+                if (done[id]) {
+                    continue;
+                }
+                int slot = observedSlots[id];
+                if (slot < 0) {
+                    late++;
+                }
+                boolean success = slot > 0 && slotDevices[slot] == 1;
+                if (success) {
+                    done[id] = true;
+                    remaining--;
+                    lastSuccessEnd = Math.max(lastSuccessEnd, roundStart + slot * slotNanos);
+                }
+                ByteBuffer.wrap(out).putInt(id).put((byte) (success ? 1 : 0)).putLong(nextRoundStart).putInt(nextWindowSize);
+                arbiterSocket.send(feedback);
+            }
+            channel.nextRound(nextWindowSize);
+            roundStart = nextRoundStart;
+        }
+        return new TrialResult(channelLatency, lastSuccessEnd - start, round, drifted, late);
+    }
+
+    public void close() {
+        devices.shutdownNow();
+        arbiterSocket.close();
+        deviceSocket.close();
+    }
+
+    /**
+     * Usage: java LoopbackTestbed [--protocol name] [--devices from..to] [--step n] [--repetitions n]
+     * [--slot microseconds] [--seed n]
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String protocol = "binary";
+        int fromDevices = DEFAULT_FROM_DEVICES;
+        int toDevices = DEFAULT_TO_DEVICES;
+        int step = DEFAULT_STEP;
+        int repetitions = DEFAULT_REPETITIONS;
+        int slotMicros = DEFAULT_SLOT_MICROS;
+        long seed = ParallelSweep.DEFAULT_SEED;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--protocol")) {
+                protocol = args[++i];
+            } else if (args[i].equals("--devices")) {
+                String value = args[++i];
+                int range = value.indexOf("..");
+                fromDevices = Integer.parseInt(range < 0 ? value : value.substring(0, range));
+                toDevices = range < 0 ? fromDevices : Integer.parseInt(value.substring(range + 2));
+            } else if (args[i].equals("--step")) {
+                step = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--repetitions")) {
+                repetitions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--slot")) {
+                slotMicros = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: java LoopbackTestbed [--protocol name] [--devices from..to] [--step n]"
+                        + " [--repetitions n] [--slot microseconds] [--seed n]");
+                return;
+            }
+        }
+
+        IBackoffProtocol bp = ProtocolRegistry.getDefault().get(protocol);
+        myBackoff simulator = new myBackoff(toDevices);
+        Window window = new Window(bp.getInitialWindowSize(), new Random());
+        LoopbackTestbed testbed = new LoopbackTestbed(bp, slotMicros);
+        System.out.println(bp + ", " + slotMicros + " us slots, devices on " + (hasVirtualThreads() ? "virtual" : "platform")
+                + " threads");
+        System.out.println(String.format("%8s %12s %12s %12s %12s %12s %8s %8s", "devices", "simulated", "channel", "wall slots",
+                "wall ms", "packets/s", "drifted", "late"));
+        for (int testingDevices = fromDevices; testingDevices <= toDevices; testingDevices += step) {
+            LatencyStatistics simulated = new LatencyStatistics();
+            for (int repeatition = 1; repeatition <= SIMULATED_REPETITIONS; repeatition++) {
+                long trialSeed = myBackoff.getTrialSeed(seed, testingDevices, repeatition);
+                simulated.add(simulator.simulateTrial(bp, bp.getInitialWindowSize(), testingDevices, window, trialSeed));
+            }
+            LatencyStatistics channel = new LatencyStatistics();
+            LatencyStatistics wall = new LatencyStatistics();
+            long drifted = 0;
+            long late = 0;
+            for (int repeatition = 1; repeatition <= repetitions; repeatition++) {
+                TrialResult result = testbed.runTrial(testingDevices, myBackoff.getTrialSeed(seed, testingDevices, repeatition));
+                channel.add(result.getChannelLatency());
+                wall.add(result.getWallNanos());
+                drifted += result.getDriftedTransmissions();
+                late += result.getLateTransmissions();
+            }
+            System.out.println(String.format("%8d %12.1f %12.1f %12.1f %12.1f %12.0f %8d %8d", testingDevices, simulated.getMean(),
+                    channel.getMean(), wall.getMean() / testbed.slotNanos, wall.getMean() / 1e6,
+                    testingDevices / (wall.getMean() / 1e9), drifted, late));
+        }
+        testbed.close();
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author Anh Do
+ *
+ * Parallel version of {@link myBackoff#runSimulation()}. Every (protocol, device count, repetition)
+ * trial is an independent work unit scheduled on a {@link ForkJoinPool}. Each unit seeds its own
+ * {@link Random} from the sweep seed and the unit coordinates, so the results only depend on the
+ * seed and never on the number of threads or the order in which units are executed. With common
+ * random numbers, see {@link myBackoff#setCommonRandomNumbers}, units of different protocols share their seeds.
+ */
+public class ParallelSweep {
+    final static long DEFAULT_SEED = 20160301L;
+
+    private final myBackoff simulator;
+    private final long seed;
+    private final ForkJoinPool pool;
+    // Completed points of earlier sweeps, null to compute every point
+    private ResultCache cache;
+    // One window per worker thread, reseeded for every unit, so trials don't allocate
+    private final ThreadLocal<Window> windows = new ThreadLocal<Window>() {
+        @Override
+        protected Window initialValue() {
+            return new Window(1, new Random());
+        }
+    };
+
+    public ParallelSweep(myBackoff simulator, long seed, int parallelism) {
+        this.simulator = simulator;
+        this.seed = seed;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public ParallelSweep(myBackoff simulator, long seed) {
+        this(simulator, seed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Same protocols and output files as {@link myBackoff#runSimulation()}
+     * @throws IOException
+     */
+    public void runSimulation() throws IOException {
+        List<SweepSpec> specs = new ArrayList<SweepSpec>();
+        for (IBackoffProtocol bp : simulator.getProtocols()) {
+            specs.add(new SweepSpec(bp, simulator.getNumDevices()));
+        }
+        List<LatencyStatistics[]> stats = sweep(specs);
+        LatencyResultFile results = new LatencyResultFile(myBackoff.RESULT_FILE);
+        for (int i = 0; i < specs.size(); i++) {
+            writeResults(specs.get(i), stats.get(i), results);
+        }
+        results.close();
+    }
+
+    /**
+     * Write the average latency of each device count to the spec's text file, one per line,
+     * and the full statistics to the results file
+     * @param spec sweep configuration
+     * @param stats statistics of each device count of the sweep
+     * @param results binary results file, may be null
+     * @throws IOException
+     */
+    public static void writeResults(SweepSpec spec, LatencyStatistics[] stats, LatencyResultFile results) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(spec.getOutput(), false)));
+        for (int countIndex = 0; countIndex < stats.length; countIndex++) {
+            writer.println(stats[countIndex].getMean());
+            if (results != null) {
+                results.write(spec.getProtocol().getName(), spec.getDevices(countIndex), stats[countIndex]);
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Run every trial of the given sweeps in parallel. With a cache, only the points missing from it run.
+     * @param specs sweep configurations
+     * @return for each configuration, latency statistics indexed by device count step
+     */
+    public List<LatencyStatistics[]> sweep(List<SweepSpec> specs) {
+        return sweep(specs, 0, 1);
+    }
+
+    /**
+     * Run one shard of the given sweeps: the repetitions of every point are split in contiguous ranges,
+     * one per shard, see {@link #getFirstRepetition}. Merging the statistics of all shards gives the
+     * statistics of the whole sweep, see {@link ShardedSweep}. Only whole sweeps use the cache.
+     * @param specs sweep configurations
+     * @param shard shard to run, from 0 to shards - 1
+     * @param shards number of shards
+     * @return for each configuration, latency statistics of the shard indexed by device count step
+     */
+    public List<LatencyStatistics[]> sweep(List<SweepSpec> specs, int shard, int shards) {
+        ResultCache cache = shards == 1 ? this.cache : null;
+        SweepSpec[] sweeps = specs.toArray(new SweepSpec[specs.size()]);
+        List<LatencyStatistics[]> stats = new ArrayList<LatencyStatistics[]>();
+        String[][] keys = new String[sweeps.length][];
+        int numPoints = 0;
+        for (int i = 0; i < sweeps.length; i++) {
+            stats.add(new LatencyStatistics[sweeps[i].getDeviceCounts()]);
+            keys[i] = new String[sweeps[i].getDeviceCounts()];
+            numPoints += sweeps[i].getDeviceCounts();
+        }
+
+        // Points to compute are numbered consecutively, their units from firstUnits[p] to firstUnits[p + 1]
+        Batch batch = new Batch(sweeps, numPoints);
+        int p = 0;
+        for (int i = 0; i < sweeps.length; i++) {
+            long deviceTrials = 0;
+            for (int countIndex = 0; countIndex < sweeps[i].getDeviceCounts(); countIndex++) {
+                if (cache != null) {
+                    keys[i][countIndex] = simulator.getPointKey(sweeps[i].getProtocol(), seed, sweeps[i].getDevices(countIndex),
+                            sweeps[i].getRepetitions(), false);
+                    stats.get(i)[countIndex] = cache.get(keys[i][countIndex]);
+                }
+                int firstRepetition = getFirstRepetition(sweeps[i].getRepetitions(), shard, shards);
+                int repetitions = getFirstRepetition(sweeps[i].getRepetitions(), shard + 1, shards) - firstRepetition;
+                if (stats.get(i)[countIndex] == null && repetitions == 0) {
+                    stats.get(i)[countIndex] = new LatencyStatistics();
+                } else if (stats.get(i)[countIndex] == null) {
+                    batch.pointSweeps[p] = i;
+                    batch.pointCounts[p] = countIndex;
+                    batch.pointFirstRepetitions[p] = firstRepetition;
+                    batch.firstUnits[p + 1] = batch.firstUnits[p] + repetitions;
+                    deviceTrials += (long) sweeps[i].getDevices(countIndex) * repetitions;
+                    p++;
+                }
+            }
+            SimulationMetrics.startProtocol(sweeps[i].getProtocol().getName(), deviceTrials);
+        }
+        batch.numPoints = p;
+        batch.unitLatencies = new long[batch.firstUnits[p]];
+        try {
+            pool.invoke(new TrialTask(batch, 0, batch.unitLatencies.length));
+        } finally {
+            for (SweepSpec spec : sweeps) {
+                SimulationMetrics.finishProtocol(spec.getProtocol().getName());
+            }
+        }
+
+        for (p = 0; p < batch.numPoints; p++) {
+            int i = batch.pointSweeps[p];
+            int countIndex = batch.pointCounts[p];
+            LatencyStatistics pointStats = new LatencyStatistics();
+            for (int unit = batch.firstUnits[p]; unit < batch.firstUnits[p + 1]; unit++) {
+                pointStats.add(batch.unitLatencies[unit]);
+            }
+            stats.get(i)[countIndex] = pointStats;
+            if (cache != null) {
+                try {
+                    cache.put(keys[i][countIndex], pointStats);
+                } catch (IOException e) {
+                    System.err.println("Failed to cache " + keys[i][countIndex] + ": " + e);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param repetitions repetitions of a point
+     * @param shard shard index, shards for the end of the last shard
+     * @param shards number of shards
+     * @return first repetition of the shard, repetitions + 1 past the last shard
+     */
+    static int getFirstRepetition(int repetitions, int shard, int shards) {
+        return 1 + (int) ((long) repetitions * shard / shards);
+    }
+
+    /**
+     * @param spec sweep configuration
+     * @return latency statistics indexed by device count step
+     */
+    public LatencyStatistics[] sweep(SweepSpec spec) {
+        return sweep(Arrays.asList(spec)).get(0);
+    }
+
+    /**
+     * @param cache result cache shared with {@link myBackoff#setCache}, null to compute every point
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Seed of a single work unit. The coordinates are mixed with the SplitMix64 finalizer
+     * so that neighbouring units get unrelated streams. Protocols are identified by name, so
+     * a protocol gets the same results whichever sweep it is part of.
+     */
+    static long unitSeed(long seed, String protocol, int testingDevices, int repeatition) {
+        long z = seed;
+        z = mix(z + protocol.hashCode());
+        z = mix(z + testingDevices);
+        z = mix(z + repeatition);
+        return z;
+    }
+
+    static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Points of a sweep call to compute and the latencies of their trials
+     */
+    private static class Batch {
+        final SweepSpec[] sweeps;
+        // Sweep and device count index of every point
+        final int[] pointSweeps;
+        final int[] pointCounts;
+        final int[] pointFirstRepetitions;
+        final int[] firstUnits;
+        int numPoints;
+        long[] unitLatencies;
+
+        Batch(SweepSpec[] sweeps, int maxPoints) {
+            this.sweeps = sweeps;
+            pointSweeps = new int[maxPoints];
+            pointCounts = new int[maxPoints];
+            pointFirstRepetitions = new int[maxPoints];
+            firstUnits = new int[maxPoints + 1];
+        }
+    }
+
+    /**
+     * Range of work units [from, to). Unit firstUnits[p] + r is repetition pointFirstRepetitions[p] + r
+     * of point p. Trials at large device counts take much longer than small ones, so ranges are split
+     * down to single units and left to work stealing.
+     */
+    private class TrialTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        TrialTask(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TrialTask(batch, from, mid), new TrialTask(batch, mid, to));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            // Points are never empty, so first units are strictly increasing
+            int p = Arrays.binarySearch(batch.firstUnits, 0, batch.numPoints + 1, from);
+            if (p < 0) {
+                p = -p - 2;
+            }
+            SweepSpec spec = batch.sweeps[batch.pointSweeps[p]];
+            int testingDevices = spec.getDevices(batch.pointCounts[p]);
+            int repeatition = batch.pointFirstRepetitions[p] + from - batch.firstUnits[p];
+            IBackoffProtocol bp = spec.getProtocol();
+            SimulationMetrics.setDeviceCount(bp.getName(), testingDevices);
+
+            Window window = windows.get();
+            if (simulator.isCommonRandomNumbers()) {
+                long trialSeed = myBackoff.getTrialSeed(seed, testingDevices, repeatition);
+                batch.unitLatencies[from] = simulator.simulateTrial(bp, bp.getInitialWindowSize(), testingDevices, window, trialSeed);
+                return;
+            }
+            window.getSlotGenerator().setSeed(unitSeed(seed, bp.getName(), testingDevices, repeatition));
+            batch.unitLatencies[from] = simulator.simulateTrial(bp, bp.getInitialWindowSize(), testingDevices, window);
+        }
+    }
+
+    /**
+     * Usage: java ParallelSweep [num-devices] [seed] [parallelism] [--sample]
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int numDevices = args.length > 0 ? Integer.parseInt(args[0]) : myBackoff.DEFAULT_NUM_DEVICES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        boolean sampleOccupancy = args.length > 3 && args[3].equals("--sample");
+
+        ParallelSweep sweep = new ParallelSweep(new myBackoff(numDevices, sampleOccupancy), seed, parallelism);
+        long start = System.nanoTime();
+        sweep.runSimulation();
+        sweep.shutdown();
+        System.out.println("Sweep finished in " + (System.nanoTime() - start) / 1000000 + " ms on " + parallelism + " threads");
+    }
+}
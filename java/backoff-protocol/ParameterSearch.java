@@ -0,0 +1,281 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anh Do
+ *
+ * Grid search of protocol parameters. Every family of protocols is run with each of its parameter
+ * values (growth factor, degree...) and each initial window, on the same device counts, and the
+ * configuration with the lowest mean total latency is reported for every device count. All trials of
+ * all configurations run together on a {@link ParallelSweep}.
+ *
+ * Configurations of a family share their random streams, see {@link ParallelSweep#unitSeed}, so
+ * differences between them come from the parameters rather than from the draws. With --crn all
+ * configurations also share the draws of every round, see {@link myBackoff#setCommonRandomNumbers}.
+ */
+public class ParameterSearch {
+    final static int DEFAULT_FROM_DEVICES = 1000;
+    final static int DEFAULT_TO_DEVICES = 6000;
+    final static int DEFAULT_STEP = 1000;
+
+    /**
+     * A family of protocols and the values of its parameter explored by the search
+     */
+    static abstract class Family {
+        private final String name;
+        private final double[] parameters;
+        private final int minInitialWindowSize;
+
+        /**
+         * @param name family name
+         * @param parameters parameter values, a single ignored value for families without parameter
+         * @param minInitialWindowSize smallest initial window the family supports
+         */
+        Family(String name, double[] parameters, int minInitialWindowSize) {
+            this.name = name;
+            this.parameters = parameters;
+            this.minInitialWindowSize = minInitialWindowSize;
+        }
+
+        abstract IBackoffProtocol create(double parameter, int initialWindowSize);
+
+        String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * @return families searched by default
+     */
+    static List<Family> getDefaultFamilies() {
+        List<Family> families = new ArrayList<Family>();
+        double[] none = { 0 };
+        families.add(new Family("linear", none, 1) {
+            IBackoffProtocol create(double parameter, int initialWindowSize) {
+                return new LinearBackoff(initialWindowSize);
+            }
+        });
+        families.add(new Family("exponential", new double[] { 1.25, 1.5, 2, 2.5, 3, 4 }, 1) {
+            IBackoffProtocol create(double growth, int initialWindowSize) {
+                return new ExponentialBackoff(growth, initialWindowSize);
+            }
+        });
+        families.add(new Family("loglog", none, 3) {
+            IBackoffProtocol create(double parameter, int initialWindowSize) {
+                return new LogLogBackoff(initialWindowSize);
+            }
+        });
+        families.add(new Family("polynomial", new double[] { 1, 1.5, 2, 3, 4 }, 1) {
+            IBackoffProtocol create(double degree, int initialWindowSize) {
+                return new PolynomialBackoff(degree, initialWindowSize);
+            }
+        });
+        families.add(new Family("sawtooth", new double[] { 1.5, 2, 3, 4 }, 1) {
+            IBackoffProtocol create(double growth, int initialWindowSize) {
+                return new SawtoothBackoff(growth, initialWindowSize);
+            }
+        });
+        families.add(new Family("fibonacci", none, 1) {
+            IBackoffProtocol create(double parameter, int initialWindowSize) {
+                return new FibonacciBackoff(initialWindowSize);
+            }
+        });
+        families.add(new Family("adaptive", new double[] { 1.25, 1.5, 2, 3, 4 }, 1) {
+            IBackoffProtocol create(double growth, int initialWindowSize) {
+                return new AdaptiveBackoff(growth, AdaptiveBackoff.DEFAULT_TARGET_COLLISION_FRACTION, initialWindowSize);
+            }
+        });
+        return families;
+    }
+
+    /**
+     * @param maxDevices largest device count of the search
+     * @return powers of two from 1 to the first one reaching twice the device count, the initial
+     * window is only useful up to about the number of devices
+     */
+    static int[] getInitialWindowSizes(int maxDevices) {
+        int count = 1;
+        while ((1L << (count - 1)) < 2L * maxDevices) {
+            count++;
+        }
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = 1 << i;
+        }
+        return sizes;
+    }
+
+    private final ParallelSweep sweep;
+    private final List<IBackoffProtocol> candidates = new ArrayList<IBackoffProtocol>();
+    private List<LatencyStatistics[]> stats;
+    private SweepSpec range;
+
+    public ParameterSearch(ParallelSweep sweep) {
+        this.sweep = sweep;
+    }
+
+    /**
+     * Run every configuration of the families on the device counts of the range
+     * @param families protocol families to search
+     * @param initialWindowSizes initial windows to try, those a family doesn't support are skipped
+     * @param fromDevices smallest device count
+     * @param toDevices largest device count
+     * @param step device count increment
+     * @param repetitions trials per configuration and device count
+     */
+    public void search(List<Family> families, int[] initialWindowSizes, int fromDevices, int toDevices, int step, int repetitions) {
+        candidates.clear();
+        List<SweepSpec> specs = new ArrayList<SweepSpec>();
+        for (Family family : families) {
+            for (double parameter : family.parameters) {
+                for (int initialWindowSize : initialWindowSizes) {
+                    if (initialWindowSize < family.minInitialWindowSize) {
+                        continue;
+                    }
+                    IBackoffProtocol bp = family.create(parameter, initialWindowSize);
+                    candidates.add(bp);
+                    specs.add(new SweepSpec(bp, fromDevices, toDevices, step, repetitions, null));
+                }
+            }
+        }
+        range = specs.get(0);
+        stats = sweep.sweep(specs);
+    }
+
+    /**
+     * @param countIndex index of a device count of the last search
+     * @param name family name, null for any family
+     * @return index of the configuration with the lowest mean latency
+     */
+    public int getBest(int countIndex, String name) {
+        int best = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (name != null && !candidates.get(i).getName().equals(name)) {
+                continue;
+            }
+            if (best < 0 || stats.get(i)[countIndex].getMean() < stats.get(best)[countIndex].getMean()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public List<IBackoffProtocol> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @param candidate index of a configuration
+     * @return its statistics indexed by device count step
+     */
+    public LatencyStatistics[] getStats(int candidate) {
+        return stats.get(candidate);
+    }
+
+    /**
+     * Print the best configuration of every device count, overall and per family
+     * @param families searched families
+     */
+    public void report(List<Family> families) {
+        for (int countIndex = 0; countIndex < range.getDeviceCounts(); countIndex++) {
+            int best = getBest(countIndex, null);
+            System.out.println(range.getDevices(countIndex) + " devices: best " + describe(best, countIndex));
+            for (Family family : families) {
+                System.out.println("    " + describe(getBest(countIndex, family.getName()), countIndex));
+            }
+        }
+    }
+
+    private String describe(int candidate, int countIndex) {
+        LatencyStatistics s = stats.get(candidate)[countIndex];
+        return String.format("%-45s mean %12.1f +- %.1f", candidates.get(candidate), s.getMean(),
+                s.getStandardDeviation() / Math.sqrt(s.getCount()));
+    }
+
+    /**
+     * Write every configuration and device count as CSV
+     * @param path output file
+     * @throws IOException
+     */
+    public void writeCsv(String path) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+        writer.println("devices,configuration,mean,standardError,p99");
+        for (int countIndex = 0; countIndex < range.getDeviceCounts(); countIndex++) {
+            for (int i = 0; i < candidates.size(); i++) {
+                LatencyStatistics s = stats.get(i)[countIndex];
+                writer.println(range.getDevices(countIndex) + ",\"" + candidates.get(i) + "\"," + s.getMean() + ","
+                        + s.getStandardDeviation() / Math.sqrt(s.getCount()) + "," + s.getPercentile(0.99));
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Usage: java ParameterSearch [--devices from..to] [--step n] [--repetitions n] [--seed n] [--parallelism n]
+     * [--sample] [--crn] [--cache directory] [--output csv-file]
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int fromDevices = DEFAULT_FROM_DEVICES;
+        int toDevices = DEFAULT_TO_DEVICES;
+        int step = DEFAULT_STEP;
+        int repetitions = myBackoff.MAXIMUM_REPEATITION_FOR_EACH_SIMULATION;
+        long seed = ParallelSweep.DEFAULT_SEED;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean sampleOccupancy = false;
+        boolean commonRandomNumbers = false;
+        String cacheDirectory = null;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--devices")) {
+                String value = args[++i];
+                int range = value.indexOf("..");
+                fromDevices = Integer.parseInt(range < 0 ? value : value.substring(0, range));
+                toDevices = range < 0 ? fromDevices : Integer.parseInt(value.substring(range + 2));
+            } else if (args[i].equals("--step")) {
+                step = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--repetitions")) {
+                repetitions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--parallelism")) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sample")) {
+                sampleOccupancy = true;
+            } else if (args[i].equals("--crn")) {
+                commonRandomNumbers = true;
+            } else if (args[i].equals("--cache")) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--output")) {
+                output = args[++i];
+            } else {
+                System.err.println("Usage: java ParameterSearch [--devices from..to] [--step n] [--repetitions n] [--seed n]"
+                        + " [--parallelism n] [--sample] [--crn] [--cache directory] [--output csv-file]");
+                return;
+            }
+        }
+
+        List<Family> families = getDefaultFamilies();
+        myBackoff simulator = new myBackoff(toDevices, sampleOccupancy);
+        simulator.setCommonRandomNumbers(commonRandomNumbers, null);
+        ParallelSweep sweep = new ParallelSweep(simulator, seed, parallelism);
+        if (cacheDirectory != null) {
+            sweep.setCache(new ResultCache(cacheDirectory, ResultCache.DEFAULT_MAX_BYTES));
+        }
+        ParameterSearch search = new ParameterSearch(sweep);
+        long start = System.nanoTime();
+        search.search(families, getInitialWindowSizes(toDevices), fromDevices, toDevices, step, repetitions);
+        sweep.shutdown();
+        System.out.println(search.getCandidates().size() + " configurations searched in " + (System.nanoTime() - start) / 1000000
+                + " ms on " + parallelism + " threads");
+        search.report(families);
+        if (output != null) {
+            search.writeCsv(output);
+        }
+    }
+}
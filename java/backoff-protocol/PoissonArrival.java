@@ -0,0 +1,24 @@
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ * 
+ * Poisson arrivals: exponential inter-arrival times with a fixed rate
+ */
+public class PoissonArrival implements IArrivalProcess {
+    private final double rate; // Expected arrivals per slot
+    
+    public PoissonArrival(double rate) {
+        assert rate > 0;
+        this.rate = rate;
+    }
+    
+    @Override
+    public double nextArrival(double now, Random rnd) {
+        return now - Math.log(1.0 - rnd.nextDouble()) / rate;
+    }
+    
+    public double getRate() {
+        return rate;
+    }
+}
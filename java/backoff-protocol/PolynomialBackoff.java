@@ -0,0 +1,78 @@
+/**
+ * @author Anh Do
+ *
+ * Implementation of polynomial backoff protocol: the window of round k (from 0) has
+ * initial * (k + 1)^degree slots.
+ */
+public class PolynomialBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
+    final static double DEFAULT_DEGREE = 2;
+
+    private final double degree;
+    private final int initialWindowSize;
+
+    public PolynomialBackoff() {
+        this(DEFAULT_DEGREE, INITIAL_WINDOW_SIZE);
+    }
+
+    /**
+     * @param degree exponent of the round, at least 1
+     * @param initialWindowSize size of the first window
+     */
+    public PolynomialBackoff(double degree, int initialWindowSize) {
+        if (degree < 1 || initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid polynomial backoff: degree=" + degree + " initial=" + initialWindowSize);
+        }
+        this.degree = degree;
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    @Override
+    public String getName() {
+        return "polynomial";
+    }
+
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * The round is recovered from the window size, for callers that don't keep a {@link Window}
+     */
+    @Override
+    public int nextWindowSize(int numSlots) {
+        int round = (int) Math.round(Math.pow((double) numSlots / initialWindowSize, 1 / degree)) - 1;
+        return windowSize(round + 1);
+    }
+
+    @Override
+    public int nextWindowSize(Window w) {
+        return windowSize(w.getRound() + 1);
+    }
+
+    private int windowSize(int round) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(initialWindowSize * Math.pow(round + 1, degree)));
+    }
+
+    public double getDegree() {
+        return degree;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(degree=" + degree + ", initial=" + initialWindowSize + ")";
+    }
+
+    public static void main(String[] args) {
+        Window w = new Window(2);
+        System.out.println("Current window size = " + w.getNumSlots());
+        PolynomialBackoff pb = new PolynomialBackoff();
+        Window nextW = pb.nextWindow(w);
+        assert nextW.getNumSlots() == 8;
+        assert pb.nextWindowSize(8) == 18;
+        System.out.println("Next window size = " + nextW.getNumSlots());
+        nextW = pb.nextWindow(nextW);
+        System.out.println("Next window size = " + nextW.getNumSlots());
+    }
+}
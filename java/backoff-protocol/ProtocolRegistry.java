@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * @author Anh Do
+ *
+ * Registry of backoff protocols by name. The built-in protocols are always registered; further
+ * protocols are discovered with {@link ServiceLoader} from META-INF/services/IBackoffProtocol files
+ * on the classpath, so a new protocol only needs its class and a line in that file.
+ */
+public class ProtocolRegistry {
+    // Protocols of the original sweep, the ones swept unless others are selected
+    final static String[] DEFAULT_SWEEP = { "linear", "binary", "trinary", "loglog" };
+    // Selects every registered protocol, see #select(String)
+    final static String ALL = "all";
+
+    private final Map<String, IBackoffProtocol> protocols = new LinkedHashMap<String, IBackoffProtocol>();
+
+    private static ProtocolRegistry defaultRegistry;
+
+    public ProtocolRegistry() {
+        register(new LinearBackoff());
+        register(new BinaryExponentialBackoff());
+        register(new TrinaryExponentialBackoff());
+        register(new LogLogBackoff());
+        register(new PolynomialBackoff());
+        register(new SawtoothBackoff());
+        register(new FibonacciBackoff());
+        register(new AdaptiveBackoff());
+    }
+
+    /**
+     * @return registry with the built-in protocols and those found by {@link ServiceLoader}
+     */
+    public static synchronized ProtocolRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new ProtocolRegistry();
+            defaultRegistry.loadServices(ProtocolRegistry.class.getClassLoader());
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Register every protocol provider visible to the class loader. A provider whose name is already
+     * registered is ignored, so listing a built-in protocol in a services file is harmless.
+     * @param loader class loader to search
+     */
+    public void loadServices(ClassLoader loader) {
+        for (IBackoffProtocol bp : ServiceLoader.load(IBackoffProtocol.class, loader)) {
+            if (!protocols.containsKey(bp.getName())) {
+                register(bp);
+            }
+        }
+    }
+
+    /**
+     * @param bp protocol to register under {@link IBackoffProtocol#getName()}
+     */
+    public void register(IBackoffProtocol bp) {
+        assert bp.getInitialWindowSize() > 0;
+        protocols.put(bp.getName(), bp);
+    }
+
+    /**
+     * @param name protocol name
+     * @return the protocol
+     * @throws IllegalArgumentException if no protocol has this name
+     */
+    public IBackoffProtocol get(String name) {
+        IBackoffProtocol bp = protocols.get(name);
+        if (bp == null) {
+            throw new IllegalArgumentException("Unknown protocol: " + name + ". Known protocols: " + protocols.keySet());
+        }
+        return bp;
+    }
+
+    /**
+     * @return all protocols in registration order
+     */
+    public Collection<IBackoffProtocol> getAll() {
+        return protocols.values();
+    }
+
+    public List<String> getNames() {
+        return new ArrayList<String>(protocols.keySet());
+    }
+
+    /**
+     * @return protocols of the original sweep, see {@link #DEFAULT_SWEEP}
+     */
+    public List<IBackoffProtocol> getDefaultSweep() {
+        List<IBackoffProtocol> sweep = new ArrayList<IBackoffProtocol>();
+        for (String name : DEFAULT_SWEEP) {
+            sweep.add(get(name));
+        }
+        return sweep;
+    }
+
+    /**
+     * @param selection {@link #ALL} for every registered protocol, or protocol names separated by commas
+     * @return the selected protocols, in the order given
+     * @throws IllegalArgumentException if a name is unknown
+     */
+    public List<IBackoffProtocol> select(String selection) {
+        if (selection.equals(ALL)) {
+            return new ArrayList<IBackoffProtocol>(protocols.values());
+        }
+        List<IBackoffProtocol> selected = new ArrayList<IBackoffProtocol>();
+        for (String name : selection.split(",")) {
+            selected.add(get(name.trim()));
+        }
+        return selected;
+    }
+
+    public static void main(String[] args) {
+        for (IBackoffProtocol bp : getDefault().getAll()) {
+            System.out.println(bp.getName() + "\t" + bp.getClass().getName() + "\tinitial window " + bp.getInitialWindowSize());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Anh Do
+ *
+ * On-disk cache of completed sweep points, the statistics of all trials of a protocol at one device
+ * count. A point is keyed by everything its result depends on: protocol and parameters, device count,
+ * seed and simulation mode, see {@link #key}. Every point is a file of the cache directory; when the
+ * directory grows over its size limit the least recently used points are deleted.
+ *
+ * Points only depend on their key when every trial has its own seed, see {@link myBackoff#setCache},
+ * so a sweep extended to more devices or protocols only computes the new points.
+ */
+public class ResultCache {
+    final static long DEFAULT_MAX_BYTES = 256L << 20;
+    // Change when the simulation changes in a way that changes the results of a point
+    final static int VERSION = 2;
+    private final static String SUFFIX = ".point";
+
+    private final File directory;
+    private final long maxBytes;
+    // Size of every point file by name, least recently used first
+    private final LinkedHashMap<String, Long> points = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * A cached point, with its key to detect hash collisions
+     */
+    private static class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final LatencyStatistics stats;
+
+        Point(String key, LatencyStatistics stats) {
+            this.key = key;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Open a cache directory, creating it if needed
+     * @param directory cache directory
+     * @param maxBytes size limit of the points in the directory
+     * @throws IOException
+     */
+    public ResultCache(String directory, long maxBytes) throws IOException {
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list cache directory " + directory);
+        }
+        // Last use of a point is its file's modification time
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                points.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * @param bp protocol, identified by its toString() which includes its parameters
+     * @param testingDevices device count
+     * @param seed seed of the sweep
+     * @param mode anything else the point's result depends on, e.g. repetitions and stopping rule
+     * @return key of the point
+     */
+    public static String key(IBackoffProtocol bp, int testingDevices, long seed, String mode) {
+        return "v" + VERSION + " " + bp + " devices=" + testingDevices + " seed=" + seed + " " + mode;
+    }
+
+    /**
+     * @param key key of the point
+     * @return statistics of the point, null if it isn't cached
+     */
+    public synchronized LatencyStatistics get(String key) {
+        String name = getFileName(key);
+        File file = new File(directory, name);
+        if (points.get(name) == null) {
+            misses++;
+            return null;
+        }
+        Point point = null;
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                point = (Point) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Deleted by another process or unreadable, e.g. written by an older version
+            remove(name);
+        } catch (ClassNotFoundException e) {
+            remove(name);
+        }
+        if (point == null || !point.key.equals(key)) {
+            misses++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        hits++;
+        return point.stats;
+    }
+
+    /**
+     * Cache a point, evicting the least recently used ones if the cache is over its size limit.
+     * The point is written to a temporary file and moved in place, so readers, also in other
+     * processes, never see a partial point.
+     * @param key key of the point
+     * @param stats statistics of the point
+     * @throws IOException
+     */
+    public synchronized void put(String key, LatencyStatistics stats) throws IOException {
+        String name = getFileName(key);
+        File file = new File(directory, name);
+        File temp = File.createTempFile(name, ".tmp", directory);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeObject(new Point(key, stats));
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Long previous = points.put(name, file.length());
+        totalBytes += file.length() - (previous != null ? previous : 0);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = points.entrySet().iterator();
+        // The point just added is kept even if it is larger than the limit
+        while (totalBytes > maxBytes && points.size() > 1) {
+            Map.Entry<String, Long> point = eldest.next();
+            new File(directory, point.getKey()).delete();
+            totalBytes -= point.getValue();
+            eldest.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = points.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(directory, name).delete();
+    }
+
+    private static String getFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return points.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Cache a few points in a cache limited to two of them and check the oldest is evicted
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        File directory = Files.createTempDirectory("result-cache").toFile();
+        IBackoffProtocol bp = new BinaryExponentialBackoff();
+        LatencyStatistics stats = new LatencyStatistics();
+        for (int i = 1; i <= 10; i++) {
+            stats.add(i * 100);
+        }
+        ResultCache cache = new ResultCache(directory.getPath(), 1);
+        long size = 0;
+        for (int devices = 100; devices <= 300; devices += 100) {
+            cache.put(key(bp, devices, 1, "repetitions=10"), stats);
+            size = Math.max(size, cache.getTotalBytes());
+        }
+        assert cache.size() == 1;
+        cache = new ResultCache(directory.getPath(), 2 * size);
+        cache.put(key(bp, 400, 1, "repetitions=10"), stats);
+        assert cache.get(key(bp, 300, 1, "repetitions=10")) != null;
+        cache.put(key(bp, 500, 1, "repetitions=10"), stats);
+        assert cache.get(key(bp, 400, 1, "repetitions=10")) == null;
+        assert cache.get(key(bp, 300, 1, "repetitions=10")).getMean() == stats.getMean();
+        System.out.println(cache.size() + " points, " + cache.getTotalBytes() + " bytes, " + cache.getHits() + " hits, "
+                + cache.getMisses() + " misses");
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
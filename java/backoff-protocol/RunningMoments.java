@@ -0,0 +1,50 @@
+import java.io.Serializable;
+
+/**
+ * @author Anh Do
+ *
+ * Count, mean and variance of a stream of values that may be negative, e.g. differences of latencies
+ * between two protocols, with Welford's algorithm. See {@link LatencyStatistics} for latencies.
+ */
+public class RunningMoments implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long count;
+    private double mean;
+    private double squaredDeviations;
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        squaredDeviations += delta * (value - mean);
+    }
+
+    public void clear() {
+        count = 0;
+        mean = 0;
+        squaredDeviations = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return sample variance, 0 with less than two values
+     */
+    public double getVariance() {
+        return count > 1 ? squaredDeviations / (count - 1) : 0;
+    }
+
+    /**
+     * @return half width of the 95% confidence interval of the mean, infinite with less than two values
+     */
+    public double getConfidenceHalfWidth() {
+        return LatencyStatistics.confidenceHalfWidth(getVariance(), count);
+    }
+}
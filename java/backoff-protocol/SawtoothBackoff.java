@@ -0,0 +1,98 @@
+/**
+ * @author Anh Do
+ *
+ * Implementation of sawtooth backoff protocol. Rounds are grouped in phases: phase i runs windows
+ * initial * growth^i, initial * growth^(i-1), ..., initial, so every phase starts from a larger window
+ * and then sweeps back down to the initial one:
+ * 2 | 4 2 | 8 4 2 | 16 8 4 2 | ...
+ */
+public class SawtoothBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 2;
+    final static double DEFAULT_GROWTH = 2;
+
+    private final double growth;
+    private final int initialWindowSize;
+
+    public SawtoothBackoff() {
+        this(DEFAULT_GROWTH, INITIAL_WINDOW_SIZE);
+    }
+
+    /**
+     * @param growth ratio between the largest windows of consecutive phases, more than 1
+     * @param initialWindowSize size of the first window and of the last window of every phase
+     */
+    public SawtoothBackoff(double growth, int initialWindowSize) {
+        if (growth <= 1 || initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Invalid sawtooth backoff: growth=" + growth + " initial=" + initialWindowSize);
+        }
+        this.growth = growth;
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    @Override
+    public String getName() {
+        return "sawtooth";
+    }
+
+    @Override
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Without the round, only the start of the next phase can be known: the window grows like
+     * exponential backoff
+     */
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(numSlots * growth));
+    }
+
+    /**
+     * The window sweeps down within a phase, which the window size alone doesn't tell
+     */
+    @Override
+    public boolean dependsOnSizeOnly() {
+        return false;
+    }
+
+    @Override
+    public int nextWindowSize(Window w) {
+        return windowSize(w.getRound() + 1);
+    }
+
+    /**
+     * @param round round from 0
+     * @return window size of the round
+     */
+    int windowSize(int round) {
+        // Phase i starts at round i * (i + 1) / 2
+        int phase = 0;
+        while ((phase + 1) * (phase + 2) / 2 <= round) {
+            phase++;
+        }
+        int exponent = phase - (round - phase * (phase + 1) / 2);
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(initialWindowSize * Math.pow(growth, exponent)));
+    }
+
+    public double getGrowth() {
+        return growth;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(growth=" + growth + ", initial=" + initialWindowSize + ")";
+    }
+
+    public static void main(String[] args) {
+        Window w = new Window(2);
+        System.out.println("Current window size = " + w.getNumSlots());
+        SawtoothBackoff sb = new SawtoothBackoff();
+        int[] expected = { 2, 4, 2, 8, 4, 2, 16, 8, 4, 2 };
+        for (int round = 1; round < expected.length; round++) {
+            w = sb.nextWindow(w);
+            assert w.getNumSlots() == expected[round];
+            System.out.println("Next window size = " + w.getNumSlots());
+        }
+    }
+}
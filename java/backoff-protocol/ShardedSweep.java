@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anh Do
+ *
+ * Sweep split across worker processes. The repetitions of every (protocol, device count) point are
+ * split in one contiguous range per shard, so every worker gets a similar share of small and large
+ * device counts, see {@link ParallelSweep#sweep(List, int, int)}. A worker runs its shard on its own
+ * {@link ParallelSweep} and writes the partial statistics to a shared directory; the coordinator merges
+ * them with {@link LatencyStatistics#merge} into the same output files as {@link SweepRunner}. Trials
+ * are seeded as in a single process, so merged means are the same as a single-process sweep's.
+ *
+ * On one host the coordinator launches the workers itself. On several hosts, run a worker per shard
+ * with --worker on a shared directory, then the coordinator with --merge.
+ */
+public class ShardedSweep {
+    final static String DEFAULT_DIRECTORY = "shards";
+
+    /**
+     * Statistics of one shard, with the configuration of the sweep to check all shards belong to it
+     */
+    static class Partial implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int shard;
+        private final String configuration;
+        private final List<LatencyStatistics[]> stats;
+
+        Partial(int shard, String configuration, List<LatencyStatistics[]> stats) {
+            this.shard = shard;
+            this.configuration = configuration;
+            this.stats = stats;
+        }
+    }
+
+    private final List<String> specFiles;
+    private final List<SweepSpec> specs = new ArrayList<SweepSpec>();
+    private final File directory;
+    private final int shards;
+    private final long seed;
+    private final boolean sampleOccupancy;
+    private final boolean commonRandomNumbers;
+
+    /**
+     * @param specFiles sweep spec files, see {@link SweepSpec}
+     * @param directory directory shared by the coordinator and the workers
+     * @param shards number of workers
+     * @param seed seed of the sweep
+     * @param sampleOccupancy use the occupancy-sampling fast path
+     * @param commonRandomNumbers share trial seeds across protocols
+     * @throws IOException
+     * @throws IllegalArgumentException if there are no shards
+     */
+    public ShardedSweep(List<String> specFiles, String directory, int shards, long seed, boolean sampleOccupancy,
+            boolean commonRandomNumbers) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: " + shards);
+        }
+        this.specFiles = specFiles;
+        this.directory = new File(directory);
+        this.shards = shards;
+        this.seed = seed;
+        this.sampleOccupancy = sampleOccupancy;
+        this.commonRandomNumbers = commonRandomNumbers;
+        for (String file : specFiles) {
+            specs.addAll(SweepSpec.read(file, ProtocolRegistry.getDefault()));
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create shard directory " + directory);
+        }
+    }
+
+    /**
+     * @return everything the statistics of a shard depend on except the shard
+     */
+    private String getConfiguration() {
+        StringBuilder configuration = new StringBuilder();
+        configuration.append("shards=").append(shards).append(" seed=").append(seed).append(" sample=").append(sampleOccupancy)
+                .append(" crn=").append(commonRandomNumbers);
+        for (SweepSpec spec : specs) {
+            configuration.append('\n').append(spec.getProtocol()).append(' ').append(spec);
+        }
+        return configuration.toString();
+    }
+
+    private File getPartialFile(int shard) {
+        return new File(directory, "shard-" + shard + "-of-" + shards + ".bin");
+    }
+
+    /**
+     * Run a shard and write its statistics to the shared directory
+     * @param shard shard to run
+     * @param parallelism worker threads
+     * @throws IOException
+     * @throws IllegalArgumentException if the shard is not one of the sweep's
+     */
+    public void runWorker(int shard, int parallelism) throws IOException {
+        if (shard < 0 || shard >= shards) {
+            // A shard out of range would run repetitions outside the sweep, into a file no merge reads
+            throw new IllegalArgumentException("Invalid shard " + shard + ", expected 0 to " + (shards - 1));
+        }
+        myBackoff simulator = new myBackoff(myBackoff.DEFAULT_NUM_DEVICES, sampleOccupancy);
+        simulator.setCommonRandomNumbers(commonRandomNumbers, null);
+        ParallelSweep sweep = new ParallelSweep(simulator, seed, parallelism);
+        long start = System.nanoTime();
+        List<LatencyStatistics[]> stats = sweep.sweep(specs, shard, shards);
+        sweep.shutdown();
+
+        // Written aside and moved in place, so the coordinator never reads a partial shard
+        File file = getPartialFile(shard);
+        File temp = new File(directory, file.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeObject(new Partial(shard, getConfiguration(), stats));
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("[shard " + shard + "/" + shards + "] finished in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Run every shard in its own JVM on this host and wait for all of them
+     * @param parallelism worker threads of each worker
+     * @throws IOException if a worker fails
+     * @throws InterruptedException
+     */
+    public void launchWorkers(int parallelism) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> workers = new ArrayList<Process>();
+        for (int shard = 0; shard < shards; shard++) {
+            getPartialFile(shard).delete();
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ShardedSweep.class.getName());
+            command.add("--worker");
+            command.add(String.valueOf(shard));
+            command.add("--shards");
+            command.add(String.valueOf(shards));
+            command.add("--directory");
+            command.add(directory.getPath());
+            command.add("--seed");
+            command.add(String.valueOf(seed));
+            command.add("--parallelism");
+            command.add(String.valueOf(parallelism));
+            if (sampleOccupancy) {
+                command.add("--sample");
+            }
+            if (commonRandomNumbers) {
+                command.add("--crn");
+            }
+            command.addAll(specFiles);
+            workers.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        IOException failure = null;
+        for (int shard = 0; shard < shards; shard++) {
+            int status = workers.get(shard).waitFor();
+            if (status != 0 && failure == null) {
+                failure = new IOException("Worker of shard " + shard + " exited with status " + status);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Merge the statistics of all shards
+     * @return for each configuration, latency statistics indexed by device count step
+     * @throws IOException if a shard is missing or belongs to another sweep
+     */
+    public List<LatencyStatistics[]> merge() throws IOException {
+        List<LatencyStatistics[]> stats = new ArrayList<LatencyStatistics[]>();
+        for (SweepSpec spec : specs) {
+            LatencyStatistics[] sweepStats = new LatencyStatistics[spec.getDeviceCounts()];
+            for (int countIndex = 0; countIndex < sweepStats.length; countIndex++) {
+                sweepStats[countIndex] = new LatencyStatistics();
+            }
+            stats.add(sweepStats);
+        }
+        String configuration = getConfiguration();
+        for (int shard = 0; shard < shards; shard++) {
+            Partial partial = readPartial(getPartialFile(shard));
+            if (partial.shard != shard || !partial.configuration.equals(configuration)) {
+                throw new IOException(getPartialFile(shard) + " belongs to another sweep:\n" + partial.configuration);
+            }
+            for (int i = 0; i < specs.size(); i++) {
+                for (int countIndex = 0; countIndex < stats.get(i).length; countIndex++) {
+                    stats.get(i)[countIndex].merge(partial.stats.get(i)[countIndex]);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static Partial readPartial(File file) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("Missing shard " + file);
+        }
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (Partial) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a shard: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the merged statistics to the spec output files and the results file
+     * @param stats merged statistics
+     * @throws IOException
+     */
+    public void writeResults(List<LatencyStatistics[]> stats) throws IOException {
+        LatencyResultFile results = new LatencyResultFile(myBackoff.RESULT_FILE);
+        for (int i = 0; i < specs.size(); i++) {
+            ParallelSweep.writeResults(specs.get(i), stats.get(i), results);
+        }
+        results.close();
+    }
+
+    /**
+     * Usage: java ShardedSweep [--shards n] [--directory dir] [--seed n] [--parallelism n] [--sample] [--crn]
+     * [--worker shard | --merge] <spec-file>...
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int shards = Runtime.getRuntime().availableProcessors();
+        String directory = DEFAULT_DIRECTORY;
+        long seed = ParallelSweep.DEFAULT_SEED;
+        Integer parallelism = null;
+        boolean sampleOccupancy = false;
+        boolean commonRandomNumbers = false;
+        Integer worker = null;
+        boolean mergeOnly = false;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--shards")) {
+                shards = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--directory")) {
+                directory = args[++i];
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--parallelism")) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sample")) {
+                sampleOccupancy = true;
+            } else if (args[i].equals("--crn")) {
+                commonRandomNumbers = true;
+            } else if (args[i].equals("--worker")) {
+                worker = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--merge")) {
+                mergeOnly = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java ShardedSweep [--shards n] [--directory dir] [--seed n] [--parallelism n] [--sample]"
+                    + " [--crn] [--worker shard | --merge] <spec-file>...");
+            return;
+        }
+
+        ShardedSweep sweep = new ShardedSweep(files, directory, shards, seed, sampleOccupancy, commonRandomNumbers);
+        if (worker != null) {
+            sweep.runWorker(worker, parallelism != null ? parallelism : Runtime.getRuntime().availableProcessors());
+            return;
+        }
+        long start = System.nanoTime();
+        if (!mergeOnly) {
+            // Workers share the cores of this host
+            sweep.launchWorkers(parallelism != null ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / shards));
+        }
+        sweep.writeResults(sweep.merge());
+        System.out.println(shards + " shards merged in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * @author Anh Do
+ *
+ * Live counters of the simulator: trials, devices and windows simulated, window buffer allocations, and the
+ * progress of every protocol being swept. Counters are {@link LongAdder}s shared by all threads of the
+ * JVM and only touched once per trial, so they stay on in production runs.
+ *
+ * They are published as a periodic stats line, see {@link #startReporter(PrintStream, long)}, and as JFR
+ * events, see {@link SweepStatisticsEvent} and {@link DeviceCountEvent}.
+ */
+public class SimulationMetrics {
+    private static final LongAdder trials = new LongAdder();
+    private static final LongAdder devices = new LongAdder();
+    private static final LongAdder windows = new LongAdder();
+    private static final LongAdder windowAllocations = new LongAdder();
+    private static final Map<String, Progress> progresses = new ConcurrentHashMap<String, Progress>();
+
+    static {
+        // Emitted at the period of the recording's settings, every second by default
+        FlightRecorder.addPeriodicEvent(SweepStatisticsEvent.class, new Runnable() {
+            private Snapshot last = Snapshot.take();
+
+            @Override
+            public void run() {
+                Snapshot now = Snapshot.take();
+                for (Progress progress : getProgresses()) {
+                    SweepStatisticsEvent event = new SweepStatisticsEvent();
+                    event.protocol = progress.protocol;
+                    event.devices = progress.currentDevices;
+                    event.percentDone = progress.getPercentDone();
+                    event.etaSeconds = progress.getEtaSeconds();
+                    event.trialsPerSecond = now.rate(last, now.trials - last.trials);
+                    event.devicesPerSecond = now.rate(last, now.devices - last.devices);
+                    event.windowsPerSecond = now.rate(last, now.windows - last.windows);
+                    event.windowAllocations = now.windowAllocations;
+                    event.commit();
+                }
+                last = now;
+            }
+        });
+    }
+
+    /**
+     * Sweep progress of a protocol. Work is counted in device trials, i.e. devices summed over trials,
+     * since a trial's cost grows with its devices.
+     */
+    static class Progress {
+        private final String protocol;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder doneDeviceTrials = new LongAdder();
+        private volatile long plannedDeviceTrials;
+        private volatile int currentDevices;
+
+        Progress(String protocol) {
+            this.protocol = protocol;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public int getCurrentDevices() {
+            return currentDevices;
+        }
+
+        public double getPercentDone() {
+            long planned = plannedDeviceTrials;
+            return planned > 0 ? Math.min(100, 100.0 * doneDeviceTrials.sum() / planned) : 0;
+        }
+
+        /**
+         * @return seconds left at the average rate of the protocol so far, -1 if unknown
+         */
+        public long getEtaSeconds() {
+            long done = doneDeviceTrials.sum();
+            long planned = plannedDeviceTrials;
+            if (done == 0 || planned == 0) {
+                return -1;
+            }
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            return (long) Math.ceil(Math.max(0, planned - done) * elapsed / done);
+        }
+    }
+
+    /**
+     * Values of the global counters at one time
+     */
+    static class Snapshot {
+        final long nanos;
+        final long trials;
+        final long devices;
+        final long windows;
+        final long windowAllocations;
+
+        private Snapshot() {
+            nanos = System.nanoTime();
+            trials = SimulationMetrics.trials.sum();
+            devices = SimulationMetrics.devices.sum();
+            windows = SimulationMetrics.windows.sum();
+            windowAllocations = SimulationMetrics.windowAllocations.sum();
+        }
+
+        static Snapshot take() {
+            return new Snapshot();
+        }
+
+        double rate(Snapshot since, long delta) {
+            double seconds = (nanos - since.nanos) / 1e9;
+            return seconds > 0 ? delta / seconds : 0;
+        }
+    }
+
+    /**
+     * Count a finished trial
+     * @param protocol protocol name
+     * @param testingDevices devices of the trial
+     * @param numWindows windows the trial went through
+     */
+    public static void trialCompleted(String protocol, int testingDevices, int numWindows) {
+        trials.increment();
+        devices.add(testingDevices);
+        windows.add(numWindows);
+        Progress progress = progresses.get(protocol);
+        if (progress != null) {
+            progress.doneDeviceTrials.add(testingDevices);
+        }
+    }
+
+    /**
+     * Count an allocation of a {@link Window}'s slot buffer. Window objects themselves aren't counted,
+     * that would keep the JIT from scalar replacing short-lived ones.
+     */
+    public static void windowAllocated() {
+        windowAllocations.increment();
+    }
+
+    /**
+     * Start tracking the progress of a protocol, or add work to it if it is already tracked
+     * @param protocol protocol name
+     * @param plannedDeviceTrials devices summed over the trials planned
+     */
+    public static void startProtocol(String protocol, long plannedDeviceTrials) {
+        Progress progress = progresses.get(protocol);
+        if (progress == null) {
+            progress = new Progress(protocol);
+            progresses.put(protocol, progress);
+        }
+        progress.plannedDeviceTrials += plannedDeviceTrials;
+    }
+
+    /**
+     * Revise the planned work of a protocol, e.g. when trials stop on precision
+     */
+    public static void setPlannedDeviceTrials(String protocol, long plannedDeviceTrials) {
+        Progress progress = progresses.get(protocol);
+        if (progress != null) {
+            progress.plannedDeviceTrials = plannedDeviceTrials;
+        }
+    }
+
+    /**
+     * Remove work from the plan of a protocol, e.g. points found in the {@link ResultCache}
+     */
+    public static void skipDeviceTrials(String protocol, long deviceTrials) {
+        Progress progress = progresses.get(protocol);
+        if (progress != null) {
+            progress.plannedDeviceTrials -= deviceTrials;
+        }
+    }
+
+    public static void setDeviceCount(String protocol, int testingDevices) {
+        Progress progress = progresses.get(protocol);
+        if (progress != null) {
+            progress.currentDevices = testingDevices;
+        }
+    }
+
+    /**
+     * @return devices summed over the trials of the protocol since it started, 0 if it isn't tracked
+     */
+    public static long getDoneDeviceTrials(String protocol) {
+        Progress progress = progresses.get(protocol);
+        return progress != null ? progress.doneDeviceTrials.sum() : 0;
+    }
+
+    public static void finishProtocol(String protocol) {
+        progresses.remove(protocol);
+    }
+
+    /**
+     * @return progress of the protocols being swept
+     */
+    public static List<Progress> getProgresses() {
+        return new ArrayList<Progress>(progresses.values());
+    }
+
+    public static long getTrials() {
+        return trials.sum();
+    }
+
+    public static long getWindowAllocations() {
+        return windowAllocations.sum();
+    }
+
+    /**
+     * @param since previous snapshot
+     * @param now current snapshot
+     * @return one line of rates since the previous snapshot and progress of every protocol
+     */
+    static String formatLine(Snapshot since, Snapshot now) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT, "[stats] %.0f trials/s, %.0f devices/s, %.0f windows/s, %d window allocations",
+                now.rate(since, now.trials - since.trials), now.rate(since, now.devices - since.devices),
+                now.rate(since, now.windows - since.windows), now.windowAllocations));
+        for (Progress progress : getProgresses()) {
+            long eta = progress.getEtaSeconds();
+            line.append(String.format(Locale.ROOT, " | %s at %d devices, %.1f%%, eta %s", progress.protocol, progress.currentDevices,
+                    progress.getPercentDone(), eta < 0 ? "?" : eta + " s"));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Print a stats line periodically on a daemon thread
+     * @param out stream receiving the lines
+     * @param interval milliseconds between lines
+     * @return timer to cancel the reporter
+     */
+    public static Timer startReporter(final PrintStream out, long interval) {
+        Timer timer = new Timer("simulation-metrics", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            private Snapshot last = Snapshot.take();
+
+            @Override
+            public void run() {
+                Snapshot now = Snapshot.take();
+                out.println(formatLine(last, now));
+                last = now;
+            }
+        }, interval, interval);
+        return timer;
+    }
+
+    /**
+     * Print stats lines every second while the default sweep runs in parallel
+     * @param args
+     */
+    public static void main(String[] args) {
+        ParallelSweep sweep = new ParallelSweep(new myBackoff(myBackoff.DEFAULT_NUM_DEVICES), ParallelSweep.DEFAULT_SEED,
+                Runtime.getRuntime().availableProcessors());
+        Timer reporter = startReporter(System.out, 1000);
+        for (IBackoffProtocol bp : ProtocolRegistry.getDefault().getDefaultSweep()) {
+            sweep.sweep(new SweepSpec(bp, myBackoff.DEVICE_COUNT_STEP, myBackoff.DEFAULT_NUM_DEVICES, myBackoff.DEVICE_COUNT_STEP,
+                    myBackoff.MAXIMUM_REPEATITION_FOR_EACH_SIMULATION, null));
+        }
+        reporter.cancel();
+        sweep.shutdown();
+        System.out.println(getTrials() + " trials, " + getWindowAllocations() + " window allocations");
+    }
+}
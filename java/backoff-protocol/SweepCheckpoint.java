@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Anh Do
+ *
+ * Progress of a {@link myBackoff#runSimulation()} sweep: the next trial to run, the statistics of the
+ * device count in progress and its differences with the reference protocol, the random stream and
+ * how many bytes of each output file were written. Restarting from a checkpoint truncates the output files to those lengths and carries on with the
+ * same random stream, so an interrupted sweep ends with the same files as an uninterrupted one.
+ */
+public class SweepCheckpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Configuration of the sweep, a checkpoint is only resumed by the same configuration
+    private final int numDevices;
+    private final boolean sampleOccupancy;
+    private final long seed;
+    private final String mode; // Stopping rule and random numbers, see myBackoff#getMode()
+    private final List<String> protocols;
+
+    private int protocolIndex;
+    private int testingDevices;
+    private int repeatition;
+    private LatencyStatistics stats;
+    private RunningMoments differences; // Paired differences with the reference protocol
+    private Random slotGenerator;
+    // Length of the protocol's text file, -1 if it hasn't been started
+    private long outputLength = -1;
+    private long resultsLength = -1;
+
+    public SweepCheckpoint(int numDevices, boolean sampleOccupancy, long seed, String mode, List<String> protocols) {
+        this.numDevices = numDevices;
+        this.sampleOccupancy = sampleOccupancy;
+        this.seed = seed;
+        this.mode = mode;
+        this.protocols = new ArrayList<String>(protocols);
+    }
+
+    /**
+     * Move to the first trial of a protocol
+     * @param protocolIndex index in {@link #getProtocols()}
+     * @param slotGenerator random stream of the protocol
+     */
+    public void startProtocol(int protocolIndex, Random slotGenerator) {
+        this.protocolIndex = protocolIndex;
+        this.slotGenerator = slotGenerator;
+        testingDevices = myBackoff.DEVICE_COUNT_STEP;
+        repeatition = 1;
+        stats = new LatencyStatistics();
+        differences = new RunningMoments();
+        outputLength = -1;
+    }
+
+    /**
+     * Record the next trial to run. The statistics and random stream are the live objects of the
+     * sweep, they are captured when the checkpoint is saved.
+     */
+    public void setNextTrial(int testingDevices, int repeatition) {
+        this.testingDevices = testingDevices;
+        this.repeatition = repeatition;
+    }
+
+    /**
+     * @param outputLength bytes written to the protocol's text file
+     * @param resultsLength bytes written to the results file
+     */
+    public void setLengths(long outputLength, long resultsLength) {
+        this.outputLength = outputLength;
+        this.resultsLength = resultsLength;
+    }
+
+    public int getNumDevices() {
+        return numDevices;
+    }
+
+    public boolean isSampleOccupancy() {
+        return sampleOccupancy;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public List<String> getProtocols() {
+        return protocols;
+    }
+
+    public int getProtocolIndex() {
+        return protocolIndex;
+    }
+
+    public int getTestingDevices() {
+        return testingDevices;
+    }
+
+    public int getRepeatition() {
+        return repeatition;
+    }
+
+    public LatencyStatistics getStats() {
+        return stats;
+    }
+
+    public RunningMoments getDifferences() {
+        return differences;
+    }
+
+    public Random getSlotGenerator() {
+        return slotGenerator;
+    }
+
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    public long getResultsLength() {
+        return resultsLength;
+    }
+
+    /**
+     * @throws IOException if the checkpoint was taken by a sweep with another configuration
+     */
+    public void checkResumable(int numDevices, boolean sampleOccupancy, String mode, List<String> protocols) throws IOException {
+        if (this.numDevices != numDevices || this.sampleOccupancy != sampleOccupancy || !this.mode.equals(mode)
+                || !this.protocols.equals(protocols)) {
+            throw new IOException("Checkpoint of a different sweep: devices=" + this.numDevices + " sample=" + this.sampleOccupancy
+                    + " " + this.mode + " protocols=" + this.protocols + ", expected devices=" + numDevices + " sample="
+                    + sampleOccupancy + " " + mode + " protocols=" + protocols);
+        }
+    }
+
+    /**
+     * Write the checkpoint to a temporary file and move it over the previous one, so that the
+     * checkpoint file is always complete even if the process dies while saving.
+     * @param path checkpoint file
+     * @throws IOException
+     */
+    public void save(String path) throws IOException {
+        File file = new File(path).getAbsoluteFile();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeObject(this);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param path checkpoint file
+     * @return the checkpoint, or null if there is none
+     * @throws IOException
+     */
+    public static SweepCheckpoint load(String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (SweepCheckpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a sweep checkpoint: " + path, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Cut a file back to the length it had at the checkpoint, dropping what was written after it
+     * @param path output file
+     * @param length length at the checkpoint
+     * @throws IOException
+     */
+    static void truncate(String path, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() < length) {
+                throw new IOException(path + " is shorter than at the checkpoint: " + file.length() + " < " + length + " bytes");
+            }
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+}
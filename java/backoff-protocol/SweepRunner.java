@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anh Do
+ *
+ * Run the configurations of one or more sweep spec files back to back in a single JVM, so the
+ * JIT and the worker pool stay warm across configurations. See {@link SweepSpec} for the file format.
+ */
+public class SweepRunner {
+    private final ParallelSweep sweep;
+    private final LatencyResultFile results;
+
+    /**
+     * @param sweep parallel sweep engine
+     * @param results binary results file shared by all configurations, may be null
+     */
+    public SweepRunner(ParallelSweep sweep, LatencyResultFile results) {
+        this.sweep = sweep;
+        this.results = results;
+    }
+
+    /**
+     * Run every configuration, writing each one's results as soon as it completes
+     * @param specs configurations to run
+     * @throws IOException
+     */
+    public void run(List<SweepSpec> specs) throws IOException {
+        int done = 0;
+        for (SweepSpec spec : specs) {
+            long start = System.nanoTime();
+            LatencyStatistics[] stats = sweep.sweep(spec);
+            ParallelSweep.writeResults(spec, stats, results);
+            if (results != null) {
+                results.flush();
+            }
+            done++;
+            System.out.println("[" + done + "/" + specs.size() + "] " + spec + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Usage: java SweepRunner [--seed n] [--parallelism n] [--sample] [--crn] [--stats-interval seconds]
+     * [--cache directory] <spec-file>...
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        long seed = ParallelSweep.DEFAULT_SEED;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean sampleOccupancy = false;
+        boolean commonRandomNumbers = false;
+        long statsInterval = myBackoff.DEFAULT_STATS_INTERVAL;
+        String cacheDirectory = null;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--parallelism")) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sample")) {
+                sampleOccupancy = true;
+            } else if (args[i].equals("--crn")) {
+                commonRandomNumbers = true;
+            } else if (args[i].equals("--stats-interval")) {
+                statsInterval = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else if (args[i].equals("--cache")) {
+                cacheDirectory = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java SweepRunner [--seed n] [--parallelism n] [--sample] [--crn] [--stats-interval seconds]"
+                    + " [--cache directory] <spec-file>...");
+            return;
+        }
+
+        ProtocolRegistry registry = ProtocolRegistry.getDefault();
+        List<SweepSpec> specs = new ArrayList<SweepSpec>();
+        for (String file : files) {
+            specs.addAll(SweepSpec.read(file, registry));
+        }
+
+        myBackoff simulator = new myBackoff(myBackoff.DEFAULT_NUM_DEVICES, sampleOccupancy);
+        simulator.setCommonRandomNumbers(commonRandomNumbers, null);
+        ParallelSweep sweep = new ParallelSweep(simulator, seed, parallelism);
+        if (cacheDirectory != null) {
+            sweep.setCache(new ResultCache(cacheDirectory, ResultCache.DEFAULT_MAX_BYTES));
+        }
+        LatencyResultFile results = new LatencyResultFile(myBackoff.RESULT_FILE);
+        if (statsInterval > 0) {
+            SimulationMetrics.startReporter(System.out, statsInterval);
+        }
+        long start = System.nanoTime();
+        new SweepRunner(sweep, results).run(specs);
+        results.close();
+        sweep.shutdown();
+        System.out.println(specs.size() + " configurations finished in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
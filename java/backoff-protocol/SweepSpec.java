@@ -0,0 +1,190 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anh Do
+ *
+ * One configuration of a sweep: a protocol run over a range of device counts, a number of
+ * repetitions per device count and the text file receiving the average latencies.
+ *
+ * A sweep spec file holds one configuration per line, as space separated key=value pairs:
+ * <pre>
+ * # comment
+ * protocol=binary devices=100..6000 step=100 repetitions=10 output=binaryLatency.txt
+ * </pre>
+ * Only protocol is required. devices defaults to 100..6000, step to 100, repetitions to 10 and
+ * output to the protocol's default file, see {@link myBackoff#getOutputFile(IBackoffProtocol)}.
+ */
+public class SweepSpec {
+    private final IBackoffProtocol protocol;
+    private final int fromDevices;
+    private final int toDevices;
+    private final int step;
+    private final int repetitions;
+    private final String output;
+
+    /**
+     * @param protocol protocol to simulate
+     * @param fromDevices smallest device count
+     * @param toDevices largest device count, inclusive
+     * @param step device count increment
+     * @param repetitions trials per device count
+     * @param output text file of average latencies
+     */
+    public SweepSpec(IBackoffProtocol protocol, int fromDevices, int toDevices, int step, int repetitions, String output) {
+        if (fromDevices <= 0 || toDevices < fromDevices || step <= 0 || repetitions <= 0) {
+            throw new IllegalArgumentException("Invalid sweep: devices=" + fromDevices + ".." + toDevices + " step=" + step
+                    + " repetitions=" + repetitions);
+        }
+        this.protocol = protocol;
+        this.fromDevices = fromDevices;
+        this.toDevices = toDevices;
+        this.step = step;
+        this.repetitions = repetitions;
+        this.output = output;
+    }
+
+    /**
+     * Sweep of {@link myBackoff#runSimulation()} for a protocol
+     * @param protocol protocol to simulate
+     * @param numDevices largest device count
+     */
+    public SweepSpec(IBackoffProtocol protocol, int numDevices) {
+        this(protocol, myBackoff.DEVICE_COUNT_STEP, numDevices, myBackoff.DEVICE_COUNT_STEP,
+                myBackoff.MAXIMUM_REPEATITION_FOR_EACH_SIMULATION, myBackoff.getOutputFile(protocol));
+    }
+
+    public IBackoffProtocol getProtocol() {
+        return protocol;
+    }
+
+    public int getFromDevices() {
+        return fromDevices;
+    }
+
+    public int getToDevices() {
+        return toDevices;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public int getRepetitions() {
+        return repetitions;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * @return number of device counts in the sweep
+     */
+    public int getDeviceCounts() {
+        return (toDevices - fromDevices) / step + 1;
+    }
+
+    /**
+     * @param countIndex index of a device count, from 0
+     * @return number of devices
+     */
+    public int getDevices(int countIndex) {
+        return fromDevices + countIndex * step;
+    }
+
+    /**
+     * @return number of trials in the sweep
+     */
+    public int getTrials() {
+        return getDeviceCounts() * repetitions;
+    }
+
+    @Override
+    public String toString() {
+        return "protocol=" + protocol.getName() + " devices=" + fromDevices + ".." + toDevices + " step=" + step
+                + " repetitions=" + repetitions + " output=" + output;
+    }
+
+    /**
+     * Parse one line of a sweep spec file
+     * @param line key=value pairs
+     * @param registry protocols by name
+     * @return the configuration
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static SweepSpec parse(String line, ProtocolRegistry registry) {
+        String protocol = null;
+        String output = null;
+        int fromDevices = myBackoff.DEVICE_COUNT_STEP;
+        int toDevices = myBackoff.DEFAULT_NUM_DEVICES;
+        int step = myBackoff.DEVICE_COUNT_STEP;
+        int repetitions = myBackoff.MAXIMUM_REPEATITION_FOR_EACH_SIMULATION;
+        for (String token : line.trim().split("\\s+")) {
+            int equals = token.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected key=value but got '" + token + "' in: " + line);
+            }
+            String key = token.substring(0, equals);
+            String value = token.substring(equals + 1);
+            if (key.equals("protocol")) {
+                protocol = value;
+            } else if (key.equals("devices")) {
+                int range = value.indexOf("..");
+                if (range < 0) {
+                    fromDevices = toDevices = Integer.parseInt(value);
+                } else {
+                    fromDevices = Integer.parseInt(value.substring(0, range));
+                    toDevices = Integer.parseInt(value.substring(range + 2));
+                }
+            } else if (key.equals("step")) {
+                step = Integer.parseInt(value);
+            } else if (key.equals("repetitions")) {
+                repetitions = Integer.parseInt(value);
+            } else if (key.equals("output")) {
+                output = value;
+            } else {
+                throw new IllegalArgumentException("Unknown key '" + key + "' in: " + line);
+            }
+        }
+        if (protocol == null) {
+            throw new IllegalArgumentException("Missing protocol in: " + line);
+        }
+        IBackoffProtocol bp = registry.get(protocol);
+        return new SweepSpec(bp, fromDevices, toDevices, step, repetitions, output != null ? output : myBackoff.getOutputFile(bp));
+    }
+
+    /**
+     * Read a sweep spec file. Blank lines and lines starting with # are skipped.
+     * @param path sweep spec file
+     * @param registry protocols by name
+     * @return configurations in file order
+     * @throws IOException
+     */
+    public static List<SweepSpec> read(String path, ProtocolRegistry registry) throws IOException {
+        List<SweepSpec> specs = new ArrayList<SweepSpec>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    specs.add(parse(line, registry));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return specs;
+    }
+}
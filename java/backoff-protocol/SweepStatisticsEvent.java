@@ -0,0 +1,44 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author Anh Do
+ *
+ * Periodic JFR event with the simulator's throughput and the progress of one protocol being swept,
+ * see {@link SimulationMetrics}. Record with e.g. java -XX:StartFlightRecording:filename=sweep.jfr myBackoff
+ */
+@Name("backoff.SweepStatistics")
+@Label("Sweep Statistics")
+@Category("Backoff Simulator")
+@Description("Simulator throughput and progress of a protocol sweep")
+@Period("1 s")
+@StackTrace(false)
+public class SweepStatisticsEvent extends jdk.jfr.Event {
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Device Count")
+    int devices;
+
+    @Label("Percent Done")
+    double percentDone;
+
+    @Label("Estimated Seconds Remaining")
+    long etaSeconds;
+
+    @Label("Trials per Second")
+    double trialsPerSecond;
+
+    @Label("Devices per Second")
+    double devicesPerSecond;
+
+    @Label("Windows per Second")
+    double windowsPerSecond;
+
+    @Label("Window Allocations")
+    long windowAllocations;
+}
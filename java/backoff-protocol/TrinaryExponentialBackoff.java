@@ -4,12 +4,26 @@
  * Implementation of trinary exponential backoff protocol
  */
 public class TrinaryExponentialBackoff implements IBackoffProtocol {
+    final static int INITIAL_WINDOW_SIZE = 3;
     
     @Override
-    public Window nextWindow(Window w) {
-        assert w != null;
-        int nextWindowSize = w.getNumSlots()*3;
-        return new Window(nextWindowSize);
+    public String getName() {
+        return "trinary";
+    }
+    
+    @Override
+    public int getInitialWindowSize() {
+        return INITIAL_WINDOW_SIZE;
+    }
+    
+    @Override
+    public int nextWindowSize(int numSlots) {
+        return numSlots*3;
+    }
+    
+    @Override
+    public String toString() {
+        return getName() + "(initial=" + getInitialWindowSize() + ")";
     }
     
     public static void main(String[] args) {
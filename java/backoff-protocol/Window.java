@@ -1,55 +1,402 @@
+import java.util.Arrays;
 import java.util.Random;
 
 /**
  * @author Anh Do
- * 
+ *
  * Simulation of window time frame. Each window contains a number of slots.
+ *
+ * A window can be reused across trials with {@link #reset(int)}: the slot buffer only grows,
+ * so once it has reached the largest window of a simulation no further allocation happens.
+ *
+ * When slots greatly outnumber the devices contending in a window, e.g. after a few rounds of an
+ * exponential protocol, occupancy is kept in a small open-addressing table keyed by slot instead of
+ * the dense slot buffer. A window never has more contenders than the previous one, whose count is taken
+ * as the expected number; if more devices than that show up, the window moves back to the dense buffer.
  */
 public class Window {
+    // A window is sparse if it has at least this many slots...
+    static final int SPARSE_MIN_SLOTS = 1 << 12;
+    // ...and more than this many slots per expected contender
+    static final int SPARSE_SLOTS_PER_CONTENDER = 16;
+    // Windows with at least this many devices per slot are sampled by walking their occupied slots
+    static final int CROWDED_DEVICES_PER_SLOT = 16;
+
     private int[] slots; // slots[i] = 0 => slot ith is available. Otherwise, taken
+    private int numSlots; // slots.length is the buffer capacity, only the first numSlots entries are in use
     private int largestTakenSlot;
+    private int eligibleSlots; // Slots taken by exactly one device, kept for sampled and sparse windows only
+    private int contenders; // Devices placed in this window
+    private int round; // Windows before this one in the trial, 0 for the initial window
+    private boolean sampled; // Occupancy was sampled, individual slots are unknown
     private Random slotGenerator;
-    
+
+    // Sparse occupancy: open-addressing table of slot number (from 1, 0 = empty) to number of devices
+    private boolean sparse;
+    private int[] sparseKeys; // Allocated on the first sparse take
+    private int[] sparseCounts;
+    private int[] sparseUsed; // Positions in use in the table, to clear it quickly
+    private int sparseSize;
+
     public Window(int numSlots) {
-        slots = new int[numSlots];
+        this(numSlots, new Random());
+    }
+
+    /**
+     * Create a window whose slots are drawn from the given generator. Sharing one
+     * generator across consecutive windows keeps a whole trial on a single random stream.
+     * @param numSlots number of slots in the window
+     * @param slotGenerator source of random slot numbers
+     */
+    public Window(int numSlots, Random slotGenerator) {
+        this(numSlots, slotGenerator, 0);
+    }
+
+    /**
+     * @param numSlots number of slots in the window
+     * @param slotGenerator source of random slot numbers
+     * @param round windows before this one in the trial
+     */
+    public Window(int numSlots, Random slotGenerator, int round) {
+        assert slotGenerator != null;
+        slots = new int[0];
+        this.slotGenerator = slotGenerator;
+        this.numSlots = numSlots;
+        this.round = round;
         largestTakenSlot = -1;
-        slotGenerator = new Random();
+        sparse = isSparse(numSlots, 1);
+    }
+
+    /**
+     * Turn this window into the initial window of a new trial, see {@link #reset(int)}
+     * @param numSlots number of slots in the window
+     */
+    public void reset(int numSlots) {
+        nextRound(numSlots);
+        round = 0;
+    }
+
+    /**
+     * Turn this window into an empty window of the given size, reusing the slot buffer, for the
+     * next round of the trial. Only slots up to the largest taken one can be occupied, so clearing
+     * is bounded by the previous window's latency rather than its size.
+     * @param numSlots number of slots in the window
+     */
+    public void nextRound(int numSlots) {
+        // Only devices of this window can retry in the next
+        int expectedContenders = Math.max(1, contenders);
+        if (sparse) {
+            clearSparse();
+        } else if (largestTakenSlot > 0 && !sampled) {
+            Arrays.fill(slots, 0, largestTakenSlot, 0);
+        }
+        this.numSlots = numSlots;
+        largestTakenSlot = -1;
+        eligibleSlots = 0;
+        contenders = 0;
+        round++;
+        sampled = false;
+        sparse = isSparse(numSlots, expectedContenders);
+    }
+
+    private static boolean isSparse(int numSlots, int expectedContenders) {
+        return numSlots >= SPARSE_MIN_SLOTS && (long) expectedContenders * SPARSE_SLOTS_PER_CONTENDER < numSlots;
+    }
+
+    /**
+     * Grow the slot buffer to hold the current window. Deferred until the first slot is taken,
+     * so sparse and sampled windows never allocate it.
+     */
+    private void ensureCapacity() {
+        if (numSlots > slots.length) {
+            // Grow geometrically so that slowly growing protocols (e.g. linear) don't reallocate every window
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) numSlots, slots.length + (long) (slots.length >> 1)));
+            slots = new int[capacity];
+            SimulationMetrics.windowAllocated();
+        }
     }
-    
+
     public boolean isSlotAvailable(int slotNum) {
         assert slots != null;
         assert isValidSlot(slotNum) == true;
-        return slots[slotNum] == 0;
+        assert !sampled : "Occupancy of individual slots is not known for a sampled window";
+        if (sparse) {
+            return sparseKeys == null || sparseKeys[findSparse(slotNum + 1)] == 0;
+        }
+        return slotNum >= slots.length || slots[slotNum] == 0;
     }
 
     private boolean isValidSlot(int slotNum) {
-        return slotNum >= 0 && slotNum < slots.length;
+        return slotNum >= 0 && slotNum < numSlots;
     }
-    
+
     public int getNumSlots() {
-        return slots != null ? slots.length : 0;
+        return numSlots;
     }
-    
+
+    public Random getSlotGenerator() {
+        return slotGenerator;
+    }
+
     public int getLargestTakenSlot() {
     	return largestTakenSlot;
     }
 
+    /**
+     * @return windows before this one in the trial, 0 for the initial window
+     */
+    public int getRound() {
+        return round;
+    }
+
+    /**
+     * @return devices that contended in this window
+     */
+    public int getContenders() {
+        return contenders;
+    }
+
+    /**
+     * @return fraction of the contending devices that collided, 0 if none contended
+     */
+    public double getCollisionFraction() {
+        return contenders == 0 ? 0 : (double) (contenders - getEligibleSlots()) / contenders;
+    }
+
+    /**
+     * @return whether occupancy is currently kept in the sparse table
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
     public void takeRandomSlotWithinWindow() {
+        takeSlot(1 + slotGenerator.nextInt(numSlots)); // Slot index starts at 1
+    }
+
+    /**
+     * Take a slot drawn with {@link #randomSlot}, for trials on common random numbers: the slot
+     * grows with the drawn number, so a device falls in the same part of the window in every protocol
+     */
+    public void takeOrderedSlotWithinWindow() {
+        takeSlot(1 + randomSlot(slotGenerator, numSlots));
+    }
+
+    /**
+     * Take a given slot, e.g. the slot a transmission was observed in on a real channel
+     * @param randSlot slot from 1 to the window size
+     */
+    public void takeSlot(int randSlot) {
         assert slots != null;
-        int randSlot = 1 + slotGenerator.nextInt(slots.length); // Slot index starts at 1
+        assert !sampled;
+        assert isValidSlot(randSlot - 1);
         if (randSlot > largestTakenSlot) {
         	largestTakenSlot = randSlot;
         }
-        slots[randSlot-1]++;
+        contenders++;
+        if (sparse) {
+            int taken = incrementSparse(randSlot);
+            if (taken == 1) {
+                eligibleSlots++;
+            } else if (taken == 2) {
+                eligibleSlots--;
+            }
+            if ((long) contenders * SPARSE_SLOTS_PER_CONTENDER >= numSlots) {
+                toDense();
+            }
+        } else {
+            if (contenders == 1) {
+                ensureCapacity();
+            }
+            slots[randSlot-1]++;
+        }
+    }
+
+    /**
+     * Uniform number in [0, bound) by multiplying a random int with the bound (Lemire's method). Unlike
+     * {@link Random#nextInt(int)} the result grows with the drawn number whatever the bound, so that with
+     * common random numbers a device falls in about the same part of the window in every protocol.
+     * It also avoids a division in the common case.
+     */
+    static int randomSlot(Random rnd, int bound) {
+        long product = (rnd.nextInt() & 0xFFFFFFFFL) * bound;
+        int low = (int) product;
+        if (Integer.compareUnsigned(low, bound) < 0) {
+            // Reject the few draws that would make small slots more likely
+            int threshold = Integer.remainderUnsigned(-bound, bound);
+            while (Integer.compareUnsigned(low, threshold) < 0) {
+                product = (rnd.nextInt() & 0xFFFFFFFFL) * bound;
+                low = (int) product;
+            }
+        }
+        return (int) (product >>> 32);
+    }
+
+    /**
+     * Statistically equivalent to calling {@link #takeRandomSlotWithinWindow()} once per device, but
+     * only the number of eligible slots and the largest taken slot are drawn, see {@link BallsIntoBins}.
+     * Crowded windows cost O(1) or O(slots), other windows place devices one by one, which is cheap
+     * there since sparse windows don't touch the slot buffer.
+     * @param devices number of devices contending in this window
+     */
+    public void sampleOccupancy(int devices) {
+        assert contenders == 0 : "Window must be empty";
+        if (devices > 0 && numSlots > 1
+                && BallsIntoBins.singletonVariance(devices, numSlots) >= BallsIntoBins.NORMAL_SINGLETONS_MIN_VARIANCE) {
+            largestTakenSlot = BallsIntoBins.largestOccupiedBin(slotGenerator, devices, numSlots);
+            eligibleSlots = BallsIntoBins.normalSingletons(slotGenerator, devices, numSlots);
+        } else if ((long) devices >= (long) CROWDED_DEVICES_PER_SLOT * numSlots) {
+            sampleOccupiedSlots(devices);
+        } else {
+            for (int device = 0; device < devices; device++) {
+                takeRandomSlotWithinWindow();
+            }
+            return;
+        }
+        contenders = devices;
+        sampled = true;
     }
-    
+
+    /**
+     * Exact top-down walk over the occupied slots, see {@link BallsIntoBins}
+     */
+    private void sampleOccupiedSlots(int devices) {
+        int remainingDevices = devices;
+        int remainingSlots = numSlots;
+        int eligible = 0;
+        while (remainingDevices > 0) {
+            int slot = BallsIntoBins.largestOccupiedBin(slotGenerator, remainingDevices, remainingSlots);
+            if (largestTakenSlot < 0) {
+                largestTakenSlot = slot;
+            }
+            int taken = slot == 1 ? remainingDevices : BallsIntoBins.positiveBinomial(slotGenerator, remainingDevices, 1.0 / slot);
+            if (taken == 1) {
+                eligible++;
+            }
+            remainingDevices -= taken;
+            remainingSlots = slot - 1;
+        }
+        eligibleSlots = eligible;
+    }
+
     public int getEligibleSlots() {
+        if (sampled || sparse) {
+            return eligibleSlots;
+        }
     	int total = 0;
-    	for (int i = 0; i < slots.length; i++) {
+    	// Slots after the largest taken one are all available
+    	for (int i = 0; i < largestTakenSlot; i++) {
     		if (slots[i] == 1) {
     			total++;
     		}
     	}
     	return total;
     }
+
+    /**
+     * @return position of the slot in the sparse table, or of the empty entry where it would go
+     */
+    private int findSparse(int slot) {
+        int mask = sparseKeys.length - 1;
+        int hash = slot * 0x9E3779B9;
+        int pos = (hash ^ (hash >>> 16)) & mask;
+        while (sparseKeys[pos] != 0 && sparseKeys[pos] != slot) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    /**
+     * @return number of devices in the slot after adding one
+     */
+    private int incrementSparse(int slot) {
+        if (sparseKeys == null) {
+            sparseKeys = new int[16];
+            sparseCounts = new int[16];
+            sparseUsed = new int[8];
+        }
+        // Keep the table at most half full
+        if (2 * (sparseSize + 1) > sparseKeys.length) {
+            growSparse();
+        }
+        int pos = findSparse(slot);
+        if (sparseKeys[pos] == 0) {
+            sparseKeys[pos] = slot;
+            sparseCounts[pos] = 0;
+            if (sparseSize == sparseUsed.length) {
+                sparseUsed = Arrays.copyOf(sparseUsed, 2 * sparseSize);
+            }
+            sparseUsed[sparseSize++] = pos;
+        }
+        return ++sparseCounts[pos];
+    }
+
+    private void growSparse() {
+        int[] keys = sparseKeys;
+        int[] counts = sparseCounts;
+        int[] used = sparseUsed;
+        int size = sparseSize;
+        sparseKeys = new int[2 * keys.length];
+        sparseCounts = new int[2 * keys.length];
+        sparseSize = 0;
+        for (int i = 0; i < size; i++) {
+            int pos = findSparse(keys[used[i]]);
+            sparseKeys[pos] = keys[used[i]];
+            sparseCounts[pos] = counts[used[i]];
+            used[sparseSize++] = pos;
+        }
+    }
+
+    private void clearSparse() {
+        for (int i = 0; i < sparseSize; i++) {
+            sparseKeys[sparseUsed[i]] = 0;
+        }
+        sparseSize = 0;
+    }
+
+    /**
+     * More devices than expected: move the occupancy into the slot buffer, which is all zero
+     * whenever the window is sparse. Eligible slots are counted from the buffer from now on.
+     */
+    private void toDense() {
+        ensureCapacity();
+        for (int i = 0; i < sparseSize; i++) {
+            int pos = sparseUsed[i];
+            slots[sparseKeys[pos] - 1] = sparseCounts[pos];
+        }
+        clearSparse();
+        sparse = false;
+    }
+
+    public static void main(String[] args) {
+        // The sparse and dense representations must agree on every slot
+        Random rnd = new Random(7);
+        int[] sizes = { 3, 5000, 1 << 20, 100000 };
+        int[] devices = { 10, 1, 50, 20000 };
+        Window w = new Window(1, rnd);
+        for (int round = 0; round < sizes.length; round++) {
+            w.reset(sizes[round]);
+            boolean wasSparse = w.isSparse();
+            int[] reference = new int[sizes[round]];
+            Random copy = new Random(round);
+            rnd.setSeed(round);
+            for (int i = 0; i < devices[round]; i++) {
+                if (round % 2 == 0) {
+                    w.takeRandomSlotWithinWindow();
+                    reference[copy.nextInt(sizes[round])]++;
+                } else {
+                    w.takeOrderedSlotWithinWindow();
+                    reference[randomSlot(copy, sizes[round])]++;
+                }
+            }
+            int eligible = 0;
+            for (int slot = 0; slot < reference.length; slot++) {
+                assert w.isSlotAvailable(slot) == (reference[slot] == 0);
+                eligible += reference[slot] == 1 ? 1 : 0;
+            }
+            assert w.getEligibleSlots() == eligible;
+            System.out.println(sizes[round] + " slots, " + devices[round] + " devices: " + (wasSparse ? "sparse" : "dense")
+                    + (wasSparse && !w.isSparse() ? " then dense" : "") + ", " + w.getEligibleSlots() + " eligible slots");
+        }
+    }
 }
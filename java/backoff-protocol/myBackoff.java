@@ -1,6 +1,14 @@
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * @author Anh Do
@@ -8,14 +16,55 @@ import java.io.PrintWriter;
  */
 public class myBackoff {
     final int STARTING_SLOT = 1;
-    final int INITIAL_WINDOW_SIZE_LINEAR_BACKOFF = 2;
-    final int INITIAL_WINDOW_SIZE_BINARY_EXPONENTIAL_BACKOFF = 2;
-    final int INITIAL_WINDOW_SIZE_TRINARY_EXPONENTIAL_BACKOFF = 3;
-    final int INITIAL_WINDOW_SIZE_LOGLOG_BACKOFF = 3;
     
     final static int DEFAULT_NUM_DEVICES = 6000;
+    final static int DEVICE_COUNT_STEP = 100;
+    final static int MAXIMUM_REPEATITION_FOR_EACH_SIMULATION = 10;
+    final static String RESULT_FILE = "latencyResults.bin";
+    final static long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+    // How long a shutdown waits for the sweep to save its checkpoint
+    final static long SHUTDOWN_CHECKPOINT_TIMEOUT = 10000;
+    // Sequential stopping never decides on fewer trials than this
+    final static int MINIMUM_REPETITIONS = 5;
+    final static int DEFAULT_MAXIMUM_REPETITIONS = 10000;
+    // Milliseconds between stats lines, see SimulationMetrics
+    final static long DEFAULT_STATS_INTERVAL = 10000;
+    // Device counts whose reference latencies are kept at most
+    final static int MAX_REFERENCE_DEVICE_COUNTS = 256;
     
     private int numDevices;
+    // Protocols swept by runSimulation()
+    private List<IBackoffProtocol> protocols = ProtocolRegistry.getDefault().getDefaultSweep();
+    // Sample the occupancy of each window instead of placing every device, see Window#sampleOccupancy
+    private boolean sampleOccupancy;
+    // Each protocol's random stream is derived from this seed
+    private long seed = new Random().nextLong();
+    // Sequential stopping: trials of a device count run until the half width of the 95% confidence
+    // interval of the mean is at most this fraction of the mean, 0 for a fixed number of trials
+    private double precision;
+    private int maximumRepetitions = DEFAULT_MAXIMUM_REPETITIONS;
+    // Common random numbers: a trial's draws only depend on its device count and repetition, not on the protocol
+    private boolean commonRandomNumbers;
+    // With common random numbers, other protocols stop on the precision of their difference with this one
+    private IBackoffProtocol reference;
+    private Window referenceWindow;
+    // Latencies of the reference protocol by device count and repetition, 0 if not simulated yet.
+    // The least recently used device counts are dropped, and recomputed from their seeds if needed again.
+    private final Map<Integer, long[]> referenceLatencies = new LinkedHashMap<Integer, long[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+            return size() > MAX_REFERENCE_DEVICE_COUNTS;
+        }
+    };
+    // Completed points of earlier sweeps, null to compute every point
+    private ResultCache cache;
+    // Checkpoint file, null if the sweep isn't checkpointed
+    private String checkpointFile;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private boolean running;
+    private volatile boolean checkpointRequested;
+    private long checkpointsSaved;
     
     public myBackoff() {
         this(DEFAULT_NUM_DEVICES);
@@ -25,112 +74,548 @@ public class myBackoff {
      * 
      */
     public myBackoff(int numDevices) {
+        this(numDevices, false);
+    }
+    
+    /**
+     * @param numDevices largest number of devices in the sweep
+     * @param sampleOccupancy use the occupancy-sampling fast path, meant for very large device counts
+     */
+    public myBackoff(int numDevices, boolean sampleOccupancy) {
         this.numDevices = numDevices;
+        this.sampleOccupancy = sampleOccupancy;
     }
     
     public void runSimulation() throws IOException {
         runSimulation(numDevices);
     }
     
+    /**
+     * Run the selected protocols, see {@link #setProtocols(List)}. With a checkpoint file, progress is saved periodically and a sweep
+     * started with an existing checkpoint resumes from it, see {@link SweepCheckpoint}.
+     * @param numWindows
+     * @throws IOException
+     */
     public void runSimulation(int numWindows) throws IOException {
-    	// Linear backoff protocol simulation
-        PrintWriter linearBackoffWriter = new PrintWriter(new FileWriter("linearLatency.txt", false), true);
-        LinearBackoff linearBackoffProtocol = new LinearBackoff();
-        transmit(linearBackoffProtocol, linearBackoffWriter);
-        
-        // Binary backoff protocol simulation
-        PrintWriter binaryExpBackoffWriter = new PrintWriter(new FileWriter("binaryLatency.txt", false), true);
-        BinaryExponentialBackoff binaryExpBackoffProtocol = new BinaryExponentialBackoff();
-        transmit(binaryExpBackoffProtocol, binaryExpBackoffWriter);
-        
-        // Trinary backoff protocol simulation
-        PrintWriter trinaryExpBackoffWriter = new PrintWriter(new FileWriter("trinaryLatency.txt", false), true);
-        TrinaryExponentialBackoff trinaryExpBackoffProtocol = new TrinaryExponentialBackoff();
-        transmit(trinaryExpBackoffProtocol, trinaryExpBackoffWriter);
-        
-        // Log log backoff protocol simulation
-        PrintWriter loglogBackoffWriter = new PrintWriter(new FileWriter("loglogLatency.txt", false), true);
-        LogLogBackoff loglogBackoffProtocol = new LogLogBackoff();
-        transmit(loglogBackoffProtocol, loglogBackoffWriter);
+        List<String> names = new ArrayList<String>();
+        for (IBackoffProtocol bp : protocols) {
+            names.add(bp.getName());
+        }
+        SweepCheckpoint checkpoint = checkpointFile != null ? SweepCheckpoint.load(checkpointFile) : null;
+        LatencyResultFile results;
+        if (checkpoint != null) {
+            checkpoint.checkResumable(numDevices, sampleOccupancy, getMode(), names);
+            System.out.println("Resuming " + names.get(checkpoint.getProtocolIndex()) + " at " + checkpoint.getTestingDevices()
+                    + " devices, repetition " + checkpoint.getRepeatition() + " from " + checkpointFile);
+            seed = checkpoint.getSeed();
+            SweepCheckpoint.truncate(RESULT_FILE, checkpoint.getResultsLength());
+            results = new LatencyResultFile(RESULT_FILE, true);
+        } else {
+            checkpoint = new SweepCheckpoint(numDevices, sampleOccupancy, seed, getMode(), names);
+            results = new LatencyResultFile(RESULT_FILE);
+        }
+        synchronized (this) {
+            running = true;
+        }
+        try {
+            // Each protocol writes its own file, e.g. linear backoff writes linearLatency.txt
+            for (int i = checkpoint.getProtocolIndex(); i < protocols.size(); i++) {
+                IBackoffProtocol bp = protocols.get(i);
+                String output = getOutputFile(bp);
+                boolean resumed = checkpoint.getStats() != null && i == checkpoint.getProtocolIndex();
+                boolean append = resumed && checkpoint.getOutputLength() >= 0;
+                if (append) {
+                    SweepCheckpoint.truncate(output, checkpoint.getOutputLength());
+                }
+                if (!resumed) {
+                    checkpoint.startProtocol(i, new Random(getProtocolSeed(bp)));
+                }
+                PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(output, append)));
+                transmit(bp, writer, results, checkpoint, output);
+                writer.close();
+            }
+            results.close();
+        } finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+        }
+        if (checkpointFile != null) {
+            new File(checkpointFile).delete();
+        }
+    }
+    
+    /**
+     * Save a checkpoint from another thread, e.g. a shutdown hook when the machine is preempted.
+     * The sweep saves it after its current trial; this waits for that at most the given time.
+     * @param timeout milliseconds
+     * @return whether a checkpoint was saved
+     * @throws InterruptedException
+     */
+    public synchronized boolean requestCheckpoint(long timeout) throws InterruptedException {
+        if (!running || checkpointFile == null) {
+            return false;
+        }
+        long saved = checkpointsSaved;
+        long deadline = System.currentTimeMillis() + timeout;
+        checkpointRequested = true;
+        while (running && checkpointsSaved == saved && System.currentTimeMillis() < deadline) {
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        return checkpointsSaved > saved;
+    }
+    
+    /**
+     * @param bp backoff protocol
+     * @return text file receiving the average latencies of the protocol
+     */
+    public static String getOutputFile(IBackoffProtocol bp) {
+        return bp.getName() + "Latency.txt";
     }
     
     /**
      * Transmit data with backoff protocol
      * @param bp
      * @param writer
+     * @throws IOException 
+     */
+    public void transmit(IBackoffProtocol bp, PrintWriter writer) throws IOException {
+        transmit(bp, writer, null);
+    }
+    
+    /**
+     * Transmit data with backoff protocol. The average latency of each device count goes to the
+     * text writer, its full statistics to the results file. Each device count runs
+     * {@link #MAXIMUM_REPEATITION_FOR_EACH_SIMULATION} trials, or with a precision until the
+     * mean is known precisely enough, see {@link #setPrecision(double, int)}.
+     * @param bp
+     * @param writer
+     * @param results binary results file, may be null
+     * @throws IOException 
      */
-    public void transmit(IBackoffProtocol bp, PrintWriter writer) {
+    public void transmit(IBackoffProtocol bp, PrintWriter writer, LatencyResultFile results) throws IOException {
+        SweepCheckpoint progress = new SweepCheckpoint(numDevices, sampleOccupancy, seed, getMode(), Arrays.asList(bp.getName()));
+        progress.startProtocol(0, new Random(getProtocolSeed(bp)));
+        transmit(bp, writer, results, progress, null);
+    }
+    
+    /**
+     * Transmit from the next trial of the progress, saving it to the checkpoint file when due
+     * @param output text file behind the writer, null to never checkpoint
+     */
+    private void transmit(IBackoffProtocol bp, PrintWriter writer, LatencyResultFile results, SweepCheckpoint progress,
+            String output) throws IOException {
         System.out.println("----- START SIMULATING TRANSMITION WITH BACKOFF PROTOCOL -----\n");
-        final int MAXIMUM_REPEATITION_FOR_EACH_SIMULATION = 10;
-        int maximumTestingDevicesForCurrentTrial = 100;
-        int repeatition = 1;
-        long totalLatency = 0;
+        System.out.println("---- " + bp.getName().toUpperCase() + " BACKOFF PROTOCOL ----\n");
+        int initialWindowSize = bp.getInitialWindowSize();
+        Window window = new Window(initialWindowSize, progress.getSlotGenerator());
+        LatencyStatistics stats = progress.getStats();
+        RunningMoments differences = progress.getDifferences();
+        boolean paired = reference != null && !reference.getName().equals(bp.getName());
+        boolean isReference = reference != null && !paired;
+        int repetitions = precision > 0 ? maximumRepetitions : MAXIMUM_REPEATITION_FOR_EACH_SIMULATION;
+        boolean checkpointed = output != null && checkpointFile != null;
+        long lastCheckpoint = System.currentTimeMillis();
         
-        int initialWindowSize = 0;
-        if (bp instanceof LinearBackoff) {
-            initialWindowSize = INITIAL_WINDOW_SIZE_LINEAR_BACKOFF;
-            System.out.println("---- LINEAR BACKOFF PROTOCOL ----\n");
-        } else if (bp instanceof BinaryExponentialBackoff) {
-            initialWindowSize = INITIAL_WINDOW_SIZE_BINARY_EXPONENTIAL_BACKOFF;
-            System.out.println("---- BINARY EXPONENTIAL BACKOFF PROTOCOL ----\n");
-        } else if (bp instanceof TrinaryExponentialBackoff) {
-            initialWindowSize = INITIAL_WINDOW_SIZE_TRINARY_EXPONENTIAL_BACKOFF;
-            System.out.println("---- TRINARY EXPONENTIAL BACKOFF PROTOCOL ----\n");
-        } else if (bp instanceof LogLogBackoff) {
-            initialWindowSize = INITIAL_WINDOW_SIZE_LOGLOG_BACKOFF;
-            System.out.println("---- LOG LOG BACKOFF PROTOCOL ----\n");
-        } else {
-            assert false;
+        int repeatition = progress.getRepeatition();
+        // Trials stopping on precision are planned at the count the previous device count needed
+        int plannedRepetitions = precision > 0 ? MINIMUM_REPETITIONS : repetitions;
+        SimulationMetrics.startProtocol(bp.getName(), getPlannedDeviceTrials(progress.getTestingDevices(), plannedRepetitions)
+                - (long) progress.getTestingDevices() * (repeatition - 1));
+        try {
+            for (int testingDevices = progress.getTestingDevices(); testingDevices <= numDevices; testingDevices += DEVICE_COUNT_STEP) {
+                SimulationMetrics.setDeviceCount(bp.getName(), testingDevices);
+                DeviceCountEvent event = new DeviceCountEvent();
+                event.begin();
+                String key = cache != null ? getPointKey(bp, seed, testingDevices, repetitions, precision > 0) : null;
+                // A point resumed from a checkpoint has already started, it isn't looked up
+                LatencyStatistics cached = key != null && stats.getCount() == 0 ? cache.get(key) : null;
+                if (cached != null) {
+                    stats.merge(cached);
+                    SimulationMetrics.skipDeviceTrials(bp.getName(), (long) testingDevices * plannedRepetitions);
+                } else {
+                    for (; repeatition <= repetitions && !isPrecise(stats, paired ? differences : null); repeatition++) {
+                        long latency;
+                        if (commonRandomNumbers) {
+                            long trialSeed = getTrialSeed(seed, testingDevices, repeatition);
+                            latency = simulateTrial(bp, initialWindowSize, testingDevices, window, trialSeed);
+                            if (isReference) {
+                                setReferenceLatency(testingDevices, repeatition, latency);
+                            } else if (paired) {
+                                differences.add(latency - getReferenceLatency(testingDevices, repeatition, trialSeed));
+                            }
+                        } else {
+                            if (cache != null) {
+                                // Cached points must not depend on the trials before them
+                                window.getSlotGenerator().setSeed(ParallelSweep.unitSeed(seed, bp.getName(), testingDevices, repeatition));
+                            }
+                            latency = simulateTrial(bp, initialWindowSize, testingDevices, window);
+                        }
+                        stats.add(latency);
+                        if (checkpointed && (checkpointRequested || System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)) {
+                            progress.setNextTrial(testingDevices, repeatition + 1);
+                            saveCheckpoint(progress, writer, results, output);
+                            lastCheckpoint = System.currentTimeMillis();
+                        }
+                    }
+                    if (key != null) {
+                        try {
+                            cache.put(key, stats);
+                        } catch (IOException e) {
+                            // The point is only recomputed next time
+                            System.err.println("Failed to cache " + key + ": " + e);
+                        }
+                    }
+                }
+                repeatition = 1;
+                writer.println(stats.getMean());
+                if (results != null) {
+                    results.write(bp.getName(), testingDevices, stats);
+                }
+                if (event.shouldCommit()) {
+                    event.protocol = bp.getName();
+                    event.devices = testingDevices;
+                    event.trials = stats.getCount();
+                    event.meanLatency = stats.getMean();
+                    event.commit();
+                }
+                if (precision > 0) {
+                    SimulationMetrics.setPlannedDeviceTrials(bp.getName(), SimulationMetrics.getDoneDeviceTrials(bp.getName())
+                            + getPlannedDeviceTrials(testingDevices + DEVICE_COUNT_STEP, (int) stats.getCount()));
+                }
+                stats.clear();
+                differences.clear();
+            }
+        } finally {
+            SimulationMetrics.finishProtocol(bp.getName());
         }
-        
-        Window curWindow = new Window(initialWindowSize);
-        int device = 1;
-        int totalSentDevices = 0;
+        System.out.println("----- ENDING SIMULATION ----- \n");
+        System.out.println("--------------------------------- \n");
+    }
+    
+    /**
+     * @return devices summed over the trials from the given device count to the last one
+     */
+    private long getPlannedDeviceTrials(int fromDevices, int repetitions) {
+        long deviceTrials = 0;
+        for (int testingDevices = fromDevices; testingDevices <= numDevices; testingDevices += DEVICE_COUNT_STEP) {
+            deviceTrials += (long) testingDevices * repetitions;
+        }
+        return deviceTrials;
+    }
+    
+    /**
+     * Flush the outputs so that their lengths match the progress, then save it
+     */
+    private void saveCheckpoint(SweepCheckpoint progress, PrintWriter writer, LatencyResultFile results, String output)
+            throws IOException {
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + output);
+        }
+        results.flush();
+        progress.setLengths(new File(output).length(), new File(RESULT_FILE).length());
+        progress.save(checkpointFile);
+        synchronized (this) {
+            checkpointRequested = false;
+            checkpointsSaved++;
+            notifyAll();
+        }
+    }
+    
+    private long getProtocolSeed(IBackoffProtocol bp) {
+        return ParallelSweep.unitSeed(seed, bp.getName(), 0, 0);
+    }
+    
+    /**
+     * Sequential stopping rule
+     * @param stats latencies of the device count so far
+     * @param differences paired differences with the reference protocol, null to judge the mean itself
+     * @return whether the device count needs no more trials
+     */
+    private boolean isPrecise(LatencyStatistics stats, RunningMoments differences) {
+        if (precision <= 0 || stats.getCount() < MINIMUM_REPETITIONS) {
+            return false;
+        }
+        double halfWidth = differences != null ? differences.getConfidenceHalfWidth() : stats.getConfidenceHalfWidth();
+        return halfWidth <= precision * stats.getMean();
+    }
+    
+    /**
+     * Seed of a trial with common random numbers: the same for every protocol
+     */
+    static long getTrialSeed(long seed, int testingDevices, int repeatition) {
+        return ParallelSweep.unitSeed(seed, "", testingDevices, repeatition);
+    }
+    
+    private long getReferenceLatency(int testingDevices, int repeatition, long trialSeed) {
+        long[] latencies = referenceLatencies.get(testingDevices);
+        if (latencies != null && repeatition < latencies.length && latencies[repeatition] > 0) {
+            return latencies[repeatition];
+        }
+        if (referenceWindow == null) {
+            referenceWindow = new Window(reference.getInitialWindowSize(), new Random());
+        }
+        long latency = simulateTrial(reference, reference.getInitialWindowSize(), testingDevices, referenceWindow, trialSeed);
+        setReferenceLatency(testingDevices, repeatition, latency);
+        return latency;
+    }
+    
+    private void setReferenceLatency(int testingDevices, int repeatition, long latency) {
+        long[] latencies = referenceLatencies.get(testingDevices);
+        if (latencies == null || repeatition >= latencies.length) {
+            latencies = latencies == null ? new long[Math.max(16, repeatition + 1)]
+                    : Arrays.copyOf(latencies, Math.max(2 * latencies.length, repeatition + 1));
+            referenceLatencies.put(testingDevices, latencies);
+        }
+        latencies[repeatition] = latency;
+    }
+    
+    /**
+     * Run a single trial: all devices contend in the initial window, and the ones
+     * that collided retry in the window produced by the protocol until every device has sent.
+     * 
+     * @param bp backoff protocol
+     * @param initialWindowSize size of the first window
+     * @param testingDevices number of devices in the trial
+     * @param curWindow window reused for every round of the trial, its generator drives the trial
+     * @return total latency, i.e. sum of the largest taken slot of each window
+     */
+    public long simulateTrial(IBackoffProtocol bp, int initialWindowSize, int testingDevices, Window curWindow) {
+        return simulateTrial(bp, initialWindowSize, testingDevices, curWindow, false, 0);
+    }
+    
+    /**
+     * Run a single trial with common random numbers: the window's generator is reseeded from the trial
+     * seed at the start of every round, so the k-th device placed in a round draws the same number
+     * whatever the protocol, and two protocols see the same draws as long as their windows agree.
+     * 
+     * @param trialSeed seed of the trial, see {@link #getTrialSeed(long, int, int)}
+     * @return total latency, i.e. sum of the largest taken slot of each window
+     */
+    public long simulateTrial(IBackoffProtocol bp, int initialWindowSize, int testingDevices, Window curWindow, long trialSeed) {
+        return simulateTrial(bp, initialWindowSize, testingDevices, curWindow, true, trialSeed);
+    }
+    
+    private long simulateTrial(IBackoffProtocol bp, int initialWindowSize, int testingDevices, Window curWindow, boolean reseed,
+            long trialSeed) {
+        curWindow.reset(initialWindowSize);
+        int remainingDevices = testingDevices;
+        long latency = 0;
         while (true) {
-        	for (; device <= maximumTestingDevicesForCurrentTrial; device++) {
-        		curWindow.takeRandomSlotWithinWindow();
-        	}
-        	
-        	int succesfullySentDevices = curWindow.getEligibleSlots();
-        	totalSentDevices += succesfullySentDevices;
-        	totalLatency += curWindow.getLargestTakenSlot();
-        	
-        	// All devices transmitted packages in current trial
-        	if (totalSentDevices >= maximumTestingDevicesForCurrentTrial) {
-        		if (repeatition <= MAXIMUM_REPEATITION_FOR_EACH_SIMULATION) {
-        			repeatition++;
-        		} else {
-        			double averageLatency = totalLatency / MAXIMUM_REPEATITION_FOR_EACH_SIMULATION;
-//        			System.out.println("\nTotal latency = " + totalLatency);
-//        			System.out.println("Average latency = " + averageLatency);
-        			writer.println(averageLatency);
-        			repeatition = 1;
-        			totalLatency = 0;
-        			maximumTestingDevicesForCurrentTrial += 100;
-        			if (maximumTestingDevicesForCurrentTrial > numDevices) {
-                        System.out.println("----- ENDING SIMULATION ----- \n");
-                        System.out.println("--------------------------------- \n");
-        				return;
-        			}
-        		}
-        		
-        		// Start new simulation
-        		curWindow = new Window(initialWindowSize);
-        		device = 1;
-    			totalSentDevices = 0;
-        	} else { // Need to use next window for transmitting
-        		device = totalSentDevices + 1;
-        		curWindow = bp.nextWindow(curWindow);
-        	}
+            if (reseed) {
+                curWindow.getSlotGenerator().setSeed(ParallelSweep.mix(trialSeed + curWindow.getRound()));
+            }
+            if (sampleOccupancy) {
+                curWindow.sampleOccupancy(remainingDevices);
+            } else {
+                for (int device = 1; device <= remainingDevices; device++) {
+                    if (reseed) {
+                        curWindow.takeOrderedSlotWithinWindow();
+                    } else {
+                        curWindow.takeRandomSlotWithinWindow();
+                    }
+                }
+            }
+            remainingDevices -= curWindow.getEligibleSlots();
+            latency += curWindow.getLargestTakenSlot();
+            
+            // All devices transmitted packages in current trial
+            if (remainingDevices <= 0) {
+                SimulationMetrics.trialCompleted(bp.getName(), testingDevices, curWindow.getRound() + 1);
+                return latency;
+            }
+            // Need to use next window for transmitting
+            curWindow.nextRound(bp.nextWindowSize(curWindow));
         }
     }
     
+    public int getNumDevices() {
+        return numDevices;
+    }
+    
+    /**
+     * @return protocols swept by {@link #runSimulation()}
+     */
+    public List<IBackoffProtocol> getProtocols() {
+        return protocols;
+    }
+    
+    /**
+     * @param protocols protocols to sweep, by default the original four, see {@link ProtocolRegistry#getDefaultSweep()}
+     */
+    public void setProtocols(List<IBackoffProtocol> protocols) {
+        this.protocols = protocols;
+    }
+    
+    public boolean isSampleOccupancy() {
+        return sampleOccupancy;
+    }
+    
+    public long getSeed() {
+        return seed;
+    }
+    
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * Run each device count until the half width of the 95% confidence interval of its mean latency
+     * is at most the given fraction of the mean, between {@link #MINIMUM_REPETITIONS} and the given
+     * number of trials
+     * @param precision relative half width, e.g. 0.01, 0 for a fixed number of trials
+     * @param maximumRepetitions most trials per device count
+     */
+    public void setPrecision(double precision, int maximumRepetitions) {
+        this.precision = precision;
+        this.maximumRepetitions = maximumRepetitions;
+    }
+    
+    public double getPrecision() {
+        return precision;
+    }
+    
+    /**
+     * @param commonRandomNumbers seed trials from their device count and repetition only, see
+     * {@link #simulateTrial(IBackoffProtocol, int, int, Window, long)}
+     * @param reference with common random numbers and a precision, other protocols stop once their
+     * difference with this one is known precisely enough, may be null
+     */
+    public void setCommonRandomNumbers(boolean commonRandomNumbers, IBackoffProtocol reference) {
+        this.commonRandomNumbers = commonRandomNumbers;
+        this.reference = commonRandomNumbers ? reference : null;
+        referenceLatencies.clear();
+    }
+    
+    public boolean isCommonRandomNumbers() {
+        return commonRandomNumbers;
+    }
+    
+    /**
+     * @return stopping rule and random numbers of the sweep, to check a checkpoint was taken in the same mode
+     */
+    String getMode() {
+        return "precision=" + precision + " maximum=" + maximumRepetitions + " crn=" + commonRandomNumbers
+                + " reference=" + (reference != null ? reference.getName() : "none") + " cached=" + (cache != null);
+    }
+    
+    /**
+     * Look up the points of the sweep in a cache and add those computed. Every trial then seeds its
+     * draws from its protocol, device count and repetition, like {@link ParallelSweep} does, so that
+     * a point doesn't depend on the points before it. Both share cached points.
+     * @param cache result cache, null to compute every point
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * @param seed seed of the sweep
+     * @param repetitions trials of the point, their maximum when stopping on precision
+     * @param stopOnPrecision whether trials stop on the precision of the sweep
+     * @return key of a sweep point in the {@link ResultCache}
+     */
+    String getPointKey(IBackoffProtocol bp, long seed, int testingDevices, int repetitions, boolean stopOnPrecision) {
+        String stopping = stopOnPrecision ? "precision=" + precision + " maximum=" + repetitions + " reference="
+                + (reference != null ? reference : "none") : "repetitions=" + repetitions;
+        return ResultCache.key(bp, testingDevices, seed, "sample=" + sampleOccupancy + " crn=" + commonRandomNumbers + " " + stopping);
+    }
+    
+    /**
+     * @param checkpointFile file to save progress to and resume from, null to disable checkpoints
+     * @param checkpointInterval milliseconds between checkpoints
+     */
+    public void setCheckpoint(String checkpointFile, long checkpointInterval) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointInterval = checkpointInterval;
+    }
+    
     /**
      * @param args
      * @throws IOException 
      */
     public static void main(String[] args) throws IOException {
-        myBackoff backoff = new myBackoff();
+        // Usage: java myBackoff [num-devices] [--sample] [--seed n] [--checkpoint file] [--checkpoint-interval seconds]
+        //                      [--precision fraction] [--max-repetitions n] [--crn] [--reference protocol]
+        //                      [--stats-interval seconds] [--cache directory] [--cache-size megabytes]
+        //                      [--protocols all|name,name...]
+        int numDevices = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : DEFAULT_NUM_DEVICES;
+        boolean sampleOccupancy = false;
+        Long seed = null;
+        String checkpointFile = null;
+        long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        double precision = 0;
+        int maximumRepetitions = DEFAULT_MAXIMUM_REPETITIONS;
+        boolean commonRandomNumbers = false;
+        String reference = null;
+        long statsInterval = DEFAULT_STATS_INTERVAL;
+        String cacheDirectory = null;
+        long cacheSize = ResultCache.DEFAULT_MAX_BYTES;
+        String protocols = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--sample")) {
+                sampleOccupancy = true;
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--checkpoint")) {
+                checkpointFile = args[++i];
+            } else if (args[i].equals("--checkpoint-interval")) {
+                checkpointInterval = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else if (args[i].equals("--precision")) {
+                precision = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--max-repetitions")) {
+                maximumRepetitions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--crn")) {
+                commonRandomNumbers = true;
+            } else if (args[i].equals("--reference")) {
+                // Comparing to a reference only makes sense on common random numbers
+                commonRandomNumbers = true;
+                reference = args[++i];
+            } else if (args[i].equals("--stats-interval")) {
+                statsInterval = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else if (args[i].equals("--cache")) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--cache-size")) {
+                cacheSize = (long) (Double.parseDouble(args[++i]) * (1 << 20));
+            } else if (args[i].equals("--protocols")) {
+                protocols = args[++i];
+            }
+        }
+        final myBackoff backoff = new myBackoff(numDevices, sampleOccupancy);
+        if (cacheDirectory != null) {
+            backoff.setCache(new ResultCache(cacheDirectory, cacheSize));
+            // Points are only found again with the same seed
+            if (seed == null) {
+                seed = ParallelSweep.DEFAULT_SEED;
+            }
+        }
+        if (seed != null) {
+            backoff.setSeed(seed);
+        }
+        if (protocols != null) {
+            backoff.setProtocols(ProtocolRegistry.getDefault().select(protocols));
+        }
+        backoff.setPrecision(precision, maximumRepetitions);
+        backoff.setCommonRandomNumbers(commonRandomNumbers, reference != null ? ProtocolRegistry.getDefault().get(reference) : null);
+        if (checkpointFile != null) {
+            backoff.setCheckpoint(checkpointFile, checkpointInterval);
+            // Save progress when the process is asked to stop, e.g. on SIGTERM before preemption
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        backoff.requestCheckpoint(SHUTDOWN_CHECKPOINT_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        if (statsInterval > 0) {
+            SimulationMetrics.startReporter(System.out, statsInterval);
+        }
         backoff.runSimulation();
     }
 }
@@ -0,0 +1,5 @@
+# Sweep of myBackoff.runSimulation(): one configuration per line, see SweepSpec
+protocol=linear devices=100..6000 step=100 repetitions=10 output=linearLatency.txt
+protocol=binary devices=100..6000 step=100 repetitions=10 output=binaryLatency.txt
+protocol=trinary devices=100..6000 step=100 repetitions=10 output=trinaryLatency.txt
+protocol=loglog devices=100..6000 step=100 repetitions=10 output=loglogLatency.txt
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the chunks of a file for the wire with Deflate at its fastest level. A chunk is sent
+ * compressed only if that saves a packet at least; otherwise it is sent raw, and so are the next
+ * chunks without even trying, twice as many after each chunk that doesn't shrink, so already
+ * compressed data costs little CPU.
+ *
+ * @author aqd14
+ */
+public class ChunkCompressor {
+	// Largest chunk compressed. The server holds a compressed chunk until all of its packets are received
+	final static int MAX_CHUNK_SIZE = 1 << 20;
+	// Chunks sent raw without trying, at most, after a chunk that doesn't shrink
+	final static int MAX_SKIPPED = 64;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final MappedFile file;
+	private final ChunkManifest manifest;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final ByteBuffer output;
+	private int skip; // Chunks to send raw without trying
+	private int skipped;
+
+	private int chunks;
+	private int compressedChunks;
+	private long rawBytes;
+	private long compressedBytes;
+	private long cpuTime;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file		file to send
+	 * @param manifest	manifest of the file, see {@link #accepts}
+	 */
+	public ChunkCompressor(MappedFile file, ChunkManifest manifest) {
+		this.file = file;
+		this.manifest = manifest;
+		output = ByteBuffer.allocate(manifest.getChunkSize());
+	}
+
+	/**
+	 * @return {@code true} if the chunks of the manifest are small enough to be compressed
+	 */
+	public static boolean accepts(ChunkManifest manifest) {
+		return manifest.getChunkSize() <= MAX_CHUNK_SIZE;
+	}
+
+	/**
+	 * @return CPU time of the current thread (ns), or the elapsed time if it can't be measured
+	 */
+	static long cpuTime() {
+		long time = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+		return time != -1 ? time : System.nanoTime();
+	}
+
+	/**
+	 * Compress the body of a chunk, see {@link ChunkManifest#getBodyLength}
+	 *
+	 * @param chunk	chunk to send
+	 * @return the compressed chunk, {@code null} to send it raw
+	 * @throws IOException if the file can't be read
+	 */
+	public ByteBuffer compress(int chunk) throws IOException {
+		chunks++;
+		int payloadSize = manifest.getPayloadSize();
+		int length = manifest.getBodyLength(chunk);
+		// Saves a packet at least
+		int limit = ((length + payloadSize - 1) / payloadSize - 1) * payloadSize;
+		if (limit <= 0) {
+			return null;
+		}
+		if (skipped < skip) {
+			skipped++;
+			return null;
+		}
+		long start = cpuTime();
+		deflater.reset();
+		output.clear();
+		output.limit(limit);
+		// Position in the file, the manifest may be a range of it
+		long position = manifest.getOffset() + manifest.getChunkStart(chunk);
+		long end = position + length;
+		for (long offset = position; offset < end && output.hasRemaining(); offset += payloadSize) {
+			deflater.setInput(file.slice(offset, (int) Math.min(payloadSize, end - offset)));
+			while (!deflater.needsInput() && output.hasRemaining()) {
+				deflater.deflate(output);
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished() && output.hasRemaining()) {
+			deflater.deflate(output);
+		}
+		cpuTime += cpuTime() - start;
+		if (!deflater.finished()) {
+			skip = Math.min(MAX_SKIPPED, Math.max(1, 2 * skip));
+			skipped = 0;
+			return null;
+		}
+		skip = 0;
+		compressedChunks++;
+		rawBytes += length;
+		compressedBytes += output.position();
+		output.flip();
+		ByteBuffer compressed = ByteBuffer.allocate(output.remaining());
+		compressed.put(output).flip();
+		return compressed;
+	}
+
+	/**
+	 * @return chunks compressed, their size before and after, and the CPU time spent
+	 */
+	public String getReport() {
+		double ratio = compressedBytes == 0 ? 1 : rawBytes / (double) compressedBytes;
+		return "Compressed " + compressedChunks + " of " + chunks + " chunks: " + rawBytes + " to " + compressedBytes
+				+ " bytes (" + String.format("%.2f", ratio) + ":1) in " + cpuTime / 1000000 + " ms CPU";
+	}
+
+	public void close() {
+		deflater.end();
+	}
+}
@@ -0,0 +1,319 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Chunks of a file and their CRC32 checksums, sent by the client when it negotiates a transfer.
+ * A chunk is a run of whole payloads, so the packets of a chunk are known from the payload size.
+ * The server checks the file left by an interrupted transfer against the checksums and answers
+ * with the chunks it already holds; the client then only sends the packets of the other chunks.
+ *
+ * A file sent over parallel streams is split into ranges of whole chunks, one per stream. Each
+ * range has a manifest of its own, see {@link #getRange}, whose packets are numbered from the
+ * start of the range.
+ *
+ * @author aqd14
+ */
+public class ChunkManifest {
+	// Payload size (4 bytes), file size (8 bytes), chunk size (4 bytes) and chunk count (4 bytes)
+	final static int HEADER_SIZE = 20;
+	// Chunk size, rounded down to whole payloads. Larger for files with too many chunks
+	final static int DEFAULT_CHUNK_SIZE = 1 << 20;
+	final static int MAX_CHUNK_SIZE = 64 << 20;
+	final static int MAX_CHUNKS = 1 << 20;
+	// Ranges of a file sent over parallel streams, at most
+	final static int MAX_RANGES = 64;
+
+	private final int payloadSize;
+	private final long size;
+	private final int chunkSize;
+	private final int[] checksums;
+	private final long offset; // Position of the first chunk in the file
+
+	private ChunkManifest(int payloadSize, long size, int chunkSize, int[] checksums, long offset) {
+		this.payloadSize = payloadSize;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.checksums = checksums;
+		this.offset = offset;
+	}
+
+	/**
+	 * Compute the manifest of a file
+	 *
+	 * @param pathname		file to send
+	 * @param payloadSize	payload size of the transfer
+	 * @throws IOException if the file can't be read or has too many chunks
+	 */
+	public static ChunkManifest create(String pathname, int payloadSize) throws IOException {
+		MappedFile file = new MappedFile(pathname, payloadSize);
+		try {
+			long size = file.size();
+			long chunkSize = Math.max(1, DEFAULT_CHUNK_SIZE / payloadSize) * payloadSize;
+			if ((size + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+				long minimum = (size + MAX_CHUNKS - 1) / MAX_CHUNKS;
+				chunkSize = (minimum + payloadSize - 1) / payloadSize * payloadSize;
+			}
+			if (chunkSize > MAX_CHUNK_SIZE || size / payloadSize > Integer.MAX_VALUE) {
+				throw new IOException("File is too large for payloads of " + payloadSize + " bytes");
+			}
+			int[] checksums = new int[(int) ((size + chunkSize - 1) / chunkSize)];
+			CRC32 crc = new CRC32();
+			for (int c = 0; c < checksums.length; c++) {
+				crc.reset();
+				long end = Math.min(size, (c + 1) * chunkSize);
+				for (long offset = c * chunkSize; offset < end; offset += payloadSize) {
+					crc.update(file.slice(offset, (int) Math.min(payloadSize, end - offset)));
+				}
+				checksums[c] = (int) crc.getValue();
+			}
+			return new ChunkManifest(payloadSize, size, (int) chunkSize, checksums, 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Find the chunks of a file matching their checksum
+	 *
+	 * @param pathname	file left by an earlier transfer, possibly missing
+	 * @return chunks held by the file
+	 * @throws IOException if the file exists but can't be read
+	 */
+	public BitSet verify(String pathname) throws IOException {
+		BitSet held = new BitSet(checksums.length);
+		if (!new File(pathname).isFile()) {
+			return held;
+		}
+		FileChannel channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+			CRC32 crc = new CRC32();
+			for (int c = 0; c < checksums.length && offset + getChunkStart(c) + getChunkLength(c) <= length; c++) {
+				buf.clear();
+				buf.limit(getChunkLength(c));
+				while (buf.hasRemaining() && channel.read(buf, offset + getChunkStart(c) + buf.position()) != -1) {
+					// Read the whole chunk
+				}
+				buf.flip();
+				crc.reset();
+				crc.update(buf);
+				if ((int) crc.getValue() == checksums[c]) {
+					held.set(c);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		return held;
+	}
+
+	/**
+	 * Send the manifest over the negotiation connection
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(payloadSize);
+		out.writeLong(size);
+		out.writeInt(chunkSize);
+		out.writeInt(checksums.length);
+		for (int checksum : checksums) {
+			out.writeInt(checksum);
+		}
+	}
+
+	/**
+	 * Receive a manifest sent with {@link #write}
+	 *
+	 * @throws IOException if the manifest is not valid
+	 */
+	public static ChunkManifest read(DataInputStream in) throws IOException {
+		int payloadSize = in.readInt();
+		long size = in.readLong();
+		int chunkSize = in.readInt();
+		int count = in.readInt();
+		validate(payloadSize, size, chunkSize, count);
+		int[] checksums = new int[count];
+		for (int c = 0; c < count; c++) {
+			checksums[c] = in.readInt();
+		}
+		return new ChunkManifest(payloadSize, size, chunkSize, checksums, 0);
+	}
+
+	/**
+	 * @param header	first {@link #HEADER_SIZE} bytes of a manifest
+	 * @return length of the whole manifest
+	 * @throws IOException if the manifest is not valid
+	 */
+	public static int getLength(ByteBuffer header) throws IOException {
+		int count = header.getInt(16);
+		validate(header.getInt(0), header.getLong(4), header.getInt(12), count);
+		return HEADER_SIZE + 4 * count;
+	}
+
+	private static void validate(int payloadSize, long size, int chunkSize, int count) throws IOException {
+		if (!TransferPacket.isValidPayloadSize(payloadSize) || size < 0 || size / payloadSize > Integer.MAX_VALUE
+				|| chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || chunkSize % payloadSize != 0
+				|| count < 0 || count > MAX_CHUNKS || count != (size + chunkSize - 1) / chunkSize) {
+			throw new IOException("Invalid chunk manifest");
+		}
+	}
+
+	/**
+	 * @param chunks	chunks of this manifest
+	 * @return the chunks as a bitmap of a fixed length, the answer of the server to the manifest
+	 */
+	public byte[] toBytes(BitSet chunks) {
+		return Arrays.copyOf(chunks.toByteArray(), (checksums.length + 7) / 8);
+	}
+
+	/**
+	 * Receive the chunks sent with {@link #toBytes}
+	 */
+	public BitSet readChunks(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(checksums.length + 7) / 8];
+		in.readFully(bytes);
+		BitSet chunks = BitSet.valueOf(bytes);
+		chunks.clear(checksums.length, bytes.length * 8);
+		return chunks;
+	}
+
+	/**
+	 * @return name of the transfer: a digest of the manifest, the same for the same file content
+	 */
+	public String getId() {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4 * checksums.length);
+		buf.putInt(payloadSize).putLong(size).putInt(chunkSize).putInt(checksums.length);
+		for (int checksum : checksums) {
+			buf.putInt(checksum);
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(buf.array());
+			StringBuilder id = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				id.append(String.format("%02x", digest[i]));
+			}
+			return id.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @param asked	ranges asked by the client
+	 * @return ranges the file is split in: as many as asked, at most one per chunk
+	 */
+	public int getRangeCount(int asked) {
+		return Math.max(1, Math.min(Math.min(asked, MAX_RANGES), checksums.length));
+	}
+
+	/**
+	 * @param range		index of a range
+	 * @param ranges	ranges the file is split in, about the same number of chunks each
+	 * @return first chunk of the range, the chunk count after the last range
+	 */
+	public int getRangeStart(int range, int ranges) {
+		return (int) ((long) range * checksums.length / ranges);
+	}
+
+	/**
+	 * @param from	first chunk of the range
+	 * @param to	chunk after the range
+	 * @return manifest of the range. Its size is a multiple of the payload size but for the
+	 * last range, so its last packet is empty
+	 */
+	public ChunkManifest getRange(int from, int to) {
+		long start = getChunkStart(from);
+		long end = to == checksums.length ? size : getChunkStart(to);
+		return new ChunkManifest(payloadSize, end - start, chunkSize, Arrays.copyOfRange(checksums, from, to),
+				offset + start);
+	}
+
+	/**
+	 * @param sequence	sequence number of a packet that isn't the last
+	 * @return chunk holding the packet
+	 */
+	public int getChunk(int sequence) {
+		return (int) ((long) sequence * payloadSize / chunkSize);
+	}
+
+	/**
+	 * @return sequence number of the first packet of a chunk
+	 */
+	public int getFirstPacket(int chunk) {
+		return (int) (getChunkStart(chunk) / payloadSize);
+	}
+
+	/**
+	 * @return bytes of a chunk but those of the last packet, sent raw since it ends the transfer
+	 */
+	public int getBodyLength(int chunk) {
+		return (int) (Math.min(getChunkStart(chunk) + getChunkLength(chunk), (long) getLastPacket() * payloadSize)
+				- getChunkStart(chunk));
+	}
+
+	/**
+	 * @return sequence number of the last packet, empty when the size is a multiple of the payload size
+	 */
+	public int getLastPacket() {
+		return (int) (size / payloadSize);
+	}
+
+	/**
+	 * @param chunks	chunks held by the server
+	 * @return bytes of the packets the client doesn't send: all of the chunks but the last packet,
+	 * always sent since it ends the transfer
+	 */
+	public long getBytes(BitSet chunks) {
+		long bytes = 0;
+		for (int c = chunks.nextSetBit(0); c >= 0 && c < checksums.length; c = chunks.nextSetBit(c + 1)) {
+			bytes += getChunkLength(c);
+		}
+		long lastStart = (long) getLastPacket() * payloadSize;
+		if (lastStart < size && chunks.get(getChunk(getLastPacket()))) {
+			bytes -= size - lastStart;
+		}
+		return bytes;
+	}
+
+	public long getChunkStart(int chunk) {
+		return (long) chunk * chunkSize;
+	}
+
+	public int getChunkLength(int chunk) {
+		return (int) Math.min(chunkSize, size - getChunkStart(chunk));
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunkCount() {
+		return checksums.length;
+	}
+
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return position of the manifest in the file, not 0 for a range
+	 */
+	public long getOffset() {
+		return offset;
+	}
+}
@@ -1,18 +1,28 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 /**
- * Usage: java Client <host/server address> <port-number> <filename>
+ * Usage: java Client <host/server address> <port-number> <filename|@list-file> [payload-size] [window-size] [none|deflate] [ack-interval|echo] [streams]
  */
 
 /**
@@ -21,6 +31,22 @@ import java.net.UnknownHostException;
  * available port number in which server has it available. Next, sending file
  * over established connection.
  * 
+ * Files are described by a {@link ChunkManifest} when negotiating, so the server tells which
+ * chunks it already holds from an interrupted transfer and only the others are sent again.
+ * With {@code deflate}, chunks that shrink are sent compressed, see {@link ChunkCompressor}.
+ * 
+ * The client asks for a cumulative acknowledgement every {@code ack-interval} packets and at the
+ * end of every burst. With {@code echo}, every packet is acknowledged with its content in
+ * upper-case and printed, for diagnostics.
+ * 
+ * With more than one stream, a file is split in ranges of chunks, see {@link ChunkManifest#getRange},
+ * sent at once from their own thread to their own port of the server, so a single large file
+ * isn't bound to the throughput of a single flow.
+ * 
+ * Given {@code @list-file}, the client sends every file listed in it, one path per line, in
+ * a session: the negotiation connection stays open, each file negotiates its port on it and
+ * gets back the number of bytes the server received, so no file pays for a new handshake.
+ * 
  * @author aqd14
  */
 public class Client {
@@ -32,26 +58,101 @@ public class Client {
 	// The character represents when client want to negotiate a port number with server
 	// Must be agreed from both sides
 	final char NEGOTIATION_CHAR = 259;
+	// The character opening a session, where many files are negotiated on one connection
+	final char SESSION_CHAR = 260;
+	// The character of a negotiation followed by the manifest of the file
+	final char MANIFEST_CHAR = 261;
+	// The same, also asking to send chunks compressed
+	final char COMPRESSED_CHAR = 262;
+	// The character of a parallel transfer, followed by the streams asked (short),
+	// then by a negotiation with a manifest
+	final char PARALLEL_CHAR = 263;
+	
+	// Resend a packet not acknowledged after this time (ms). Doubled, up to the maximum, after
+	// every retransmission until an acknowledgement arrives, so clients of a busy server don't flood it
+	final static int RETRANSMIT_TIMEOUT = 100;
+	final static int MAX_RETRANSMIT_TIMEOUT = 2000;
+	// Give up after this time without any acknowledgement (ms)
+	final static int SERVER_TIMEOUT = 30000;
 	
-	// Packet's size
-	final static int PACKET_SIZE = 4; 
+	// Payload bytes per packet and packets in flight
+	private int payloadSize = TransferPacket.DEFAULT_PAYLOAD_SIZE;
+	private int windowSize = TransferPacket.DEFAULT_WINDOW;
+	// Send the chunks that shrink compressed
+	private boolean compress;
+	// Packets sent between acknowledgement requests, 0 to have every packet echoed
+	private int ackInterval = TransferPacket.DEFAULT_ACK_INTERVAL;
+	// Ranges of a file sent at once, on their own port
+	private int streams = 1;
 
 	/**
 	 * Constructor
 	 */
 	public Client(String host, String port, String pathname) {
+		this(host, port, pathname, TransferPacket.DEFAULT_PAYLOAD_SIZE, TransferPacket.DEFAULT_WINDOW);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param payloadSize	payload bytes per packet, at most the path MTU to avoid IP fragmentation
+	 * @param windowSize	packets sent without waiting for their acknowledgement
+	 */
+	public Client(String host, String port, String pathname, int payloadSize, int windowSize) {
+		this(host, port, pathname, payloadSize, windowSize, false);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param compress	send the chunks that shrink compressed
+	 */
+	public Client(String host, String port, String pathname, int payloadSize, int windowSize, boolean compress) {
+		this(host, port, pathname, payloadSize, windowSize, compress, TransferPacket.DEFAULT_ACK_INTERVAL);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param ackInterval	packets sent between acknowledgement requests,
+	 * 						0 for the diagnostic mode where every packet is echoed
+	 */
+	public Client(String host, String port, String pathname, int payloadSize, int windowSize, boolean compress,
+			int ackInterval) {
+		this(host, port, pathname, payloadSize, windowSize, compress, ackInterval, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param streams	ranges of a file sent at once, each to its own port of the server
+	 */
+	public Client(String host, String port, String pathname, int payloadSize, int windowSize, boolean compress,
+			int ackInterval, int streams) {
 		// Validate input beforehand
-		if (validateInput(host, port, pathname) == false) {
+		List<String> pathnames = pathname.startsWith("@") ? readList(pathname.substring(1)) : null;
+		if (validateInput(host, port, pathname, pathnames) == false) {
 			err.println("Invalid input... Terminate program! Please try again.");
 			return;
 		}
+		if (!TransferPacket.isValidPayloadSize(payloadSize) || !TransferPacket.isValidWindow(windowSize)
+				|| ackInterval < 0 || streams < 1 || streams > ChunkManifest.MAX_RANGES) {
+			err.println("Payload size must be in range 1 - " + TransferPacket.MAX_PAYLOAD_SIZE
+					+ ", window size in range 1 - " + TransferPacket.MAX_WINDOW + ", acknowledgement interval positive"
+					+ " and streams in range 1 - " + ChunkManifest.MAX_RANGES);
+			return;
+		}
+		this.payloadSize = payloadSize;
+		this.windowSize = windowSize;
+		this.compress = compress;
+		this.ackInterval = ackInterval;
+		this.streams = streams;
 		
-		int serverPort = negotiate(host, port);
-		// Something went wrong. Server can't return a port number:
-		if (serverPort == -1) {
+		if (pathnames != null) {
+			sendFiles(host, Integer.parseInt(port), pathnames);
 			return;
 		}
-		sendFile(host, serverPort, pathname);
+		resumeFile(host, Integer.parseInt(port), pathname);
 	}
 	
 	/**
@@ -89,7 +190,116 @@ public class Client {
 	}
 	
 	/**
-	 * Send file through socket with UDP connection.
+	 * Negotiate a file described by its manifest on a connection with the server. With more than
+	 * one stream, the server answers with the number of streams it opened, then their ports.
+	 * 
+	 * @return server's running port numbers, one per range, {@code null} if it has none
+	 */
+	private int[] negotiate(DataInputStream in, DataOutputStream out, ChunkManifest manifest) throws IOException {
+		if (streams > 1) {
+			out.writeChar(PARALLEL_CHAR);
+			out.writeShort(streams);
+		}
+		out.writeChar(compresses(manifest) ? COMPRESSED_CHAR : MANIFEST_CHAR);
+		manifest.write(out);
+		int[] dataPorts = new int[streams > 1 ? in.readInt() : 1];
+		for (int i = 0; i < dataPorts.length; i++) {
+			dataPorts[i] = in.readInt();
+		}
+		return dataPorts.length == 0 || dataPorts[0] == -1 ? null : dataPorts;
+	}
+	
+	private boolean compresses(ChunkManifest manifest) {
+		return compress && manifest != null && ChunkCompressor.accepts(manifest);
+	}
+	
+	/**
+	 * Send a file with its manifest: the server answers with the chunks it already holds
+	 * and only the other ones are sent.
+	 * 
+	 * @param host		server host
+	 * @param port		server's initial port number
+	 * @param pathname	file to send
+	 */
+	public void resumeFile(String host, int port, String pathname) {
+		try {
+			ChunkManifest manifest = ChunkManifest.create(pathname, payloadSize);
+			Socket socket = new Socket(host, port);
+			
+			// Establish data input/output streams
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			
+			int[] dataPorts = negotiate(in, out, manifest);
+			BitSet held = dataPorts == null ? null : manifest.readChunks(in);
+			// Negotiation stage finished. Close connection!
+			socket.close();
+			if (dataPorts == null) {
+				err.println("Server has no free port. Close connection!");
+				return;
+			}
+			sendFile(host, dataPorts, pathname, manifest, held, null);
+		} catch (UnknownHostException e) {
+			err.println("IP address of the host couldn't be resolved!");
+		} catch (IOException e) {
+			err.println("An I/O error occurs when negotiating " + pathname + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send files one after the other in a session. Each file negotiates its port with its manifest
+	 * on the session connection, then the server answers with the size of the file it received,
+	 * -1 if it failed.
+	 * 
+	 * @param host		server host
+	 * @param port		server's initial port number
+	 * @param pathnames	files to send
+	 */
+	public void sendFiles(String host, int port, List<String> pathnames) {
+		int sent = 0;
+		try {
+			Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			
+			// Establish data input/output streams
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			
+			out.writeChar(SESSION_CHAR);
+			for (String pathname : pathnames) {
+				ChunkManifest manifest = ChunkManifest.create(pathname, payloadSize);
+				int[] dataPorts = negotiate(in, out, manifest);
+				if (dataPorts == null) {
+					err.println("Server has no free port. Close session!");
+					break;
+				}
+				sendFile(host, dataPorts, pathname, manifest, manifest.readChunks(in), in);
+				long received = in.readLong();
+				long size = new File(pathname).length();
+				if (received == size) {
+					sent++;
+				} else {
+					err.println("Server received " + received + " of " + size + " bytes of " + pathname);
+				}
+			}
+			// Session finished. Close connection!
+			socket.close();
+		} catch (UnknownHostException e) {
+			err.println("IP address of the host couldn't be resolved!");
+		} catch (IOException e) {
+			err.println("An I/O error occurs in the session. Close connection!");
+		}
+		ack.println("Sent " + sent + " of " + pathnames.size() + " files");
+	}
+	
+	/**
+	 * Send file through socket with UDP connection. Up to {@code windowSize} packets are in flight;
+	 * every packet is acknowledged on its own and resent after a timeout until it is.
+	 * The last packet has the LAST flag, it is empty when the file size is a multiple of the payload size.
+	 * 
+	 * Payloads are slices of the memory-mapped file, sent after their header with one gathering
+	 * write, so neither sending nor resending copies the file to the heap. Compressed chunks are
+	 * sent from their own buffer, in pieces numbered from the first packet of the chunk.
 	 * 
 	 * @param host
 	 * @param port
@@ -97,37 +307,315 @@ public class Client {
 	 * @throws IOException
 	 */
 	public void sendFile(String host, int port, String pathname) {
+		sendFile(host, port, pathname, null, null, null);
+	}
+	
+	/**
+	 * Send a file over the ports negotiated for it: its ranges at once, each from its own thread,
+	 * when there are several
+	 * 
+	 * @param ports		ports of the server, one per range
+	 * @param manifest	manifest of the file
+	 * @param held		chunks of the manifest held by the server, not sent
+	 * @param control	session connection, {@code null} outside a session
+	 */
+	private void sendFile(final String host, int[] ports, final String pathname, ChunkManifest manifest, BitSet held,
+			final DataInputStream control) {
+		if (ports.length == 1) {
+			sendFile(host, ports[0], pathname, manifest, held, control);
+			return;
+		}
+		Thread[] threads = new Thread[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			int from = manifest.getRangeStart(i, ports.length);
+			int to = manifest.getRangeStart(i + 1, ports.length);
+			final int port = ports[i];
+			final ChunkManifest range = manifest.getRange(from, to);
+			final BitSet rangeHeld = held.get(from, to);
+			threads[i] = new Thread("stream-" + i) {
+				@Override
+				public void run() {
+					sendFile(host, port, pathname, range, rangeHeld, control);
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			err.println("Interrupted while sending " + pathname);
+		}
+	}
+	
+	/**
+	 * Send the chunks of a file the server doesn't hold. In a session, stops early once the server
+	 * answers on the session connection, e.g. when it has the whole file but the last
+	 * acknowledgements were lost.
+	 * 
+	 * @param manifest	manifest of the file or of a range of it, {@code null} to send it all
+	 * @param held		chunks of the manifest held by the server, not sent
+	 * @param control	session connection, {@code null} outside a session
+	 */
+	public void sendFile(String host, int port, String pathname, ChunkManifest manifest, BitSet held,
+			DataInputStream control) {
 		// Now, ready to send file to server
-	    try {
-    		DatagramSocket socket = new DatagramSocket();
-    		// Server address
-    		InetAddress address = InetAddress.getByName(host);
-    		// Sending file to server
-    		DatagramPacket sentPacket, receivedPacket;
-    		FileInputStream fis = new FileInputStream(new File(pathname));
-    		byte[] sentBuf = new byte[PACKET_SIZE]; // Send 4 characters per packet
-    		byte[] receivedBuf = new byte[PACKET_SIZE]; // Receive packet buffer from socket
-    		int offset; // Number of bytes read successfully
-    		while ((offset = fis.read(sentBuf)) != -1) {
-    			sentPacket = new DatagramPacket(sentBuf, offset, address, port);
-    			socket.send(sentPacket);
-    			// Completed sending packet. Waiting to get response from server
-    			receivedPacket = new DatagramPacket(receivedBuf, receivedBuf.length);
-    			socket.receive(receivedPacket);
-    			// Print out response from server
-    			ack.println(new String(receivedPacket.getData(), 0, receivedPacket.getLength()));
-    		}
-    		
-            // Completed sending file. Close socket and streams will then be closed automatically
-            fis.close();
-            socket.close();
-	    } catch (IOException e) {
-	        err.println("IOException occurred. Close connection!");
-	    }
-	}
-	
-	private boolean validateInput(String host, String port, String fileName) {
-		return validateHost(host) && validatePort(port) && validateFile(fileName);
+		try {
+			MappedFile file = new MappedFile(pathname, payloadSize);
+			// Bytes to send from the position of the range on
+			long start = manifest != null ? manifest.getOffset() : 0;
+			long size = manifest != null ? manifest.getSize() : file.size();
+			// The last packet holds the remaining bytes, possibly none
+			long packets = size / payloadSize + 1;
+			if (packets > Integer.MAX_VALUE) {
+				err.println("File is too large for payloads of " + payloadSize + " bytes");
+				file.close();
+				return;
+			}
+			int last = (int) (packets - 1);
+			if (held != null && !held.isEmpty()) {
+				ack.println("Server holds " + held.cardinality() + " of " + manifest.getChunkCount()
+						+ " chunks. Sending the others");
+			}
+			
+			// Connected, so a gathering write sends header and payload as one datagram
+			DatagramChannel channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, TransferPacket.SOCKET_BUFFER_SIZE);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, TransferPacket.SOCKET_BUFFER_SIZE);
+			channel.connect(new InetSocketAddress(InetAddress.getByName(host), port));
+			DatagramSocket socket = channel.socket();
+			// Wakes up to resend packets whose deadline passed
+			socket.setSoTimeout(RETRANSMIT_TIMEOUT);
+			
+			// Packets in flight, packet i is at index i % windowSize: header, then payload
+			ByteBuffer[][] sentPackets = new ByteBuffer[windowSize][2];
+			// Time to resend each packet, from the timeout in force when it was sent
+			long[] deadlines = new long[windowSize];
+			boolean[] acknowledged = new boolean[windowSize];
+			for (int i = 0; i < windowSize; i++) {
+				sentPackets[i][0] = ByteBuffer.allocateDirect(TransferPacket.HEADER_SIZE);
+			}
+			byte[] receivedBuf = new byte[TransferPacket.MAX_DATAGRAM_SIZE]; // Receive packet buffer from socket
+			DatagramPacket receivedPacket = new DatagramPacket(receivedBuf, receivedBuf.length);
+			
+			ChunkCompressor compressor = compresses(manifest) ? new ChunkCompressor(file, manifest) : null;
+			int compressedChunk = -1; // Chunk whose packets are being sent, and its compressed bytes
+			ByteBuffer compressed = null;
+			
+			int base = 0; // Oldest packet not acknowledged yet
+			int next = 0; // Next packet to send
+			int pending = -1; // Packet sent once the next one is known, so the end of a burst asks for an acknowledgement
+			int unrequested = 0; // Packets sent since the last acknowledgement request
+			int timeout = RETRANSMIT_TIMEOUT;
+			long lastAcknowledgement = System.currentTimeMillis();
+			while (base <= last) {
+				// Fill the window with new packets
+				while (next <= last && next < base + windowSize) {
+					int index = next % windowSize;
+					// The last packet ends the transfer, always sent raw
+					int chunk = manifest != null && next != last ? manifest.getChunk(next) : -1;
+					ByteBuffer payload = null;
+					byte flags = next == last ? TransferPacket.LAST : 0;
+					if (chunk != -1 && held != null && held.get(chunk)) {
+						// Held by the server
+					} else {
+						if (chunk != -1 && compressor != null && chunk != compressedChunk) {
+							compressedChunk = chunk;
+							compressed = compressor.compress(chunk);
+						}
+						if (chunk != -1 && chunk == compressedChunk && compressed != null) {
+							// Packets after the compressed chunk's end aren't sent
+							int pieceOffset = (next - manifest.getFirstPacket(chunk)) * payloadSize;
+							if (pieceOffset < compressed.capacity()) {
+								payload = compressed.slice(pieceOffset,
+										Math.min(payloadSize, compressed.capacity() - pieceOffset));
+								flags = pieceOffset + payload.capacity() == compressed.capacity()
+										? TransferPacket.COMPRESSED | TransferPacket.CHUNK_END : TransferPacket.COMPRESSED;
+							}
+						} else {
+							long offset = (long) next * payloadSize;
+							payload = file.slice(start + offset, (int) Math.min(payloadSize, size - offset));
+						}
+					}
+					// Packets not sent count as acknowledged
+					sentPackets[index][1] = payload;
+					acknowledged[index] = payload == null;
+					if (payload != null) {
+						TransferPacket.writeHeader(sentPackets[index][0], next, flags);
+						if (pending != -1) {
+							unrequested = ++unrequested == ackInterval ? 0 : unrequested;
+							send(channel, sentPackets[pending % windowSize], unrequested == 0);
+							deadlines[pending % windowSize] = System.currentTimeMillis() + timeout;
+						}
+						pending = next;
+					}
+					next++;
+					while (base < next && acknowledged[base % windowSize]) {
+						base++;
+					}
+				}
+				if (pending != -1) {
+					unrequested = 0;
+					send(channel, sentPackets[pending % windowSize], true);
+					deadlines[pending % windowSize] = System.currentTimeMillis() + timeout;
+					pending = -1;
+				}
+				if (base > last) {
+					break;
+				}
+				
+				// Waiting to get response from server
+				try {
+					receivedPacket.setLength(receivedBuf.length);
+					socket.receive(receivedPacket);
+					int sequence = TransferPacket.getSequence(receivedBuf);
+					int acked = 0;
+					if (!TransferPacket.hasFlag(receivedBuf, TransferPacket.ACK)) {
+						// Not an acknowledgement
+					} else if (TransferPacket.hasFlag(receivedBuf, TransferPacket.SACK)) {
+						// Every packet before the sequence number is received, and those of the bitmap after it
+						for (int i = base; i < Math.min(sequence, next); i++) {
+							acked += acknowledge(acknowledged, sentPackets, i % windowSize);
+						}
+						for (int i = Math.max(base, sequence + 1); i < next; i++) {
+							if (TransferPacket.isSelectivelyAcked(receivedBuf, receivedPacket.getLength(), i - sequence - 1)) {
+								acked += acknowledge(acknowledged, sentPackets, i % windowSize);
+							}
+						}
+					} else if (sequence >= base && sequence < next) {
+						acked = acknowledge(acknowledged, sentPackets, sequence % windowSize);
+						if (acked > 0) {
+							// Print out response from server
+							ack.println(new String(receivedBuf, TransferPacket.HEADER_SIZE,
+									receivedPacket.getLength() - TransferPacket.HEADER_SIZE));
+						}
+					}
+					if (acked > 0) {
+						lastAcknowledgement = System.currentTimeMillis();
+						timeout = RETRANSMIT_TIMEOUT;
+						// Slide the window past the acknowledged packets
+						while (base < next && acknowledged[base % windowSize]) {
+							base++;
+						}
+					}
+				} catch (SocketTimeoutException e) {
+					if (System.currentTimeMillis() - lastAcknowledgement >= SERVER_TIMEOUT) {
+						err.println("Server stopped responding. Close connection!");
+						break;
+					}
+				} catch (PortUnreachableException e) {
+					// In a session, the server tells what it received
+					if (control == null) {
+						err.println("Server is not listening on port " + port + ". Close connection!");
+					}
+					break;
+				}
+				// The server answered the session: the transfer is over
+				if (control != null && control.available() >= 8) {
+					break;
+				}
+				
+				// Resend packets not acknowledged in time, from the same header and slice.
+				// The timeout backs off only once a packet had to be resent
+				long now = System.currentTimeMillis();
+				int backoff = Math.min(2 * timeout, MAX_RETRANSMIT_TIMEOUT);
+				boolean resent = false;
+				for (int sequence = base; sequence < next; sequence++) {
+					int index = sequence % windowSize;
+					if (!acknowledged[index] && now >= deadlines[index]) {
+						send(channel, sentPackets[index], true);
+						deadlines[index] = now + backoff;
+						resent = true;
+					}
+				}
+				if (resent) {
+					timeout = backoff;
+				}
+			}
+			
+			if (compressor != null) {
+				ack.println(compressor.getReport());
+				compressor.close();
+			}
+			// Completed sending file. Close socket and file
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			err.println("IOException occurred. Close connection!");
+		}
+	}
+	
+	/**
+	 * Send a packet, from the start of its header and payload
+	 * 
+	 * @param requestAck	ask for an acknowledgement
+	 */
+	private void send(DatagramChannel channel, ByteBuffer[] packet, boolean requestAck) throws IOException {
+		byte flags = (byte) (packet[0].get(4) & ~(TransferPacket.ACK_REQUEST | TransferPacket.ECHO));
+		if (ackInterval == 0) {
+			flags |= TransferPacket.ECHO;
+		} else if (requestAck) {
+			flags |= TransferPacket.ACK_REQUEST;
+		}
+		packet[0].put(4, flags);
+		packet[0].rewind();
+		packet[1].rewind();
+		channel.write(packet);
+	}
+	
+	/**
+	 * Mark a packet in flight acknowledged
+	 * 
+	 * @return 1 if it wasn't yet, 0 otherwise
+	 */
+	private static int acknowledge(boolean[] acknowledged, ByteBuffer[][] sentPackets, int index) {
+		if (acknowledged[index]) {
+			return 0;
+		}
+		acknowledged[index] = true;
+		// Done with the slice, its region can be unmapped once the window moves past it
+		sentPackets[index][1] = null;
+		return 1;
+	}
+	
+	private boolean validateInput(String host, String port, String fileName, List<String> fileNames) {
+		if (!validateHost(host) || !validatePort(port)) {
+			return false;
+		}
+		if (fileNames == null) {
+			return validateFile(fileName);
+		}
+		if (fileNames.isEmpty()) {
+			err.println("No file to send in " + fileName.substring(1));
+			return false;
+		}
+		for (String name : fileNames) {
+			if (!validateFile(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the files to send from a list file, one path per line. Blank lines are skipped.
+	 * 
+	 * @param listFile	list file to read
+	 * @return paths of the files, empty if the list can't be read
+	 */
+	private List<String> readList(String listFile) {
+		List<String> fileNames = new ArrayList<String>();
+		try {
+			for (String line : Files.readAllLines(Paths.get(listFile))) {
+				if (!line.trim().isEmpty()) {
+					fileNames.add(line.trim());
+				}
+			}
+		} catch (IOException e) {
+			err.println("List file couldn't be read: " + listFile);
+		}
+		return fileNames;
 	}
 	
 	private boolean validateHost(String host) {
@@ -177,10 +665,16 @@ public class Client {
 	 */
 	public static void main(String[] args) {	
 		if (args == null || args.length < 3) {
-			System.err.println("Need to provide host, port number and filename to start!\nUsage: java client <hostname> <port> <filepath>");
+			System.err.println("Need to provide host, port number and filename to start!\nUsage: java client <hostname> <port> <filepath|@list-file> [payload-size] [window-size] [none|deflate] [ack-interval|echo] [streams]");
 			return; // Terminate program when input is invalid
 		}
+		int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : TransferPacket.DEFAULT_PAYLOAD_SIZE;
+		int windowSize = args.length > 4 ? Integer.parseInt(args[4]) : TransferPacket.DEFAULT_WINDOW;
+		boolean compress = args.length > 5 && args[5].equalsIgnoreCase("deflate");
+		int ackInterval = args.length <= 6 ? TransferPacket.DEFAULT_ACK_INTERVAL
+				: args[6].equalsIgnoreCase("echo") ? 0 : Integer.parseInt(args[6]);
+		int streams = args.length > 7 ? Integer.parseInt(args[7]) : 1;
 		// Start connecting
-		new Client(args[0], args[1], args[2]);
+		new Client(args[0], args[1], args[2], payloadSize, windowSize, compress, ackInterval, streams);
 	}
 }
@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writer stage of the servers. Receiving threads copy payloads into a bounded ring and
+ * go back to the network; if the ring is full the payload is refused, so the packet is not
+ * acknowledged and the client resends it, and a slow disk never blocks a receiving thread.
+ * A single writer thread drains the ring in batches, merging payloads that follow each other
+ * in a file into one positional {@link FileChannel} write.
+ *
+ * Files are forced to the disk according to the {@link SyncPolicy}. A file may be written by
+ * several transfers at once, the streams of a parallel transfer; it is closed once all of them closed it.
+ *
+ * @author aqd14
+ */
+public class DiskWriter extends Thread {
+	// Payload bytes and payloads queued at most
+	final static int DEFAULT_BUFFER_SIZE = 16 << 20;
+	final static int DEFAULT_ENTRIES = 16 << 10;
+
+	/**
+	 * When written files are forced to the disk: never (left to the OS),
+	 * when the file is closed, or after every batch written to it
+	 */
+	enum SyncPolicy {
+		NONE, CLOSE, BATCH
+	}
+
+	/**
+	 * Output file of a transfer. Only the writer thread writes and closes it.
+	 */
+	static class Target {
+		private final String path;
+		private final FileChannel channel;
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private volatile IOException failure;
+		private int users = 1; // Transfers not done with the file, guarded by the writer's lock
+		private List<Runnable> listeners = new ArrayList<Runnable>(); // Run once closed, null after; guarded by the target
+
+		private Target(String path, long size) throws IOException {
+			this.path = path;
+			if (size == -1) {
+				channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} else {
+				channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				channel.truncate(size);
+			}
+		}
+
+		/**
+		 * @return the error that stopped the writes to the file, {@code null} if none
+		 */
+		public IOException getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Wait until every payload queued before {@link DiskWriter#close} is written and the file is closed
+		 *
+		 * @throws IOException if the file couldn't be written
+		 */
+		public void awaitClosed() throws IOException, InterruptedException {
+			closed.await();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/**
+		 * Run a task once the file is closed, right away if it already is. The task runs on the writer
+		 * thread, so it must not block, e.g. it hands the result to another thread.
+		 *
+		 * @param listener	task to run, which can check {@link #getFailure()}
+		 */
+		public void whenClosed(Runnable listener) {
+			synchronized (this) {
+				if (listeners != null) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		public String getPath() {
+			return path;
+		}
+	}
+
+	private final SyncPolicy syncPolicy;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// Payloads, one after the other, wrapping to the start when the end has no room
+	private final ByteBuffer buffer;
+	// Queued payloads: file, position in the file, offset in the buffer, length (-1 closes the file)
+	private final Target[] targets;
+	private final long[] positions;
+	private final int[] offsets;
+	private final int[] lengths;
+	private long head; // Payloads queued since start
+	private long tail; // Payloads written since start
+	private int bufferHead; // Offset of the next payload
+
+	/**
+	 * Constructor
+	 *
+	 * @param syncPolicy	when files are forced to the disk
+	 * @param bufferSize	payload bytes queued at most
+	 * @param entries		payloads queued at most
+	 */
+	public DiskWriter(SyncPolicy syncPolicy, int bufferSize, int entries) {
+		super("disk-writer");
+		setDaemon(true);
+		this.syncPolicy = syncPolicy;
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		targets = new Target[entries];
+		positions = new long[entries];
+		offsets = new int[entries];
+		lengths = new int[entries];
+	}
+
+	public DiskWriter(SyncPolicy syncPolicy) {
+		this(syncPolicy, DEFAULT_BUFFER_SIZE, DEFAULT_ENTRIES);
+	}
+
+	/**
+	 * Create or truncate a file to write
+	 *
+	 * @param path	path of the file
+	 * @return file to give to {@link #write}
+	 * @throws IOException if the file can't be created
+	 */
+	public Target open(String path) throws IOException {
+		return new Target(path, -1);
+	}
+
+	/**
+	 * Open a file to complete, keeping its content up to the given size
+	 *
+	 * @param path	path of the file
+	 * @param size	size of the complete file
+	 * @return file to give to {@link #write}
+	 * @throws IOException if the file can't be opened
+	 */
+	public Target open(String path, long size) throws IOException {
+		return new Target(path, size);
+	}
+
+	/**
+	 * Open a file to complete by several transfers, each closing it once done
+	 *
+	 * @param path	path of the file
+	 * @param size	size of the complete file
+	 * @param users	transfers writing the file
+	 * @return file to give to {@link #write}
+	 * @throws IOException if the file can't be opened
+	 */
+	public Target open(String path, long size, int users) throws IOException {
+		Target target = new Target(path, size);
+		target.users = users;
+		return target;
+	}
+
+	/**
+	 * Queue a payload, without waiting for the disk
+	 *
+	 * @param target	file to write
+	 * @param position	position of the payload in the file
+	 * @param src		array holding the payload
+	 * @param offset	offset of the payload in the array
+	 * @param length	length of the payload
+	 * @return {@code false} if the ring is full and the payload must be received again later
+	 */
+	public boolean write(Target target, long position, byte[] src, int offset, int length) {
+		lock.lock();
+		try {
+			int bufferOffset = allocate(length);
+			if (bufferOffset == -1) {
+				return false;
+			}
+			buffer.put(bufferOffset, src, offset, length);
+			enqueue(target, position, bufferOffset, length);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close a file once the payloads queued before are written, if no other transfer writes it.
+	 * Waits for room in the ring, which the writer thread frees without waiting for anyone.
+	 *
+	 * @param target	file to close
+	 */
+	public void close(Target target) {
+		lock.lock();
+		try {
+			if (--target.users > 0) {
+				return;
+			}
+			while (head - tail == targets.length) {
+				notFull.awaitUninterruptibly();
+			}
+			if (head == tail) {
+				bufferHead = 0;
+			}
+			// Holds no bytes, placed at the head so the start of the oldest payload stays right
+			enqueue(target, 0, bufferHead, -1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(Target target, long position, int offset, int length) {
+		int index = (int) (head % targets.length);
+		targets[index] = target;
+		positions[index] = position;
+		offsets[index] = offset;
+		lengths[index] = length;
+		if (head++ == tail) {
+			notEmpty.signal();
+		}
+	}
+
+	/**
+	 * Find room for a payload after the last one queued, or at the start of the buffer.
+	 * Called with the lock held; payloads from the tail on may be being written.
+	 *
+	 * @return offset of the room in the buffer, -1 if there is none
+	 */
+	private int allocate(int length) {
+		if (head - tail == targets.length) {
+			return -1;
+		}
+		if (head == tail) {
+			bufferHead = 0;
+		}
+		// Start of the oldest payload not written yet
+		int bufferTail = head == tail ? 0 : offsets[(int) (tail % targets.length)];
+		int offset = -1;
+		if (bufferHead >= bufferTail) {
+			// Free: from the head to the end, and from the start to the tail
+			if (buffer.capacity() - bufferHead >= length) {
+				offset = bufferHead;
+			} else if (bufferTail > length) {
+				offset = 0;
+			}
+		} else if (bufferTail - bufferHead > length) {
+			// Wrapped. Free: from the head to the tail, kept from meeting it
+			offset = bufferHead;
+		}
+		if (offset != -1) {
+			bufferHead = offset + length;
+		}
+		return offset;
+	}
+
+	public void run() {
+		Set<Target> written = new HashSet<Target>();
+		while (true) {
+			long batchStart;
+			long batchEnd;
+			lock.lock();
+			try {
+				while (head == tail) {
+					notEmpty.awaitUninterruptibly();
+				}
+				batchStart = tail;
+				batchEnd = head;
+			} finally {
+				lock.unlock();
+			}
+
+			// Payloads of the batch stay in the ring until the tail moves past them
+			for (long i = batchStart; i < batchEnd; ) {
+				int index = (int) (i % targets.length);
+				Target target = targets[index];
+				if (lengths[index] == -1) {
+					closeTarget(target);
+					written.remove(target);
+					i++;
+					continue;
+				}
+				// Merge the payloads following each other in the file and in the buffer
+				long position = positions[index];
+				int offset = offsets[index];
+				int length = lengths[index];
+				i++;
+				while (i < batchEnd) {
+					int nextIndex = (int) (i % targets.length);
+					if (targets[nextIndex] != target || lengths[nextIndex] == -1
+							|| positions[nextIndex] != position + length || offsets[nextIndex] != offset + length) {
+						break;
+					}
+					length += lengths[nextIndex];
+					i++;
+				}
+				writeTarget(target, position, offset, length);
+				written.add(target);
+			}
+			if (syncPolicy == SyncPolicy.BATCH) {
+				for (Target target : written) {
+					forceTarget(target);
+				}
+			}
+			written.clear();
+
+			lock.lock();
+			try {
+				for (long i = batchStart; i < batchEnd; i++) {
+					targets[(int) (i % targets.length)] = null;
+				}
+				tail = batchEnd;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void writeTarget(Target target, long position, int offset, int length) {
+		if (target.failure != null) {
+			return;
+		}
+		ByteBuffer src = buffer.slice(offset, length);
+		try {
+			while (src.hasRemaining()) {
+				position += target.channel.write(src, position);
+			}
+		} catch (IOException e) {
+			target.failure = e;
+		}
+	}
+
+	private void forceTarget(Target target) {
+		if (target.failure != null || !target.channel.isOpen()) {
+			return;
+		}
+		try {
+			target.channel.force(false);
+		} catch (IOException e) {
+			target.failure = e;
+		}
+	}
+
+	private void closeTarget(Target target) {
+		if (syncPolicy != SyncPolicy.NONE) {
+			forceTarget(target);
+		}
+		try {
+			target.channel.close();
+		} catch (IOException e) {
+			if (target.failure == null) {
+				target.failure = e;
+			}
+		}
+		List<Runnable> listeners;
+		synchronized (target) {
+			target.closed.countDown();
+			listeners = target.listeners;
+			target.listeners = null;
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+}
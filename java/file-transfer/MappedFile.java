@@ -0,0 +1,63 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a file as slices of memory mappings, so payloads go from the page
+ * cache to the socket without being copied to the heap. Files of any size are mapped one
+ * region at a time; a region holds whole payloads, so no payload spans two regions.
+ * Slices keep their region mapped until they are dropped.
+ *
+ * @author aqd14
+ */
+public class MappedFile implements Closeable {
+	// Mapped at once, rounded down to whole payloads
+	final static long REGION_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final long size;
+	private final long regionSize;
+	private MappedByteBuffer region;
+	private long regionStart = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param pathname		file to read
+	 * @param payloadSize	size of the slices, except the last one
+	 * @throws IOException
+	 */
+	public MappedFile(String pathname, int payloadSize) throws IOException {
+		channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ);
+		size = channel.size();
+		regionSize = Math.max(1, REGION_SIZE / payloadSize) * payloadSize;
+	}
+
+	/**
+	 * @param offset	offset of the slice in the file, a multiple of the payload size
+	 * @param length	length of the slice, at most the payload size
+	 * @return view of the bytes of the file, from position 0 to its limit
+	 * @throws IOException if the file can't be mapped
+	 */
+	public ByteBuffer slice(long offset, int length) throws IOException {
+		long start = offset / regionSize * regionSize;
+		if (start != regionStart) {
+			region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+			regionStart = start;
+		}
+		return region.slice((int) (offset - start), length);
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public void close() throws IOException {
+		region = null;
+		channel.close();
+	}
+}
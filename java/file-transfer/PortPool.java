@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+
+/**
+ * Data ports of a server, so concurrent transfers never get the same port. Ports are handed
+ * out in turn from a cursor, so a port just released is only used again after all others,
+ * once late datagrams of its previous transfer are long gone. A port taken by another process
+ * fails to bind and is skipped.
+ *
+ * @author aqd14
+ */
+public class PortPool {
+	// Ports tried for one socket before giving up
+	final static int MAX_BIND_ATTEMPTS = 100;
+
+	private final int from;
+	private final int to;
+	// Ports in use, port p at bit p - from
+	private final BitSet used;
+	private int next; // Next port to try
+	private int free;
+
+	/**
+	 * Constructor
+	 *
+	 * @param from	first port of the pool
+	 * @param to	last port of the pool
+	 * @param excluded	port never handed out, e.g. the negotiation port of the server
+	 */
+	public PortPool(int from, int to, int excluded) {
+		if (from > to) {
+			throw new IllegalArgumentException("Empty port range " + from + " - " + to);
+		}
+		this.from = from;
+		this.to = to;
+		this.next = from;
+		used = new BitSet(to - from + 1);
+		free = to - from + 1;
+		if (excluded >= from && excluded <= to) {
+			used.set(excluded - from);
+			free--;
+		}
+	}
+
+	/**
+	 * @return a port not handed out, marked used until {@link #release}
+	 * @throws IOException if every port is used
+	 */
+	public synchronized int acquire() throws IOException {
+		if (free == 0) {
+			throw new IOException("No free data port in " + from + " - " + to);
+		}
+		int bit = used.nextClearBit(next - from);
+		if (bit > to - from) {
+			bit = used.nextClearBit(0);
+		}
+		used.set(bit);
+		free--;
+		next = bit + 1 > to - from ? from : from + bit + 1;
+		return from + bit;
+	}
+
+	public synchronized void release(int port) {
+		if (port >= from && port <= to && used.get(port - from)) {
+			used.clear(port - from);
+			free++;
+		}
+	}
+
+	/**
+	 * @return a socket bound to a port of the pool, to give back with {@link #release} once closed
+	 * @throws IOException if no port could be bound
+	 */
+	public DatagramSocket bindSocket() throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			int port = acquire();
+			try {
+				return new DatagramSocket(port);
+			} catch (BindException e) {
+				release(port);
+				if (attempt == MAX_BIND_ATTEMPTS) {
+					throw e;
+				}
+			} catch (IOException e) {
+				release(port);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return a channel bound to a port of the pool, to give back with {@link #release} once closed
+	 * @throws IOException if no port could be bound
+	 */
+	public DatagramChannel bindChannel() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		for (int attempt = 1; ; attempt++) {
+			int port;
+			try {
+				port = acquire();
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			try {
+				channel.bind(new InetSocketAddress(port));
+				return channel;
+			} catch (BindException e) {
+				release(port);
+				if (attempt == MAX_BIND_ATTEMPTS) {
+					channel.close();
+					throw e;
+				}
+			} catch (IOException e) {
+				release(port);
+				channel.close();
+				throw e;
+			}
+		}
+	}
+
+	public synchronized int getFree() {
+		return free;
+	}
+
+	public synchronized int getUsed() {
+		return to - from + 1 - free;
+	}
+}
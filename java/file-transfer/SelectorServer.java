@@ -0,0 +1,813 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Usage: java SelectorServer <port-number> [output-directory] [selector-threads] [none|close|batch]
+ */
+
+/**
+ * <p>
+ * Long-running server handling many clients at once with the same protocol as {@link Server}:
+ * a client negotiates a port over TCP, then sends its file in numbered UDP packets to that port.
+ * </p>
+ *
+ * <p>
+ * Every negotiation and transfer is a non-blocking channel registered with one of a few selector
+ * threads. The first thread also accepts negotiations and serves sessions, where a client
+ * negotiates many files on one connection; each negotiated transfer is handed to the threads in
+ * turn and gets a port of a {@link PortPool}. Each transfer writes its own file output-&lt;id&gt;.txt,
+ * named after its {@link ChunkManifest} if it has one so it can be resumed, and holds a bounded
+ * amount of memory, see {@link TransferReceiver}; datagram buffers are shared by all transfers of a thread.
+ * Payloads are written by a {@link DiskWriter}, so selector threads never wait for the disk.
+ * </p>
+ *
+ * <p>
+ * The streams of a parallel transfer are transfers of their own, each receiving a range of the
+ * same output file, spread over the selector threads like any other transfer.
+ * </p>
+ *
+ * @author aqd14
+ */
+public class SelectorServer {
+	// Attributes
+	PrintWriter err = new PrintWriter(new OutputStreamWriter(System.err), true); 	// Print error messages to screen
+	PrintWriter ack = new PrintWriter(new OutputStreamWriter(System.out), true);  // Print acknowledge message to screen
+
+	// Close negotiations and transfers idle for this time (ms)
+	final static int NEGOTIATION_TIMEOUT = 10000;
+	final static int TRANSFER_TIMEOUT = 30000;
+	// Datagrams read from a transfer before serving the other ones
+	final static int MAX_DATAGRAMS_PER_SELECT = 64;
+	// Answers queued for a client not reading them: session results, and a port with its chunks held
+	final static int MAX_PENDING_ANSWERS = 256;
+	final static int MAX_ANSWER_SIZE = 8 * MAX_PENDING_ANSWERS + 4 * (1 + ChunkManifest.MAX_RANGES)
+			+ ChunkManifest.MAX_CHUNKS / 8;
+
+	// The character represents when client want to negotiate a port number with server
+	// Must be agreed from both sides
+	final char NEGOTIATION_CHAR = 259;
+	// The character opening a session, where the client negotiates many files on one connection
+	final char SESSION_CHAR = 260;
+	// The character of a negotiation followed by the manifest of the file
+	final char MANIFEST_CHAR = 261;
+	// The same, also asking to send chunks compressed
+	final char COMPRESSED_CHAR = 262;
+	// The character of a parallel transfer, followed by the streams asked (short),
+	// then by a negotiation with a manifest
+	final char PARALLEL_CHAR = 263;
+
+	// Range of possible generated ports from server side
+	final int from = 1024;
+	final int to = 65535;
+
+	private final int initialPort;
+	private final File directory;
+	private final EventLoop[] loops;
+	private final DiskWriter writer;
+	private final AtomicLong transfers = new AtomicLong();
+	private final PortPool ports;
+	// Reads the files of interrupted transfers, so selector threads never wait for the disk
+	private final ExecutorService verifier;
+
+	/**
+	 * Negotiation in progress on a TCP connection, served by the first selector thread.
+	 * In a session the connection stays open and carries the result of every transfer.
+	 */
+	private class Negotiation {
+		final SelectionKey key;
+		final ByteBuffer request = ByteBuffer.allocate(2);
+		// Manifest being read after its negotiation char, null otherwise
+		ByteBuffer manifest;
+		// Chunks of the manifest may be compressed
+		boolean compressed;
+		// Streams asked by a parallel negotiation, -1 while their count is read, 0 otherwise
+		int streams;
+		// Answers not sent yet, in write mode. Grows up to MAX_ANSWER_SIZE
+		ByteBuffer answers = ByteBuffer.allocate(64);
+		// Chunks of the manifest being verified, nothing is read meanwhile
+		boolean verifying;
+		boolean started;
+		boolean session;
+		boolean closeWhenSent;
+		int activeTransfers;
+		long lastActivity = System.currentTimeMillis();
+
+		Negotiation(SelectionKey key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Transfer in progress on a UDP channel
+	 */
+	private class Transfer {
+		final long id;
+		final int port;
+		final DatagramChannel channel;
+		final TransferReceiver receiver;
+		// Session to send the result to, null for a single negotiation
+		final Negotiation session;
+		// Streams of the same file, null unless parallel
+		final Streams streams;
+		long lastActivity = System.currentTimeMillis();
+		boolean complete; // Every packet is handed to the writer, reported once the file is written
+		boolean reported;
+
+		Transfer(long id, int port, DatagramChannel channel, TransferReceiver receiver, Negotiation session,
+				Streams streams) {
+			this.id = id;
+			this.port = port;
+			this.channel = channel;
+			this.receiver = receiver;
+			this.session = session;
+			this.streams = streams;
+		}
+	}
+
+	/**
+	 * Streams of a parallel transfer, reported to the session as one file once they all are.
+	 * Reported by the selector threads of the streams.
+	 */
+	private static class Streams {
+		int remaining;
+		long received;
+
+		Streams(int count) {
+			this.remaining = count;
+		}
+
+		/**
+		 * @param result	size received by a stream, -1 if it failed
+		 * @return size of the file once all streams are reported, -1 if one failed, -2 before
+		 */
+		synchronized long report(long result) {
+			received = result == -1 || received == -1 ? -1 : received + result;
+			return --remaining == 0 ? received : -2;
+		}
+	}
+
+	/**
+	 * Selector thread serving the channels registered with it
+	 */
+	private class EventLoop extends Thread {
+		private final Selector selector;
+		// Work handed by other threads: transfers to register, written files, results to send to sessions
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final byte[] buffer = new byte[TransferPacket.MAX_DATAGRAM_SIZE];
+		private final ByteBuffer received = ByteBuffer.wrap(buffer);
+		private final byte[] response = new byte[TransferPacket.MAX_DATAGRAM_SIZE];
+		private long lastSweep = System.currentTimeMillis();
+
+		EventLoop(int index) throws IOException {
+			super("selector-" + index);
+			selector = Selector.open();
+		}
+
+		void submit(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select(1000);
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(key);
+						} else if (key.attachment() instanceof Negotiation) {
+							negotiate(key);
+						} else {
+							receive(key);
+						}
+					}
+					if (System.currentTimeMillis() - lastSweep >= 1000) {
+						closeIdle();
+					}
+				} catch (IOException e) {
+					err.println("Selector failed: " + e.getMessage());
+				}
+			}
+		}
+
+		private void accept(SelectionKey key) throws IOException {
+			SocketChannel channel;
+			while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+				channel.configureBlocking(false);
+				SelectionKey negotiationKey = channel.register(selector, SelectionKey.OP_READ);
+				negotiationKey.attach(new Negotiation(negotiationKey));
+			}
+		}
+
+		/**
+		 * Read negotiation characters and answer each with the port of a new transfer.
+		 * A single negotiation is closed once answered, a session when the client closes it.
+		 */
+		private void negotiate(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Negotiation negotiation = (Negotiation) key.attachment();
+			negotiation.lastActivity = System.currentTimeMillis();
+			try {
+				if (key.isWritable()) {
+					flush(negotiation);
+				}
+				if (!key.isValid() || !key.isReadable() || negotiation.verifying) {
+					return;
+				}
+				ByteBuffer request = negotiation.manifest != null ? negotiation.manifest : negotiation.request;
+				if (channel.read(request) == -1) {
+					close(key);
+					return;
+				}
+				if (request.hasRemaining()) {
+					return;
+				}
+				if (negotiation.manifest != null) {
+					readManifest(negotiation);
+					return;
+				}
+				char c = negotiation.request.getChar(0);
+				negotiation.request.clear();
+				if (negotiation.streams == -1) {
+					negotiation.streams = Math.max(1, (int) c);
+					return;
+				}
+				// A parallel negotiation goes on with its manifest
+				boolean negotiating = negotiation.session || !negotiation.started || negotiation.streams > 0;
+				if (c == SESSION_CHAR && !negotiation.started) {
+					negotiation.session = true;
+				} else if (c == PARALLEL_CHAR && negotiating && negotiation.streams == 0) {
+					negotiation.streams = -1;
+				} else if (c == NEGOTIATION_CHAR && negotiating && negotiation.streams == 0) {
+					answerPort(negotiation, null, null);
+				} else if ((c == MANIFEST_CHAR || c == COMPRESSED_CHAR) && negotiating) {
+					negotiation.manifest = ByteBuffer.allocate(ChunkManifest.HEADER_SIZE);
+					negotiation.compressed = c == COMPRESSED_CHAR;
+				} else {
+					err.println("Negotiation char is not matched: " + c + " != " + NEGOTIATION_CHAR);
+					close(key);
+				}
+				negotiation.started = true;
+			} catch (IOException e) {
+				err.println("Negotiation failed: " + e.getMessage());
+				close(key);
+			}
+		}
+
+		/**
+		 * Read a manifest: its header, which tells its length, then its checksums. Once read,
+		 * the chunks held by the output file are verified by the verifier thread.
+		 */
+		private void readManifest(final Negotiation negotiation) throws IOException {
+			ByteBuffer buffer = negotiation.manifest;
+			if (buffer.capacity() == ChunkManifest.HEADER_SIZE) {
+				int length = ChunkManifest.getLength(buffer);
+				if (length > ChunkManifest.HEADER_SIZE) {
+					negotiation.manifest = ByteBuffer.allocate(length);
+					buffer.flip();
+					negotiation.manifest.put(buffer);
+					return;
+				}
+			}
+			negotiation.manifest = null;
+			final ChunkManifest manifest = ChunkManifest.read(
+					new DataInputStream(new ByteArrayInputStream(buffer.array())));
+			final String output = getOutput(manifest);
+			// Counted as a transfer, so the negotiation isn't closed as idle meanwhile
+			negotiation.verifying = true;
+			negotiation.activeTransfers++;
+			updateInterest(negotiation);
+			verifier.execute(new Runnable() {
+				@Override
+				public void run() {
+					BitSet held;
+					try {
+						held = manifest.verify(output);
+					} catch (IOException e) {
+						err.println("IOException occurred when verifying " + output + ": " + e.getMessage());
+						held = new BitSet();
+					}
+					final BitSet chunks = held;
+					loops[0].submit(new Runnable() {
+						@Override
+						public void run() {
+							loops[0].verified(negotiation, manifest, chunks);
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * Answer a manifest once its chunks held are known
+		 */
+		private void verified(Negotiation negotiation, ChunkManifest manifest, BitSet held) {
+			negotiation.verifying = false;
+			negotiation.activeTransfers--;
+			if (!negotiation.key.isValid()) {
+				return;
+			}
+			try {
+				if (negotiation.streams > 0) {
+					answerPorts(negotiation, manifest, held);
+				} else {
+					answerPort(negotiation, manifest, held);
+				}
+			} catch (IOException e) {
+				err.println("Negotiation failed: " + e.getMessage());
+				close(negotiation.key);
+			}
+		}
+
+		/**
+		 * Open a transfer and answer with its port, -1 if it couldn't be opened. With a manifest,
+		 * the port is followed by the chunks held.
+		 */
+		private void answerPort(Negotiation negotiation, ChunkManifest manifest, BitSet held) throws IOException {
+			int port;
+			try {
+				port = openTransfer(negotiation.session ? negotiation : null, manifest, held,
+						manifest != null && negotiation.compressed);
+			} catch (IOException e) {
+				err.println("Cannot open transfer: " + e.getMessage());
+				port = -1;
+			}
+			byte[] chunks = port != -1 && manifest != null ? manifest.toBytes(held) : new byte[0];
+			// Negotiation stage finished. Close connection once answered!
+			negotiation.closeWhenSent = !negotiation.session || port == -1;
+			reserve(negotiation, 4 + chunks.length);
+			negotiation.answers.putInt(port).put(chunks);
+			flush(negotiation);
+		}
+
+		/**
+		 * Open the streams of a parallel transfer and answer with their number, 0 if none could be
+		 * opened, then their ports and the chunks held
+		 */
+		private void answerPorts(Negotiation negotiation, ChunkManifest manifest, BitSet held) throws IOException {
+			int[] streams;
+			try {
+				streams = openStreams(negotiation.session ? negotiation : null, manifest, held,
+						negotiation.compressed, manifest.getRangeCount(negotiation.streams));
+			} catch (IOException e) {
+				err.println("Cannot open transfer: " + e.getMessage());
+				streams = new int[0];
+			}
+			negotiation.streams = 0;
+			byte[] chunks = streams.length > 0 ? manifest.toBytes(held) : new byte[0];
+			// Negotiation stage finished. Close connection once answered!
+			negotiation.closeWhenSent = !negotiation.session || streams.length == 0;
+			reserve(negotiation, 4 * (1 + streams.length) + chunks.length);
+			negotiation.answers.putInt(streams.length);
+			for (int port : streams) {
+				negotiation.answers.putInt(port);
+			}
+			negotiation.answers.put(chunks);
+			flush(negotiation);
+		}
+
+		/**
+		 * Make room for an answer
+		 *
+		 * @throws IOException if the client doesn't read its answers
+		 */
+		private void reserve(Negotiation negotiation, int length) throws IOException {
+			if (negotiation.answers.remaining() >= length) {
+				return;
+			}
+			int needed = negotiation.answers.position() + length;
+			if (needed > MAX_ANSWER_SIZE) {
+				throw new IOException("client does not read its answers");
+			}
+			ByteBuffer answers = ByteBuffer.allocate(Math.min(MAX_ANSWER_SIZE,
+					Math.max(needed, 2 * negotiation.answers.capacity())));
+			negotiation.answers.flip();
+			answers.put(negotiation.answers);
+			negotiation.answers = answers;
+		}
+
+		/**
+		 * Send the answers queued for a client, waiting for the channel to be writable if needed
+		 */
+		private void flush(Negotiation negotiation) throws IOException {
+			negotiation.answers.flip();
+			((SocketChannel) negotiation.key.channel()).write(negotiation.answers);
+			negotiation.answers.compact();
+			if (negotiation.answers.position() == 0 && negotiation.closeWhenSent) {
+				close(negotiation.key);
+			} else {
+				updateInterest(negotiation);
+			}
+		}
+
+		private void updateInterest(Negotiation negotiation) {
+			int ops = negotiation.verifying ? 0 : SelectionKey.OP_READ;
+			if (negotiation.answers.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			negotiation.key.interestOps(ops);
+		}
+
+		/**
+		 * Send the result of a transfer to its session: size of the received file, -1 if it failed.
+		 * Called by the first selector thread, which serves the sessions.
+		 */
+		private void answer(Negotiation session, long result) {
+			session.activeTransfers--;
+			if (!session.key.isValid()) {
+				return;
+			}
+			try {
+				reserve(session, 8);
+				session.answers.putLong(result);
+				flush(session);
+			} catch (IOException e) {
+				err.println("Session failed: " + e.getMessage());
+				close(session.key);
+			}
+		}
+
+		/**
+		 * Read the datagrams waiting on a transfer's channel and acknowledge them
+		 */
+		private void receive(SelectionKey key) {
+			Transfer transfer = (Transfer) key.attachment();
+			try {
+				for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++) {
+					received.clear();
+					SocketAddress client = transfer.channel.receive(received);
+					if (client == null) {
+						break;
+					}
+					transfer.lastActivity = System.currentTimeMillis();
+					int length = transfer.receiver.receive(buffer, received.position(), response);
+					// A full socket buffer drops the acknowledgement, the client resends the packet
+					if (length > 0) {
+						transfer.channel.send(ByteBuffer.wrap(response, 0, length), client);
+					}
+				}
+				if (transfer.receiver.isComplete() && !transfer.complete) {
+					transfer.complete = true;
+					reportWhenWritten(transfer);
+				}
+			} catch (IOException e) {
+				err.println("Transfer " + transfer.id + " failed: " + e.getMessage());
+				close(key);
+			}
+		}
+
+		/**
+		 * Close negotiations and transfers whose client is gone. A complete transfer is kept
+		 * while the client resends packets whose acknowledgement was lost.
+		 */
+		private void closeIdle() {
+			long now = System.currentTimeMillis();
+			lastSweep = now;
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof Negotiation) {
+					// A session waits for the result of its transfer
+					Negotiation negotiation = (Negotiation) attachment;
+					if (negotiation.activeTransfers == 0 && now - negotiation.lastActivity >= NEGOTIATION_TIMEOUT) {
+						close(key);
+					}
+				} else if (attachment instanceof Transfer) {
+					Transfer transfer = (Transfer) attachment;
+					if (transfer.receiver.isComplete() && now - transfer.lastActivity >= Server.LINGER_TIMEOUT) {
+						close(key);
+					} else if (now - transfer.lastActivity >= TRANSFER_TIMEOUT) {
+						err.println("Transfer " + transfer.id + " timed out after " + transfer.receiver.getBytes()
+								+ " bytes. Closing " + transfer.receiver.getOutput());
+						close(key);
+					}
+				}
+			}
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				err.println("IOException occurred when closing channel!");
+			}
+			if (key.attachment() instanceof Transfer) {
+				Transfer transfer = (Transfer) key.attachment();
+				transfer.receiver.close();
+				ports.release(transfer.port);
+				if (!transfer.complete) {
+					report(transfer, -1);
+				}
+			}
+		}
+
+		/**
+		 * Report a transfer whose output file is closed: its size, -1 if the file couldn't be written
+		 */
+		private void written(Transfer transfer) {
+			TransferReceiver receiver = transfer.receiver;
+			IOException failure = receiver.getWriteFailure();
+			if (failure != null) {
+				err.println("Transfer " + transfer.id + " failed writing " + receiver.getOutput() + ": "
+						+ failure.getMessage());
+				report(transfer, -1);
+				return;
+			}
+			String compression = receiver.getCompressionReport();
+			ack.println("Transfer " + transfer.id + " received " + receiver.getBytes() + " bytes in "
+					+ receiver.getElapsedTime() + " ms to " + receiver.getOutput()
+					+ (receiver.getHeldBytes() > 0 ? ", " + receiver.getHeldBytes() + " held" : "")
+					+ (compression.isEmpty() ? "" : ", " + compression));
+			report(transfer, receiver.getHeldBytes() + receiver.getBytes());
+		}
+	}
+
+	/**
+	 * Report a complete transfer once its output file is written and closed, which for a parallel
+	 * transfer is once every stream closed it. The writer thread hands the file back to the selector
+	 * thread of the transfer, so no selector thread waits for the disk.
+	 */
+	private void reportWhenWritten(final Transfer transfer) {
+		final EventLoop loop = getLoop(transfer);
+		transfer.receiver.whenWritten(new Runnable() {
+			@Override
+			public void run() {
+				loop.submit(new Runnable() {
+					@Override
+					public void run() {
+						loop.written(transfer);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Send the result of a transfer to its session, once. The streams of a parallel transfer
+	 * send the result of the file once they all ended.
+	 */
+	private void report(Transfer transfer, long result) {
+		if (transfer.reported) {
+			return;
+		}
+		transfer.reported = true;
+		if (transfer.streams != null) {
+			result = transfer.streams.report(result);
+			if (result == -2) {
+				return;
+			}
+		}
+		final Negotiation session = transfer.session;
+		final long fileResult = result;
+		if (session != null) {
+			loops[0].submit(new Runnable() {
+				@Override
+				public void run() {
+					loops[0].answer(session, fileResult);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param initialPort	port of the negotiations
+	 * @param directory		directory of the received files
+	 * @param threads		selector threads
+	 * @param syncPolicy	when received files are forced to the disk
+	 * @throws IOException
+	 */
+	public SelectorServer(int initialPort, String directory, int threads, DiskWriter.SyncPolicy syncPolicy)
+			throws IOException {
+		this.initialPort = initialPort;
+		this.ports = new PortPool(from, to, initialPort);
+		this.verifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "chunk-verifier");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.writer = new DiskWriter(syncPolicy);
+		this.directory = new File(directory);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Cannot create output directory " + directory);
+		}
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Accept negotiations on the initial port and serve transfers until the process is stopped
+	 *
+	 * @throws IOException if the initial port can't be bound
+	 */
+	public void start() throws IOException {
+		ServerSocketChannel ss = ServerSocketChannel.open();
+		ss.bind(new InetSocketAddress(initialPort), 1024);
+		ss.configureBlocking(false);
+		ss.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		writer.start();
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		ack.println("Listening on port " + initialPort + " with " + loops.length + " selector threads");
+	}
+
+	/**
+	 * Bind a UDP channel to a free port of the pool and hand the transfer to the next selector thread.
+	 * Called by the first selector thread.
+	 *
+	 * @param session	session to send the result to, null for a single negotiation
+	 * @param manifest	manifest of the file, null if the client sent none
+	 * @param held		chunks of the manifest already in the output file
+	 * @param compressed	chunks may be compressed
+	 * @return port of the transfer
+	 * @throws IOException if no port could be bound
+	 */
+	private int openTransfer(Negotiation session, ChunkManifest manifest, BitSet held, boolean compressed)
+			throws IOException {
+		long id = transfers.incrementAndGet();
+		DatagramChannel channel = bindChannel();
+		int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		TransferReceiver receiver;
+		try {
+			String output = manifest != null ? getOutput(manifest)
+					: new File(directory, "output-" + id + ".txt").getPath();
+			receiver = new TransferReceiver(output, writer, manifest, held, compressed);
+		} catch (IOException e) {
+			channel.close();
+			ports.release(port);
+			throw e;
+		}
+		if (session != null) {
+			session.activeTransfers++;
+		}
+		startTransfer(new Transfer(id, port, channel, receiver, session, null));
+		if (manifest != null && !held.isEmpty()) {
+			ack.println("Transfer " + id + " resumes " + receiver.getOutput() + ": " + held.cardinality() + " of "
+					+ manifest.getChunkCount() + " chunks held");
+		}
+		return port;
+	}
+
+	/**
+	 * Bind a UDP channel per stream of a parallel transfer, as many as there are ports, and hand
+	 * every stream to the selector threads in turn. Called by the first selector thread.
+	 *
+	 * @param session	session to send the result of the file to, null for a single negotiation
+	 * @param manifest	manifest of the file, split in a range per stream
+	 * @param held		chunks of the manifest already in the output file
+	 * @param compressed	chunks may be compressed
+	 * @param count		streams asked
+	 * @return ports of the streams
+	 * @throws IOException if no port could be bound or the output file can't be opened
+	 */
+	private int[] openStreams(Negotiation session, ChunkManifest manifest, BitSet held, boolean compressed, int count)
+			throws IOException {
+		List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+		try {
+			while (channels.size() < count) {
+				channels.add(bindChannel());
+			}
+		} catch (IOException e) {
+			if (channels.isEmpty()) {
+				throw e;
+			}
+		}
+		int[] streamPorts = new int[channels.size()];
+		for (int i = 0; i < streamPorts.length; i++) {
+			streamPorts[i] = ((InetSocketAddress) channels.get(i).getLocalAddress()).getPort();
+		}
+		String output = getOutput(manifest);
+		DiskWriter.Target target;
+		try {
+			target = writer.open(output, manifest.getSize(), streamPorts.length);
+		} catch (IOException e) {
+			for (int i = 0; i < streamPorts.length; i++) {
+				channels.get(i).close();
+				ports.release(streamPorts[i]);
+			}
+			throw e;
+		}
+		if (session != null) {
+			session.activeTransfers++;
+		}
+		Streams streams = new Streams(streamPorts.length);
+		for (int i = 0; i < streamPorts.length; i++) {
+			int from = manifest.getRangeStart(i, streamPorts.length);
+			int to = manifest.getRangeStart(i + 1, streamPorts.length);
+			TransferReceiver receiver = new TransferReceiver(target, writer, manifest.getRange(from, to),
+					held.get(from, to), compressed);
+			startTransfer(new Transfer(transfers.incrementAndGet(), streamPorts[i], channels.get(i), receiver, session,
+					streams));
+		}
+		ack.println("Receiving " + output + " over " + streamPorts.length + " streams"
+				+ (held.isEmpty() ? "" : ", " + held.cardinality() + " of " + manifest.getChunkCount() + " chunks held"));
+		return streamPorts;
+	}
+
+	/**
+	 * @return a non-blocking channel bound to a free port of the pool
+	 * @throws IOException if no port could be bound
+	 */
+	private DatagramChannel bindChannel() throws IOException {
+		DatagramChannel channel = ports.bindChannel();
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, TransferPacket.SOCKET_BUFFER_SIZE);
+		} catch (IOException e) {
+			ports.release(((InetSocketAddress) channel.getLocalAddress()).getPort());
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Hand a transfer to the next selector thread
+	 */
+	private void startTransfer(final Transfer transfer) {
+		final EventLoop loop = getLoop(transfer);
+		loop.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					transfer.channel.register(loop.selector, SelectionKey.OP_READ, transfer);
+				} catch (IOException e) {
+					err.println("Transfer " + transfer.id + " failed: " + e.getMessage());
+					transfer.receiver.close();
+					ports.release(transfer.port);
+					report(transfer, -1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return selector thread serving a transfer
+	 */
+	private EventLoop getLoop(Transfer transfer) {
+		return loops[(int) (transfer.id % loops.length)];
+	}
+
+	/**
+	 * @return output file of a transfer with a manifest: the same file gets the same name,
+	 * so a new transfer resumes an interrupted one
+	 */
+	private String getOutput(ChunkManifest manifest) {
+		return new File(directory, "output-" + manifest.getId() + ".txt").getPath();
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args == null || args.length < 1) {
+			throw new RuntimeException("Must specify port number to start server!\nUsage: java SelectorServer <port> [output-directory] [selector-threads] [none|close|batch]");
+		}
+		String directory = args.length > 1 ? args[1] : ".";
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		DiskWriter.SyncPolicy syncPolicy = args.length > 3 ? DiskWriter.SyncPolicy.valueOf(args[3].toUpperCase())
+				: DiskWriter.SyncPolicy.CLOSE;
+		new SelectorServer(Integer.parseInt(args[0]), directory, threads, syncPolicy).start();
+	}
+}
@@ -1,19 +1,29 @@
-import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileWriter;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Random;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Usage: java Server <port-number>
+ * Usage: java Server <port-number> [single|threads|virtual] [output-directory] [none|close|batch]
  */
 
 /**
@@ -24,10 +34,38 @@ import java.util.Random;
  * </p>
  * 
  * <p>
- * Server after receive opening request from client will generate a random port
- * number from 1024 to 65535 and send back to the client. An UDP connection will
- * be established using this port. The actual file will be sent through UDP
- * connection when buffer's size is 4.
+ * Server after receive opening request from client will pick a free port
+ * number from 1024 to 65535 and send back to the client, see {@link PortPool}.
+ * An UDP connection will be established using this port. The actual file will
+ * be sent through UDP connection in numbered packets, see {@link TransferPacket}.
+ * A client with many files opens a session instead and negotiates a port per
+ * file on the same connection.
+ * </p>
+ * 
+ * <p>
+ * A client may describe its file with a {@link ChunkManifest}. The server then
+ * answers with the chunks its output file already holds from an interrupted
+ * transfer, and the client only sends the others. It may also send its
+ * chunks compressed, see {@link ChunkCompressor}.
+ * </p>
+ * 
+ * <p>
+ * A client may also split a large file in ranges of chunks and send them at once over
+ * parallel streams. The server answers with a port per stream and receives every range
+ * on its own thread, writing it at its position in the same output file.
+ * </p>
+ * 
+ * <p>
+ * By default the server receives a single file to output.txt then exits. In the
+ * threads and virtual modes it keeps accepting negotiations and receives every
+ * file on its own thread, a platform or a virtual thread, to output-&lt;id&gt;.txt.
+ * Receive buffers start at the size of a default packet, so a slow transfer only
+ * holds a few kilobytes besides its thread.
+ * </p>
+ * 
+ * <p>
+ * Payloads are written to disk by a {@link DiskWriter} shared by all transfers,
+ * the last argument sets when files are forced to the disk.
  * </p>
  * 
  * @author aqd14
@@ -38,11 +76,33 @@ public class Server extends Thread {
 	PrintWriter err = new PrintWriter(new OutputStreamWriter(System.err), true); 	// Print error messages to screen
 	PrintWriter ack = new PrintWriter(new OutputStreamWriter(System.out), true);  // Print acknowledge message to screen
 	
+	/**
+	 * How transfers are run: a single one on the server thread,
+	 * or every one on its own platform or virtual thread
+	 */
+	enum Mode {
+		SINGLE, THREADS, VIRTUAL
+	}
+	
 	private int initialPort;
-	private int port;
+	private Mode mode = Mode.SINGLE;
+	private File directory = new File(".");
+	// Runs the transfers, unless in single mode
+	private ExecutorService transfers;
+	private DiskWriter.SyncPolicy syncPolicy = DiskWriter.SyncPolicy.CLOSE;
+	private DiskWriter writer;
+	private final AtomicLong transferIds = new AtomicLong();
+	private PortPool ports;
 	
-	// Packet's size
-    final static int PACKET_SIZE = 4;
+	// Keep acknowledging retransmissions for this time (ms) after the last packet,
+	// in case the client missed the last acknowledgements
+	final static int LINGER_TIMEOUT = 1000;
+	// Give up a transfer after this time (ms) without any packet
+	final static int TRANSFER_TIMEOUT = 30000;
+	// Receive buffers hold a default packet, they grow when a larger one is received
+	final static int INITIAL_BUFFER_SIZE = TransferPacket.HEADER_SIZE + TransferPacket.DEFAULT_PAYLOAD_SIZE + 1;
+	// Stack of platform threads running transfers
+	final static long TRANSFER_STACK_SIZE = 256 << 10;
 	
 	// Default file name received from client
 	// Received file will be written at the current working directory
@@ -51,6 +111,15 @@ public class Server extends Thread {
 	// The character represents when client want to negotiate a port number with server
 	// Must be agreed from both sides
 	final char NEGOTIATION_CHAR = 259;
+	// The character opening a session, where the client negotiates many files on one connection
+	final char SESSION_CHAR = 260;
+	// The character of a negotiation followed by the manifest of the file
+	final char MANIFEST_CHAR = 261;
+	// The same, also asking to send chunks compressed
+	final char COMPRESSED_CHAR = 262;
+	// The character of a parallel transfer, followed by the streams asked (short),
+	// then by a negotiation with a manifest
+	final char PARALLEL_CHAR = 263;
 	
 	// Range of possible generated ports from server side
 	final int from = 1024; 
@@ -66,109 +135,506 @@ public class Server extends Thread {
 			return;
 		}
 		this.initialPort = Integer.parseInt(initialPort);
+		this.ports = new PortPool(from, to, this.initialPort);
 	}
 	
 	/**
-	 * Negotiate port number with connecting client over TCP connection
+	 * Constructor
 	 * 
+	 * @param mode		how transfers are run
+	 * @param directory	directory of the received files, unless in single mode
+	 * @param syncPolicy	when received files are forced to the disk
+	 */
+	public Server(String initialPort, Mode mode, String directory, DiskWriter.SyncPolicy syncPolicy) {
+		this(initialPort);
+		this.mode = mode;
+		this.directory = new File(directory);
+		this.syncPolicy = syncPolicy;
+		if (mode != Mode.SINGLE) {
+			transfers = newTransferExecutor(mode);
+		}
+	}
+	
+	/**
+	 * @return {@code true} if the JVM has virtual threads
+	 */
+	static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return an executor running every transfer on a new thread. Virtual threads are looked up by
+	 * reflection so the server still builds on older JDKs, which use platform threads instead.
+	 */
+	static ExecutorService newTransferExecutor(Mode mode) {
+		if (mode == Mode.VIRTUAL && hasVirtualThreads()) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Cannot create virtual threads", e);
+			}
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(null, r, "transfer", TRANSFER_STACK_SIZE);
+			}
+		});
+	}
+	
+	/**
+	 * Negotiate port number with connecting client over TCP connection. The UDP socket
+	 * is bound before its port is sent, so the client never gets a port already in use.
+	 * The port is -1 when the pool has none left.
+	 * 
+	 * @param out	stream to the client
+	 * @return socket of the transfer, {@code null} if there is no free port
 	 * @throws IOException
 	 */
-	private void negotiate() {
-	    try {
-    		ServerSocket ss = new ServerSocket(initialPort);
-    //		ss.setReuseAddress(true);
-    //		ss.bind(new InetSocketAddress("localhost", Integer.parseInt(port)));
-    		
-    		Socket socket = ss.accept();
-    		// Establish data input/output streams
-    		DataInputStream dis = new DataInputStream(socket.getInputStream());
-    		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-    		
-    		char c = dis.readChar();
-    		// Client want to negotiate a port number
-    		// Generate a random port within the defined range then send back to client
-    		if (c == NEGOTIATION_CHAR) {
-    			this.port = generateRandomNumer(from, to);
-    			out.writeInt(this.port);
-    			ack.println("Negotiation detected. Please select the random port " + this.port);
-    			// Close connection
-    			ss.close();
-    		} else {
-    			err.println("Negotiation char is not matched: " + c + " != " + NEGOTIATION_CHAR);
-    		}
-	    } catch (IOException e) {
-	        err.println(e.getStackTrace());
-	    }
+	private DatagramSocket negotiate(DataOutputStream out) throws IOException {
+		DatagramSocket ds;
+		try {
+			ds = ports.bindSocket();
+		} catch (IOException e) {
+			err.println(e.getMessage());
+			out.writeInt(-1);
+			return null;
+		}
+		out.writeInt(ds.getLocalPort());
+		if (mode == Mode.SINGLE) {
+			ack.println("Negotiation detected. Please select the random port " + ds.getLocalPort());
+		}
+		return ds;
 	}
 	
 	public void run() {
-	   negotiate();
-	   receiveFile();
+		writer = new DiskWriter(syncPolicy);
+		writer.start();
+		try {
+			ServerSocket ss = new ServerSocket(initialPort, 1024);
+			if (mode == Mode.SINGLE) {
+				Socket socket = ss.accept();
+				ss.close();
+				serve(socket);
+				return;
+			}
+			ack.println("Listening on port " + initialPort + ", transfers on "
+					+ (mode == Mode.VIRTUAL && hasVirtualThreads() ? "virtual" : "platform") + " threads");
+			// Keep accepting while transfers run
+			while (true) {
+				final Socket socket = ss.accept();
+				transfers.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			}
+		} catch (IOException e) {
+			err.println("IOException occurred when creating socket: " + e.getMessage());
+		}
 	}
 	
 	/**
-	 * Establish a UDP connection to client with agreed port number.
-	 * Receive 4-byte packets from client and write received contents to file.
-	 * Send back the received content to client with upper-case representation.
+	 * Serve a client connection: a single negotiation then its transfer, or a session where
+	 * the client negotiates one file after the other. In a session the server answers every
+	 * file with the size of the received file, -1 if the transfer failed.
 	 */
-	private void receiveFile() {
-        try {
-            // Server's socket;
-            DatagramSocket ds = new DatagramSocket(port);
-            // Ready to receive packets from client
-            BufferedWriter bw = new BufferedWriter(new FileWriter(DEFAULT_OUTPUT));
-            int length = 0;
-            do {
-                byte[] buffer = new byte[PACKET_SIZE]; // Each packet contains 4 characters. 1 byte per character
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                ds.receive(packet);
-                
-                // Might not be equal to buffer's length (i.e, some last remaining characters)
-                length = packet.getLength();
-                // Write received packet to file on the server side
-                // The actual received data might not equal to whole buffer capacity
-                bw.write(new String(packet.getData(), 0, length));
-                
-                // Convert received characters to upper-case,
-                // decode to bytes then send back to client
-                buffer = generateResponse(buffer).getBytes();
-                InetAddress clientAdd = packet.getAddress();
-                int clientPort = packet.getPort();
-                packet = new DatagramPacket(buffer, length, clientAdd, clientPort);
-                ds.send(packet);
-            } while (length == PACKET_SIZE);
-            // Close connection
-            bw.close();
-            ds.close();
-        } catch (IOException e) {
-            err.println("IOException occurred when creating socket!");
-        }
+	private void serve(Socket socket) {
+		try {
+			// Establish data input/output streams
+			DataInputStream dis = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			
+			char c = dis.readChar();
+			// Client want to negotiate a port number
+			if (c == NEGOTIATION_CHAR || c == MANIFEST_CHAR || c == COMPRESSED_CHAR) {
+				awaitWritten(transfer(c, dis, out, socket));
+			} else if (c == PARALLEL_CHAR) {
+				awaitWritten(transferRanges(dis, out, socket));
+			} else if (c == SESSION_CHAR) {
+				// One file per negotiation, until the client closes the session
+				while ((c = readRequest(dis)) == NEGOTIATION_CHAR || c == MANIFEST_CHAR || c == COMPRESSED_CHAR
+						|| c == PARALLEL_CHAR) {
+					long received;
+					if (c == PARALLEL_CHAR) {
+						TransferReceiver[] receivers = transferRanges(dis, out, null);
+						if (receivers == null) {
+							break;
+						}
+						received = awaitWritten(receivers);
+					} else {
+						TransferReceiver receiver = transfer(c, dis, out, null);
+						if (receiver == null) {
+							break;
+						}
+						received = awaitWritten(receiver);
+					}
+					out.writeLong(received);
+				}
+				socket.close();
+			} else {
+				err.println("Negotiation char is not matched: " + c + " != " + NEGOTIATION_CHAR);
+				socket.close();
+			}
+		} catch (IOException e) {
+			err.println("Negotiation failed: " + e.getMessage());
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// Already failed
+			}
+		}
 	}
 	
 	/**
-	 * Convert received bytes data to the upper-case string representation
-	 * @param data
-	 * @return
+	 * @return the next negotiation char of a session, 0 once the client is done
 	 */
-	private String generateResponse(byte[] data) {
-	    return new String(data).toUpperCase();
+	private char readRequest(DataInputStream dis) throws IOException {
+		try {
+			return dis.readChar();
+		} catch (EOFException e) {
+			return 0;
+		}
 	}
 	
 	/**
-	 * Randomly generate a random number within a given range.
+	 * Negotiate the port of a file, then receive it. With a manifest, the server also answers
+	 * with the chunks of the output file it already holds.
 	 * 
-	 * @param from	starting number
-	 * @param to	ending number
-	 * @return 		a random number within range
+	 * @param request	negotiation char, {@link #MANIFEST_CHAR} or {@link #COMPRESSED_CHAR}
+	 * 					if a manifest follows
+	 * @param socket	connection to close once negotiated, {@code null} in a session
+	 * @return receiver of the transfer, {@code null} if the negotiation failed
+	 * @throws IOException if the negotiation connection failed
 	 */
-	private int generateRandomNumer(int min, int max) {
-		if (min >= max) {
-			throw new IllegalArgumentException("max must be greater than min");
+	private TransferReceiver transfer(char request, DataInputStream dis, DataOutputStream out, Socket socket)
+			throws IOException {
+		ChunkManifest manifest = request == MANIFEST_CHAR || request == COMPRESSED_CHAR
+				? ChunkManifest.read(dis) : null;
+		String output = getOutput(manifest, socket);
+		BitSet held = manifest != null ? verify(manifest, output) : null;
+		
+		DatagramSocket ds = negotiate(out);
+		if (ds != null && manifest != null) {
+			out.write(manifest.toBytes(held));
 		}
-
-		Random r = new Random();
-		return r.nextInt((max - min) + 1) + min;
+		if (socket != null) {
+			// Negotiation stage finished. Close connection!
+			socket.close();
+		}
+		if (ds == null) {
+			return null;
+		}
+		if (manifest != null && !held.isEmpty()) {
+			ack.println("Resuming " + output + ": " + held.cardinality() + " of " + manifest.getChunkCount()
+					+ " chunks held");
+		}
+		// In a session the client learns the end of the transfer from the server, no need to linger
+		return receiveFile(ds, output, manifest, held, request == COMPRESSED_CHAR, socket != null);
+	}
+	
+	/**
+	 * Negotiate the ports of a parallel transfer, then receive its ranges at once. The server
+	 * answers with the number of streams, as many as asked if it has the ports, 0 otherwise,
+	 * then their ports and the chunks held, see {@link ChunkManifest#getRange}.
+	 * 
+	 * @param socket	connection to close once negotiated, {@code null} in a session
+	 * @return receivers of the ranges, {@code null} if the negotiation failed
+	 * @throws IOException if the negotiation connection failed
+	 */
+	private TransferReceiver[] transferRanges(DataInputStream dis, DataOutputStream out, Socket socket)
+			throws IOException {
+		int asked = dis.readUnsignedShort();
+		char request = dis.readChar();
+		if (request != MANIFEST_CHAR && request != COMPRESSED_CHAR) {
+			throw new IOException("Parallel transfer without manifest: " + (int) request);
+		}
+		final ChunkManifest manifest = ChunkManifest.read(dis);
+		String output = getOutput(manifest, socket);
+		BitSet held = verify(manifest, output);
+		
+		// As many streams as there are ports, the first one at least
+		List<DatagramSocket> sockets = new ArrayList<DatagramSocket>();
+		try {
+			while (sockets.size() < manifest.getRangeCount(asked)) {
+				sockets.add(ports.bindSocket());
+			}
+		} catch (IOException e) {
+			err.println(e.getMessage());
+		}
+		TransferReceiver[] receivers = null;
+		if (!sockets.isEmpty()) {
+			try {
+				DiskWriter.Target target = writer.open(output, manifest.getSize(), sockets.size());
+				receivers = new TransferReceiver[sockets.size()];
+				for (int i = 0; i < receivers.length; i++) {
+					int from = manifest.getRangeStart(i, receivers.length);
+					int to = manifest.getRangeStart(i + 1, receivers.length);
+					receivers[i] = new TransferReceiver(target, writer, manifest.getRange(from, to), held.get(from, to),
+							request == COMPRESSED_CHAR);
+				}
+			} catch (IOException e) {
+				err.println("IOException occurred when receiving " + output + ": " + e.getMessage());
+				receivers = null;
+			}
+		}
+		if (receivers == null) {
+			for (DatagramSocket ds : sockets) {
+				// The port is unknown once closed
+				int port = ds.getLocalPort();
+				ds.close();
+				ports.release(port);
+			}
+			out.writeInt(0);
+			if (socket != null) {
+				socket.close();
+			}
+			return null;
+		}
+		out.writeInt(sockets.size());
+		for (DatagramSocket ds : sockets) {
+			out.writeInt(ds.getLocalPort());
+		}
+		out.write(manifest.toBytes(held));
+		if (socket != null) {
+			// Negotiation stage finished. Close connection!
+			socket.close();
+		}
+		if (mode == Mode.SINGLE) {
+			ack.println("Parallel negotiation detected. Receiving " + receivers.length + " ranges");
+		}
+		if (!held.isEmpty()) {
+			ack.println("Resuming " + output + ": " + held.cardinality() + " of " + manifest.getChunkCount()
+					+ " chunks held");
+		}
+		
+		// Every range on its own thread, the first one on this thread
+		ExecutorService executor = transfers != null ? transfers : newTransferExecutor(Mode.THREADS);
+		List<Future<?>> streams = new ArrayList<Future<?>>();
+		final boolean linger = socket != null;
+		for (int i = 1; i < receivers.length; i++) {
+			final DatagramSocket ds = sockets.get(i);
+			final TransferReceiver receiver = receivers[i];
+			streams.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					receive(ds, receiver, linger);
+					return null;
+				}
+			}));
+		}
+		receive(sockets.get(0), receivers[0], linger);
+		for (Future<?> stream : streams) {
+			try {
+				stream.get();
+			} catch (InterruptedException e) {
+				err.println("Interrupted while receiving " + output);
+			} catch (ExecutionException e) {
+				err.println("Receiving " + output + " failed: " + e.getCause());
+			}
+		}
+		if (executor != transfers) {
+			executor.shutdown();
+		}
+		return receivers;
 	}
+	
+	/**
+	 * @param manifest	manifest of the file, {@code null} if the client sent none
+	 * @param socket	connection of a single negotiation, {@code null} in a session
+	 * @return output file of a transfer
+	 */
+	private String getOutput(ChunkManifest manifest, Socket socket) {
+		if (socket != null && mode == Mode.SINGLE) {
+			return DEFAULT_OUTPUT;
+		} else if (manifest != null) {
+			// The same file gets the same name, so a new transfer resumes an interrupted one
+			return new File(directory, "output-" + manifest.getId() + ".txt").getPath();
+		}
+		return nextOutput();
+	}
+	
+	/**
+	 * @return chunks of the manifest held by the output file, none if it can't be read
+	 */
+	private BitSet verify(ChunkManifest manifest, String output) {
+		try {
+			return manifest.verify(output);
+		} catch (IOException e) {
+			err.println("IOException occurred when verifying " + output + ": " + e.getMessage());
+			return new BitSet();
+		}
+	}
+	
+	private String nextOutput() {
+		return new File(directory, "output-" + transferIds.incrementAndGet() + ".txt").getPath();
+	}
+	
+	/**
+	 * Wait until a received file is on the disk and report it
+	 * 
+	 * @param receiver	receiver of the transfer, {@code null} if it couldn't start
+	 * @return size of the received file, -1 if the transfer failed
+	 */
+	private long awaitWritten(TransferReceiver receiver) {
+		if (receiver == null || !receiver.isComplete()) {
+			return -1;
+		}
+		try {
+			receiver.awaitWritten();
+		} catch (IOException e) {
+			err.println("IOException occurred when writing " + receiver.getOutput() + ": " + e.getMessage());
+			return -1;
+		} catch (InterruptedException e) {
+			err.println("Interrupted while writing " + receiver.getOutput());
+			return -1;
+		}
+		String compression = receiver.getCompressionReport();
+		if (mode != Mode.SINGLE || !compression.isEmpty()) {
+			ack.println("Received " + receiver.getBytes() + " bytes in " + receiver.getElapsedTime() + " ms to "
+					+ receiver.getOutput() + (receiver.getHeldBytes() > 0 ? ", " + receiver.getHeldBytes() + " held" : "")
+					+ (compression.isEmpty() ? "" : ", " + compression));
+		}
+		return receiver.getHeldBytes() + receiver.getBytes();
+	}
+	
+	/**
+	 * Wait until the ranges of a parallel transfer are on the disk and report the file
+	 * 
+	 * @param receivers	receivers of the ranges, {@code null} if they couldn't start
+	 * @return size of the received file, -1 if a range failed
+	 */
+	private long awaitWritten(TransferReceiver[] receivers) {
+		if (receivers == null) {
+			return -1;
+		}
+		long size = 0;
+		long bytes = 0;
+		long elapsedTime = 0;
+		for (TransferReceiver receiver : receivers) {
+			if (!receiver.isComplete()) {
+				// Still waits for the others, so the file is closed once reported
+				size = -1;
+			}
+			try {
+				receiver.awaitWritten();
+			} catch (IOException e) {
+				err.println("IOException occurred when writing " + receiver.getOutput() + ": " + e.getMessage());
+				return -1;
+			} catch (InterruptedException e) {
+				err.println("Interrupted while writing " + receiver.getOutput());
+				return -1;
+			}
+			if (size != -1) {
+				size += receiver.getHeldBytes() + receiver.getBytes();
+			}
+			bytes += receiver.getBytes();
+			elapsedTime = Math.max(elapsedTime, receiver.getElapsedTime());
+		}
+		if (size != -1) {
+			String compression = TransferReceiver.getCompressionReport(receivers);
+			ack.println("Received " + bytes + " bytes in " + elapsedTime + " ms to " + receivers[0].getOutput()
+					+ " over " + receivers.length + " streams"
+					+ (size > bytes ? ", " + (size - bytes) + " held" : "")
+					+ (compression.isEmpty() ? "" : ", " + compression));
+		}
+		return size;
+	}
+	
+	/**
+	 * Receive numbered packets from client over the negotiated UDP socket and write their
+	 * payloads to file, see {@link TransferReceiver}. Packets are acknowledged
+	 * cumulatively when the client asks, with a bitmap of those received out of order.
+	 * 
+	 * @param ds		socket of the transfer, closed and its port released when done
+	 * @param output	file to write
+	 * @param manifest	manifest of the file, {@code null} if the client sent none
+	 * @param held		chunks of the manifest already in the file
+	 * @param compressed	chunks may be compressed
+	 * @param linger	keep acknowledging retransmissions after the last packet
+	 * @return receiver of the transfer, {@code null} if the file couldn't be created
+	 */
+	private TransferReceiver receiveFile(DatagramSocket ds, String output, ChunkManifest manifest, BitSet held,
+			boolean compressed, boolean linger) {
+		TransferReceiver receiver;
+		try {
+			receiver = new TransferReceiver(output, writer, manifest, held, compressed);
+		} catch (IOException e) {
+			err.println("IOException occurred when receiving " + output + ": " + e.getMessage());
+			int port = ds.getLocalPort();
+			ds.close();
+			ports.release(port);
+			return null;
+		}
+		receive(ds, receiver, linger);
+		return receiver;
+	}
+	
+	/**
+	 * Receive the packets of a transfer until it is complete
+	 * 
+	 * @param ds		socket of the transfer, closed and its port released when done
+	 * @param receiver	receiver of the transfer, closed when done
+	 * @param linger	keep acknowledging retransmissions after the last packet
+	 */
+	private void receive(DatagramSocket ds, TransferReceiver receiver, boolean linger) {
+		int port = ds.getLocalPort();
+        try {
+            ds.setSoTimeout(TRANSFER_TIMEOUT);
+            ds.setReceiveBufferSize(TransferPacket.SOCKET_BUFFER_SIZE);
+            // Ready to receive packets from client
+            DatagramPacket packet = new DatagramPacket(new byte[INITIAL_BUFFER_SIZE], INITIAL_BUFFER_SIZE);
+            DatagramPacket ackPacket = new DatagramPacket(new byte[INITIAL_BUFFER_SIZE], INITIAL_BUFFER_SIZE);
+            while (!receiver.isComplete()) {
+                receiveAndAcknowledge(ds, receiver, packet, ackPacket);
+            }
+            
+            // The client resends packets until it gets their acknowledgement
+            ds.setSoTimeout(LINGER_TIMEOUT);
+            try {
+                while (linger) {
+                    receiveAndAcknowledge(ds, receiver, packet, ackPacket);
+                }
+            } catch (SocketTimeoutException e) {
+                // Client is done
+            }
+        } catch (SocketTimeoutException e) {
+            err.println("Client stopped sending after " + receiver.getBytes() + " bytes. Closing " + receiver.getOutput());
+        } catch (IOException e) {
+            err.println("IOException occurred when receiving " + receiver.getOutput() + ": " + e.getMessage());
+        } finally {
+            // Close connection
+            ds.close();
+            ports.release(port);
+            receiver.close();
+        }
+	}
+	
+	private void receiveAndAcknowledge(DatagramSocket ds, TransferReceiver receiver, DatagramPacket packet,
+			DatagramPacket ackPacket) throws IOException {
+		packet.setLength(packet.getData().length);
+		ds.receive(packet);
+		// A datagram filling the buffer might be truncated. Grow the buffers and let the client resend it
+		if (packet.getLength() == packet.getData().length && packet.getLength() < TransferPacket.MAX_DATAGRAM_SIZE) {
+			packet.setData(new byte[TransferPacket.MAX_DATAGRAM_SIZE]);
+			ackPacket.setData(new byte[TransferPacket.MAX_DATAGRAM_SIZE]);
+			return;
+		}
+		int length = receiver.receive(packet.getData(), packet.getLength(), ackPacket.getData());
+		if (length > 0) {
+			ackPacket.setLength(length);
+			ackPacket.setSocketAddress(packet.getSocketAddress());
+			ds.send(ackPacket);
+		}
+	}
+	
 	/**
 	 * Port must be parsable to {@link Integer} and its value must be in range 1024 - 65535 (inclusively)
 	 * 
@@ -195,10 +661,14 @@ public class Server extends Thread {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args == null || args.length != 1) {
-			throw new RuntimeException("Must specify only port number to start server!");
+		if (args == null || args.length < 1 || args.length > 4) {
+			throw new RuntimeException("Must specify port number to start server!\nUsage: java Server <port> [single|threads|virtual] [output-directory] [none|close|batch]");
 		}
+		Mode mode = args.length > 1 ? Mode.valueOf(args[1].toUpperCase()) : Mode.SINGLE;
+		String directory = args.length > 2 ? args[2] : ".";
+		DiskWriter.SyncPolicy syncPolicy = args.length > 3 ? DiskWriter.SyncPolicy.valueOf(args[3].toUpperCase())
+				: DiskWriter.SyncPolicy.CLOSE;
 		// Start server
-		new Server(args[0]).start();
+		new Server(args[0], mode, directory, syncPolicy).start();
 	}
 }
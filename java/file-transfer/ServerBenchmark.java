@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Usage: java ServerBenchmark [clients] [packets] [interval-ms] [mode...]
+ */
+
+/**
+ * Benchmark of the thread-per-transfer modes of {@link Server} with many slow clients.
+ * For every mode a server runs in its own JVM; all clients negotiate at once, then send
+ * their file one packet at a time, waiting between packets like clients on a slow link.
+ * Reports the time until every file is received and the peak thread count and resident
+ * memory of the server process (read from /proc, so Linux only).
+ *
+ * @author aqd14
+ */
+public class ServerBenchmark {
+	final static int DEFAULT_CLIENTS = 1000;
+	final static int DEFAULT_PACKETS = 20;
+	final static int DEFAULT_INTERVAL = 50;
+	final static int PAYLOAD_SIZE = 1000;
+	// Give up a client after this many lost packets in a row
+	final static int MAX_RETRIES = 30;
+
+	// The character represents when client want to negotiate a port number with server
+	final static char NEGOTIATION_CHAR = 259;
+
+	private final int clients;
+	private final int packets;
+	private final int interval;
+
+	/**
+	 * Constructor
+	 *
+	 * @param clients	clients sending at the same time
+	 * @param packets	packets of every file
+	 * @param interval	time between the packets of a client (ms)
+	 */
+	public ServerBenchmark(int clients, int packets, int interval) {
+		this.clients = clients;
+		this.packets = packets;
+		this.interval = interval;
+	}
+
+	/**
+	 * Run all clients against a server in the given mode
+	 *
+	 * @param mode	mode of the server
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(Server.Mode mode) throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("server-benchmark").toFile();
+		ServerSocket probe = new ServerSocket(0);
+		final int port = probe.getLocalPort();
+		probe.close();
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Server.class.getName(),
+				String.valueOf(port), mode.name(), directory.getPath())
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		waitForServer(server);
+
+		final CountDownLatch done = new CountDownLatch(clients);
+		final AtomicInteger failures = new AtomicInteger();
+		// Clients are as light as the JVM allows too
+		ExecutorService executor = Server.newTransferExecutor(Server.Mode.VIRTUAL);
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final int id = i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendSlowly(port, id);
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					} catch (InterruptedException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		// Sample the server while clients send
+		int peakThreads = 0;
+		long peakResident = 0;
+		while (!done.await(100, TimeUnit.MILLISECONDS)) {
+			long[] status = readStatus(server.pid());
+			peakThreads = (int) Math.max(peakThreads, status[0]);
+			peakResident = Math.max(peakResident, status[1]);
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		executor.shutdown();
+		// Let the last transfers linger and report
+		Thread.sleep(Server.LINGER_TIMEOUT + 500);
+		server.destroy();
+		server.waitFor();
+
+		int received = 0;
+		long expected = (long) (packets - 1) * PAYLOAD_SIZE + PAYLOAD_SIZE / 2;
+		for (File file : directory.listFiles()) {
+			if (file.length() == expected) {
+				received++;
+			}
+			file.delete();
+		}
+		directory.delete();
+		System.out.println(String.format("%-8s %8d %8d %8d %10d %10s %10s", mode.name().toLowerCase(), clients, received,
+				failures.get(), elapsed, peakThreads > 0 ? String.valueOf(peakThreads) : "n/a",
+				peakResident > 0 ? String.valueOf(peakResident >> 10) : "n/a"));
+	}
+
+	/**
+	 * Wait until the server listens, then drop its per-transfer output
+	 */
+	private void waitForServer(Process server) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()));
+		String line = in.readLine();
+		if (line == null || !line.startsWith("Listening")) {
+			throw new IOException("Server did not start: " + line);
+		}
+		Thread drain = new Thread("server-output") {
+			@Override
+			public void run() {
+				try {
+					while (in.readLine() != null) {
+						// Discard
+					}
+				} catch (IOException e) {
+					// Server stopped
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	/**
+	 * Negotiate, then send a file stop-and-wait with a pause between packets.
+	 * The last packet is half full.
+	 */
+	private void sendSlowly(int port, int id) throws IOException, InterruptedException {
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int udpPort = -1;
+		// The accept queue of the server may be full while all clients connect
+		for (int attempt = 0; udpPort == -1; attempt++) {
+			try {
+				Socket socket = new Socket(address, port);
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeChar(NEGOTIATION_CHAR);
+				udpPort = new DataInputStream(socket.getInputStream()).readInt();
+				socket.close();
+			} catch (ConnectException e) {
+				if (attempt == MAX_RETRIES) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+
+		DatagramSocket ds = new DatagramSocket();
+		try {
+			ds.setSoTimeout(1000);
+			byte[] buf = new byte[TransferPacket.HEADER_SIZE + PAYLOAD_SIZE];
+			Arrays.fill(buf, (byte) ('a' + id % 26));
+			DatagramPacket packet = new DatagramPacket(buf, buf.length, address, udpPort);
+			byte[] ackBuf = new byte[buf.length];
+			DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+			for (int sequence = 0; sequence < packets; sequence++) {
+				boolean last = sequence == packets - 1;
+				// Stop-and-wait: every packet asks for an acknowledgement
+				TransferPacket.writeHeader(buf, sequence,
+						last ? TransferPacket.LAST | TransferPacket.ACK_REQUEST : TransferPacket.ACK_REQUEST);
+				packet.setLength(TransferPacket.HEADER_SIZE + (last ? PAYLOAD_SIZE / 2 : PAYLOAD_SIZE));
+				int retries = 0;
+				ds.send(packet);
+				while (true) {
+					try {
+						ackPacket.setLength(ackBuf.length);
+						ds.receive(ackPacket);
+						// Cumulative: every packet before its sequence number is received
+						if (TransferPacket.getSequence(ackBuf) > sequence) {
+							break;
+						}
+					} catch (SocketTimeoutException e) {
+						if (++retries == MAX_RETRIES) {
+							throw e;
+						}
+						ds.send(packet);
+					}
+				}
+				if (!last) {
+					Thread.sleep(interval);
+				}
+			}
+		} finally {
+			ds.close();
+		}
+	}
+
+	/**
+	 * @return thread count and resident memory (KB) of a process, 0 when unknown
+	 */
+	private static long[] readStatus(long pid) {
+		long[] status = new long[2];
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("Threads:")) {
+						status[0] = Long.parseLong(line.substring(8).trim());
+					} else if (line.startsWith("VmRSS:")) {
+						status[1] = Long.parseLong(line.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Not Linux
+		}
+		return status;
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+		int packets = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PACKETS;
+		int interval = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_INTERVAL;
+		List<Server.Mode> modes = new ArrayList<Server.Mode>();
+		for (int i = 3; i < args.length; i++) {
+			modes.add(Server.Mode.valueOf(args[i].toUpperCase()));
+		}
+		if (modes.isEmpty()) {
+			modes.add(Server.Mode.THREADS);
+			modes.add(Server.Mode.VIRTUAL);
+		}
+
+		ServerBenchmark benchmark = new ServerBenchmark(clients, packets, interval);
+		System.out.println(clients + " clients, " + packets + " packets of " + PAYLOAD_SIZE + " bytes every " + interval
+				+ " ms, virtual threads " + (Server.hasVirtualThreads() ? "available" : "not available, platform threads used"));
+		System.out.println(String.format("%-8s %8s %8s %8s %10s %10s %10s", "mode", "clients", "received", "failed",
+				"time ms", "threads", "RSS MB"));
+		for (Server.Mode mode : modes) {
+			benchmark.run(mode);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the datagrams of a file transfer. Every datagram starts with a header holding its
+ * sequence number and flags, followed by the payload. Packet i of a file carries the bytes from
+ * i * payload size, the last one has the LAST flag, so the server detects the end of the file even
+ * when its size is a multiple of the payload size (the last packet is then empty).
+ *
+ * The server acknowledges packets when the client asks with the ACK_REQUEST flag, as often as
+ * the client sees fit, and when the file is complete. An acknowledgement is cumulative: its
+ * sequence number is the first packet not received yet, followed by a bitmap of the packets
+ * received after it, packet sequence + 1 + i at bit i (SACK flag). In diagnostic mode the client
+ * sets the ECHO flag and every packet is answered with an ACK packet of the same sequence number
+ * carrying its payload in upper-case.
+ *
+ * When negotiated, the packets of a chunk (see {@link ChunkManifest}) may carry the chunk
+ * compressed instead: its first packets hold the Deflate stream with the COMPRESSED flag, the
+ * one ending it also has the CHUNK_END flag, and the other packets of the chunk aren't sent.
+ *
+ * @author aqd14
+ */
+public class TransferPacket {
+	// Sequence number (4 bytes) and flags (1 byte)
+	final static int HEADER_SIZE = 5;
+
+	// Largest UDP payload over IPv4
+	final static int MAX_DATAGRAM_SIZE = 65507;
+	final static int MAX_PAYLOAD_SIZE = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+	// Fits an Ethernet frame: 1500 bytes MTU minus IPv4 and UDP headers
+	final static int DEFAULT_PAYLOAD_SIZE = 1500 - 20 - 8 - HEADER_SIZE;
+
+	// Packets in flight. The server buffers at most MAX_WINDOW packets received out of order
+	final static int DEFAULT_WINDOW = 64;
+	final static int MAX_WINDOW = 1024;
+	// Socket buffers hold a full window of default packets, so a burst isn't dropped by the kernel
+	final static int SOCKET_BUFFER_SIZE = 4 << 20;
+
+	// Flags
+	final static byte LAST = 1; // Last packet of the file
+	final static byte ACK = 2;  // Acknowledgement from the server
+	final static byte COMPRESSED = 4; // Piece of a compressed chunk
+	final static byte CHUNK_END = 8;  // Last piece of a compressed chunk
+	final static byte ACK_REQUEST = 16; // Client asks for an acknowledgement
+	final static byte ECHO = 32; // Client asks for the packet back in upper-case, diagnostic mode
+	final static byte SACK = 64; // Cumulative acknowledgement with a bitmap of the packets received after it
+
+	// Packets sent between acknowledgement requests by default
+	final static int DEFAULT_ACK_INTERVAL = 16;
+
+	/**
+	 * Write a header at the beginning of a datagram buffer
+	 *
+	 * @param buf		datagram buffer
+	 * @param sequence	sequence number of the packet
+	 * @param flags		flags of the packet
+	 * @return offset of the payload
+	 */
+	public static int writeHeader(byte[] buf, int sequence, byte flags) {
+		ByteBuffer.wrap(buf).putInt(sequence).put(flags);
+		return HEADER_SIZE;
+	}
+
+	/**
+	 * Write a header to a buffer of its own, sent ahead of the payload with a gathering write
+	 *
+	 * @param buf		header buffer, flipped for sending
+	 * @param sequence	sequence number of the packet
+	 * @param flags		flags of the packet
+	 */
+	public static void writeHeader(ByteBuffer buf, int sequence, byte flags) {
+		buf.clear();
+		buf.putInt(sequence).put(flags).flip();
+	}
+
+	public static int getSequence(byte[] buf) {
+		return ByteBuffer.wrap(buf).getInt(0);
+	}
+
+	public static byte getFlags(byte[] buf) {
+		return buf[4];
+	}
+
+	public static boolean hasFlag(byte[] buf, byte flag) {
+		return (getFlags(buf) & flag) != 0;
+	}
+
+	/**
+	 * Payload size must leave room for the header in a UDP datagram
+	 *
+	 * @param payloadSize	payload size to check
+	 * @return {@code true} if the payload size is valid
+	 */
+	public static boolean isValidPayloadSize(int payloadSize) {
+		return payloadSize > 0 && payloadSize <= MAX_PAYLOAD_SIZE;
+	}
+
+	/**
+	 * @param buf		cumulative acknowledgement
+	 * @param length	its length
+	 * @param i			index in the bitmap
+	 * @return {@code true} if packet sequence + 1 + i is received
+	 */
+	public static boolean isSelectivelyAcked(byte[] buf, int length, int i) {
+		return HEADER_SIZE + i / 8 < length && (buf[HEADER_SIZE + i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	public static boolean isValidWindow(int window) {
+		return window > 0 && window <= MAX_WINDOW;
+	}
+}
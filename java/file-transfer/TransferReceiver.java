@@ -0,0 +1,451 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receiving side of a file transfer, independent of how packets are read from the network.
+ * All packets but the last have the same payload size, so every payload is handed to the
+ * {@link DiskWriter} at its position in the file as soon as it arrives, in order or not.
+ * A transfer only keeps which of the next {@link TransferPacket#MAX_WINDOW} packets it has,
+ * so memory per transfer stays bounded whatever the client sends.
+ *
+ * A transfer described by a {@link ChunkManifest} resumes the file of an interrupted one: the
+ * packets of the chunks already held are not sent again and count as received. When negotiated,
+ * its chunks may also come compressed: the pieces of a chunk are kept until they are all received,
+ * then the chunk is inflated and handed to the writer at once.
+ *
+ * A stream of a parallel transfer receives a range of the file, described by the manifest of
+ * the range, and writes it to the file shared by all the streams.
+ *
+ * @author aqd14
+ */
+public class TransferReceiver {
+	private final DiskWriter writer;
+	private final DiskWriter.Target target;
+	private boolean closed;
+	// Chunks already in the file, null without a manifest
+	private final ChunkManifest manifest;
+	private final BitSet held;
+	// Chunks may be compressed, see ChunkCompressor
+	private final boolean compressed;
+	// Position of packet 0 in the file, not 0 for a range
+	private final long offset;
+	// Compressed chunks being received, or whose end is known, until the expected packet passes them
+	private final TreeMap<Integer, CompressedChunk> compressedChunks = new TreeMap<Integer, CompressedChunk>();
+	private Inflater inflater;
+	private byte[] inflated;
+
+	private int payloadSize = -1; // Known from the first packet that isn't the last
+	private int expected; // First packet not received yet
+	// Packets received from the expected one on, packet i at bit i % MAX_WINDOW
+	private final BitSet received = new BitSet(TransferPacket.MAX_WINDOW);
+	private int last = -1; // Last packet, known once received
+	private int highest = -1; // Highest packet received
+	private long bytes;
+	private long heldBytes;
+	private int chunksInflated;
+	private long compressedBytes;
+	private long inflatedBytes;
+	private long inflateTime;
+	private final long startTime = System.currentTimeMillis();
+	private long endTime;
+
+	/**
+	 * Pieces of a compressed chunk received so far
+	 */
+	private static class CompressedChunk {
+		byte[] data; // Freed once inflated
+		int pieces;
+		int highest = -1; // Highest piece received
+		int end = -1; // Packet ending the chunk, once received
+		int length; // Compressed length, once the end is received
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param output	file to write
+	 * @param writer	writer stage of the server
+	 * @throws IOException if the file can't be created
+	 */
+	public TransferReceiver(String output, DiskWriter writer) throws IOException {
+		this(output, writer, null, null, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param output	file to write, keeping the chunks already held
+	 * @param writer	writer stage of the server
+	 * @param manifest	manifest of the file, {@code null} to write it from scratch
+	 * @param held		chunks of the manifest already in the file
+	 * @param compressed	chunks of the manifest may be compressed
+	 * @throws IOException if the file can't be opened
+	 */
+	public TransferReceiver(String output, DiskWriter writer, ChunkManifest manifest, BitSet held, boolean compressed)
+			throws IOException {
+		this(manifest == null ? writer.open(output) : writer.open(output, manifest.getSize()), writer, manifest, held,
+				compressed);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param target	file to write, opened for every stream of a parallel transfer
+	 * @param writer	writer stage of the server
+	 * @param manifest	manifest of the file or of the range of the stream, see {@link ChunkManifest#getRange}
+	 * @param held		chunks of the manifest already in the file
+	 * @param compressed	chunks of the manifest may be compressed
+	 */
+	public TransferReceiver(DiskWriter.Target target, DiskWriter writer, ChunkManifest manifest, BitSet held,
+			boolean compressed) {
+		this.target = target;
+		this.writer = writer;
+		this.manifest = manifest;
+		this.held = held;
+		this.compressed = compressed && manifest != null;
+		this.offset = manifest != null ? manifest.getOffset() : 0;
+		if (manifest == null) {
+			return;
+		}
+		payloadSize = manifest.getPayloadSize();
+		heldBytes = manifest.getBytes(held);
+		skipHeld();
+	}
+
+	/**
+	 * Handle a packet from the client and build an acknowledgement if the client asks for one,
+	 * or once the file is complete: cumulative, or the packet in upper-case in diagnostic mode.
+	 * Packets already received are retransmissions, they are acknowledged again.
+	 *
+	 * @param buf		received datagram
+	 * @param length	datagram length
+	 * @param response	buffer of the acknowledgement
+	 * @return length of the acknowledgement, 0 if the packet must not be acknowledged
+	 * @throws IOException if the file can't be written
+	 */
+	public int receive(byte[] buf, int length, byte[] response) throws IOException {
+		if (target.getFailure() != null) {
+			throw target.getFailure();
+		}
+		if (length < TransferPacket.HEADER_SIZE) {
+			return 0;
+		}
+		int sequence = TransferPacket.getSequence(buf);
+		// Too far ahead, or not a sequence number
+		if (sequence < 0 || sequence >= expected + TransferPacket.MAX_WINDOW || (last != -1 && sequence > last)
+				|| (manifest != null && sequence > manifest.getLastPacket())) {
+			return 0;
+		}
+		// The actual received data might not equal to whole buffer capacity
+		int payloadLength = length - TransferPacket.HEADER_SIZE;
+		boolean completed = false;
+		if (sequence >= expected && !received.get(sequence % TransferPacket.MAX_WINDOW)) {
+			boolean isLast = TransferPacket.hasFlag(buf, TransferPacket.LAST);
+			if (manifest != null && isLast != (sequence == manifest.getLastPacket())) {
+				return 0;
+			}
+			if (TransferPacket.hasFlag(buf, TransferPacket.COMPRESSED)) {
+				// Not a piece of a compressed chunk, or the disk is behind. Resent later
+				if (isLast || !receivePiece(buf, sequence, payloadLength)) {
+					return 0;
+				}
+			} else {
+				if (!isLast && payloadSize == -1) {
+					payloadSize = payloadLength;
+				}
+				// Not from this client, or the last packet before its position is known. Resent later
+				if (isLast ? (sequence > 0 && (payloadSize == -1 || payloadLength > payloadSize))
+						: payloadLength != payloadSize) {
+					return 0;
+				}
+				long position = offset + (sequence == 0 ? 0 : (long) sequence * payloadSize);
+				// Disk is behind, the client resends it later
+				if (!writer.write(target, position, buf, TransferPacket.HEADER_SIZE, payloadLength)) {
+					return 0;
+				}
+				bytes += payloadLength;
+			}
+			if (isLast) {
+				last = sequence;
+			}
+			received.set(sequence % TransferPacket.MAX_WINDOW);
+			highest = Math.max(highest, sequence);
+			skipHeld();
+			if (isComplete()) {
+				endTime = System.currentTimeMillis();
+				completed = true;
+				close();
+			}
+		}
+		if (TransferPacket.hasFlag(buf, TransferPacket.ECHO)) {
+			return acknowledge(buf, sequence, payloadLength, response);
+		}
+		if (completed || TransferPacket.hasFlag(buf, TransferPacket.ACK_REQUEST)) {
+			return acknowledgeReceived(response);
+		}
+		return 0;
+	}
+
+	/**
+	 * Move the expected packet past the packets received and those not sent: packets of held
+	 * chunks, and of compressed chunks after their end. The last packet is always sent, it ends the transfer.
+	 */
+	private void skipHeld() {
+		while (received.get(expected % TransferPacket.MAX_WINDOW) || isSkipped(expected)) {
+			received.clear(expected % TransferPacket.MAX_WINDOW);
+			expected++;
+		}
+		if (!compressedChunks.isEmpty() && expected < manifest.getLastPacket()) {
+			compressedChunks.headMap(manifest.getChunk(expected)).clear();
+		}
+	}
+
+	private boolean isSkipped(int sequence) {
+		if (manifest == null || sequence >= manifest.getLastPacket()) {
+			return false;
+		}
+		int chunk = manifest.getChunk(sequence);
+		if (held.get(chunk)) {
+			return true;
+		}
+		CompressedChunk compressedChunk = compressedChunks.get(chunk);
+		return compressedChunk != null && compressedChunk.end != -1 && sequence > compressedChunk.end;
+	}
+
+	/**
+	 * Keep a piece of a compressed chunk. The piece completing the chunk is only kept once
+	 * the inflated chunk is handed to the writer, so if the disk is behind its resend tries again.
+	 *
+	 * @return {@code false} if the piece must not be acknowledged
+	 * @throws IOException if the chunk doesn't inflate to its size
+	 */
+	private boolean receivePiece(byte[] buf, int sequence, int payloadLength) throws IOException {
+		if (!compressed || manifest.getChunkSize() > ChunkCompressor.MAX_CHUNK_SIZE) {
+			return false;
+		}
+		int chunk = manifest.getChunk(sequence);
+		int offset = (sequence - manifest.getFirstPacket(chunk)) * payloadSize;
+		// Compressed, a chunk is a packet shorter at least
+		int maxLength = manifest.getBodyLength(chunk) - payloadSize;
+		boolean isEnd = TransferPacket.hasFlag(buf, TransferPacket.CHUNK_END);
+		if (offset + payloadLength > maxLength || (isEnd ? payloadLength == 0 : payloadLength != payloadSize)) {
+			return false;
+		}
+		CompressedChunk compressedChunk = compressedChunks.get(chunk);
+		if (compressedChunk == null) {
+			compressedChunk = new CompressedChunk();
+			compressedChunk.data = new byte[maxLength];
+			compressedChunks.put(chunk, compressedChunk);
+		}
+		if (compressedChunk.data == null || (compressedChunk.end != -1 && (isEnd || sequence > compressedChunk.end))
+				|| (isEnd && compressedChunk.highest > sequence)) {
+			return false;
+		}
+		System.arraycopy(buf, TransferPacket.HEADER_SIZE, compressedChunk.data, offset, payloadLength);
+		int end = isEnd ? sequence : compressedChunk.end;
+		int length = isEnd ? offset + payloadLength : compressedChunk.length;
+		if (end != -1 && compressedChunk.pieces + 1 == end - manifest.getFirstPacket(chunk) + 1) {
+			if (!inflate(chunk, compressedChunk.data, length)) {
+				return false;
+			}
+			compressedChunk.data = null;
+		}
+		compressedChunk.pieces++;
+		compressedChunk.highest = Math.max(compressedChunk.highest, sequence);
+		compressedChunk.end = end;
+		compressedChunk.length = length;
+		return true;
+	}
+
+	/**
+	 * Inflate a compressed chunk and hand it to the writer
+	 *
+	 * @return {@code false} if the disk is behind
+	 * @throws IOException if the chunk doesn't inflate to its size
+	 */
+	private boolean inflate(int chunk, byte[] data, int length) throws IOException {
+		int bodyLength = manifest.getBodyLength(chunk);
+		if (inflater == null) {
+			inflater = new Inflater();
+			// A byte more, so a chunk inflating to more than its size is detected
+			inflated = new byte[manifest.getChunkSize() + 1];
+		}
+		long start = ChunkCompressor.cpuTime();
+		inflater.reset();
+		inflater.setInput(data, 0, length);
+		int count = 0;
+		try {
+			while (!inflater.finished() && count < inflated.length) {
+				int n = inflater.inflate(inflated, count, inflated.length - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				count += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed chunk " + chunk + " is corrupt", e);
+		}
+		inflateTime += ChunkCompressor.cpuTime() - start;
+		if (!inflater.finished() || count != bodyLength) {
+			throw new IOException("Compressed chunk " + chunk + " is not " + bodyLength + " bytes");
+		}
+		if (!writer.write(target, offset + manifest.getChunkStart(chunk), inflated, 0, bodyLength)) {
+			return false;
+		}
+		bytes += bodyLength;
+		chunksInflated++;
+		compressedBytes += length;
+		inflatedBytes += bodyLength;
+		return true;
+	}
+
+	/**
+	 * Acknowledge every packet received: the first packet not received yet, then a bitmap of
+	 * the packets received after it, at most a window
+	 */
+	private int acknowledgeReceived(byte[] response) {
+		int offset = TransferPacket.writeHeader(response, expected, (byte) (TransferPacket.ACK | TransferPacket.SACK));
+		int count = Math.max(0, highest - expected);
+		int length = (count + 7) / 8;
+		Arrays.fill(response, offset, offset + length, (byte) 0);
+		int window = TransferPacket.MAX_WINDOW;
+		for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+			// Packet i % window after the expected one
+			int bit = (i - (expected + 1) % window + window) % window;
+			if (bit < count) {
+				response[offset + bit / 8] |= 1 << (bit % 8);
+			}
+		}
+		return offset + length;
+	}
+
+	/**
+	 * Acknowledge a packet in diagnostic mode. Convert its content to upper-case,
+	 * decode to bytes then put it after the header.
+	 */
+	private int acknowledge(byte[] buf, int sequence, int payloadLength, byte[] response) {
+		byte[] echo = generateResponse(Arrays.copyOfRange(buf, TransferPacket.HEADER_SIZE,
+				TransferPacket.HEADER_SIZE + payloadLength)).getBytes();
+		int offset = TransferPacket.writeHeader(response, sequence, TransferPacket.ACK);
+		// Upper-case representation of some bytes might be longer
+		int echoLength = Math.min(echo.length, response.length - offset);
+		System.arraycopy(echo, 0, response, offset, echoLength);
+		return offset + echoLength;
+	}
+
+	/**
+	 * Convert received bytes data to the upper-case string representation
+	 * @param data
+	 * @return
+	 */
+	private String generateResponse(byte[] data) {
+		return new String(data).toUpperCase();
+	}
+
+	/**
+	 * @return {@code true} once every packet up to the last one is handed to the writer
+	 */
+	public boolean isComplete() {
+		return last != -1 && expected > last;
+	}
+
+	/**
+	 * Close the output file once the payloads handed to the writer are written,
+	 * also when the transfer is incomplete
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			writer.close(target);
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the output file is written and closed, see {@link #close()}
+	 *
+	 * @throws IOException if the file couldn't be written
+	 */
+	public void awaitWritten() throws IOException, InterruptedException {
+		target.awaitClosed();
+	}
+
+	/**
+	 * Run a task on the writer thread once the output file is written and closed, without
+	 * waiting for it, see {@link DiskWriter.Target#whenClosed}
+	 *
+	 * @param listener	task to run, which can check {@link #getWriteFailure()}
+	 */
+	public void whenWritten(Runnable listener) {
+		target.whenClosed(listener);
+	}
+
+	/**
+	 * @return the error that stopped the writes to the output file, {@code null} if none
+	 */
+	public IOException getWriteFailure() {
+		return target.getFailure();
+	}
+
+	public String getOutput() {
+		return target.getPath();
+	}
+
+	/**
+	 * @return bytes received
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return chunks received compressed, their size before and after inflating, and the CPU
+	 * time spent; empty if compression wasn't negotiated
+	 */
+	public String getCompressionReport() {
+		return getCompressionReport(new TransferReceiver[] { this });
+	}
+
+	/**
+	 * @param receivers	receivers of the streams of a parallel transfer
+	 * @return {@link #getCompressionReport()} summed over the streams
+	 */
+	public static String getCompressionReport(TransferReceiver[] receivers) {
+		if (!receivers[0].compressed) {
+			return "";
+		}
+		int chunksInflated = 0;
+		long compressedBytes = 0;
+		long inflatedBytes = 0;
+		long inflateTime = 0;
+		for (TransferReceiver receiver : receivers) {
+			chunksInflated += receiver.chunksInflated;
+			compressedBytes += receiver.compressedBytes;
+			inflatedBytes += receiver.inflatedBytes;
+			inflateTime += receiver.inflateTime;
+		}
+		double ratio = compressedBytes == 0 ? 1 : inflatedBytes / (double) compressedBytes;
+		return chunksInflated + " chunks compressed " + inflatedBytes + " to " + compressedBytes + " bytes ("
+				+ String.format("%.2f", ratio) + ":1), " + inflateTime / 1000000 + " ms CPU inflating";
+	}
+
+	/**
+	 * @return bytes of the file held from an earlier transfer, not sent again
+	 */
+	public long getHeldBytes() {
+		return heldBytes;
+	}
+
+	/**
+	 * @return time from the creation of the receiver to the last packet received (ms)
+	 */
+	public long getElapsedTime() {
+		return (isComplete() ? endTime : System.currentTimeMillis()) - startTime;
+	}
+}